@@ -0,0 +1,254 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package com.cloudogu.scm.gotenberg;
+
+import com.google.common.util.concurrent.RateLimiter;
+import de.otto.edison.hal.HalRepresentation;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import sonia.scm.api.v2.resources.HalAppender;
+import sonia.scm.api.v2.resources.HalEnricherContext;
+import sonia.scm.api.v2.resources.ScmPathInfoStore;
+import sonia.scm.repository.BrowserResult;
+import sonia.scm.repository.FileObject;
+import sonia.scm.repository.NamespaceAndName;
+import sonia.scm.repository.Repository;
+import sonia.scm.repository.RepositoryManager;
+import sonia.scm.repository.RepositoryTestData;
+import sonia.scm.store.ConfigurationStoreFactory;
+import sonia.scm.store.InMemoryBlobStoreFactory;
+import sonia.scm.store.InMemoryConfigurationStoreFactory;
+import sonia.scm.store.InMemoryDataStoreFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Measures the {@link FileObjectEnricher} for a directory listing with 10,000 files and 100 directories, every
+ * invocation enriches all entries of the listing within a new request. Every tenth convertable document was requested
+ * before, so its cache key is known, and half of them are cached. The {@code copy} variant reads the configuration
+ * through {@link GotenbergConfigurationStore#get()}, as it was done before the store got its non copying accessors.
+ * Run it with {@code ./gradlew jmh}, which reports the allocation rate, too.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class FileObjectEnricherBenchmark {
+
+  private static final int FILES = 10_000;
+  private static final int DIRECTORIES = 100;
+  private static final String REVISION = "c0ffeec0ffeec0ffeec0ffeec0ffeec0ffeec0ff";
+  private static final String[] EXTENSIONS = {"java", "docx", "md", "PDF", "xml", "ts", "pptx", "json", "", "png"};
+  private static final URI API_REST_URI = URI.create("https://scm.example.com/scm/api/");
+
+  private final Repository repository = RepositoryTestData.createHeartOfGold();
+  private final NamespaceAndName namespaceAndName = repository.getNamespaceAndName();
+  private final ScmPathInfoStore pathInfoStore = new ScmPathInfoStore();
+  private final List<HalEnricherContext> contexts = new ArrayList<>(FILES);
+
+  @Param({"snapshot", "copy"})
+  public String configurationAccess;
+
+  private FileObjectEnricher enricher;
+
+  @Setup
+  public void setUp() throws IOException {
+    InMemoryConfigurationStoreFactory configurationStoreFactory = new InMemoryConfigurationStoreFactory();
+    GotenbergConfiguration configuration = new GotenbergConfiguration();
+    configuration.setEnabled(true);
+    configurationStoreFactory.withType(GotenbergConfiguration.class).withName("gotenberg").build().set(configuration);
+    // the configuration is never changed, so no event bus is needed
+    GotenbergConfigurationStore configurationStore = "copy".equals(configurationAccess)
+      ? new CopyingConfigurationStore(configurationStoreFactory)
+      : new GotenbergConfigurationStore(configurationStoreFactory, null);
+
+    RepositoryManager repositoryManager = mock(RepositoryManager.class);
+    when(repositoryManager.get(namespaceAndName)).thenReturn(repository);
+
+    SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    CacheFactory cacheFactory = new CacheFactory(
+      new InMemoryBlobStoreFactory(),
+      new InMemoryDataStoreFactory(),
+      configurationStore,
+      new HotCache(configurationStore, meterRegistry),
+      Runnable::run
+    );
+    ContentIdProvider contentIdProvider = (repo, path) -> Optional.of("blob-" + path.getPath().hashCode());
+    CacheKeyResolver cacheKeyResolver = new CacheKeyResolver(null, Set.of(contentIdProvider));
+    PdfService service = new PdfService(
+      repositoryManager,
+      cacheFactory,
+      null,
+      new Converter(configurationStore, null, null, null, Runnable::run, 0),
+      null,
+      cacheKeyResolver,
+      configurationStore,
+      null,
+      meterRegistry,
+      Runnable::run,
+      Runnable::run,
+      Runnable::run
+    );
+    // prefetching is disabled, so the prefetcher only checks the configuration for every directory
+    DirectoryPrefetcher prefetcher = new DirectoryPrefetcher(
+      configurationStore, service, meterRegistry, RateLimiter.create(Double.MAX_VALUE)
+    );
+    enricher = new FileObjectEnricher(configurationStore, service, prefetcher, repositoryManager, () -> pathInfoStore);
+
+    List<FileObject> files = new ArrayList<>(FILES);
+    for (int i = 0; i < FILES; i++) {
+      String extension = EXTENSIONS[i % EXTENSIONS.length];
+      FileObject file = new FileObject();
+      file.setName("File" + i + (extension.isEmpty() ? "" : "." + extension));
+      file.setPath("src/main/module" + (i % 100) + "/" + file.getName());
+      files.add(file);
+    }
+    for (int i = 0; i < DIRECTORIES; i++) {
+      FileObject directory = new FileObject();
+      directory.setDirectory(true);
+      directory.setName("module" + i);
+      directory.setPath("src/main/module" + i);
+      files.add(directory);
+    }
+    FileObject root = new FileObject();
+    root.setDirectory(true);
+    root.setPath("");
+    root.setChildren(files);
+    BrowserResult browserResult = new BrowserResult(REVISION, root);
+
+    for (int i = 0; i < files.size(); i++) {
+      FileObject file = files.get(i);
+      if (i % 10 == 1) {
+        RepositoryPath path = new RepositoryPath(namespaceAndName.getNamespace(), namespaceAndName.getName(), REVISION, file.getPath());
+        String cacheKey = cacheKeyResolver.resolve(repository, path);
+        if (i % 20 == 1) {
+          cacheFactory.get(repository).set(cacheKey, new ByteArrayInputStream(new byte[1024])).close();
+        }
+      }
+      contexts.add(HalEnricherContext.of(file, namespaceAndName, browserResult));
+    }
+  }
+
+  @Benchmark
+  public void enrichListing(Blackhole blackhole) {
+    // every listing is rendered by a request of its own
+    pathInfoStore.set(() -> API_REST_URI);
+    HalAppender appender = new BlackholeAppender(blackhole);
+    for (HalEnricherContext context : contexts) {
+      enricher.enrich(context, appender);
+    }
+  }
+
+  /**
+   * Reads every value through a copy of the configuration.
+   */
+  private static final class CopyingConfigurationStore extends GotenbergConfigurationStore {
+
+    private CopyingConfigurationStore(ConfigurationStoreFactory factory) {
+      super(factory, null);
+    }
+
+    @Override
+    public boolean isEnabled() {
+      return get().isEnabled();
+    }
+
+    @Override
+    public boolean isSharedCache() {
+      return get().isSharedCache();
+    }
+
+    @Override
+    public boolean isDirectoryPrefetchEnabled() {
+      GotenbergConfiguration configuration = get();
+      return configuration.isDirectoryPrefetchEnabled() && configuration.getDirectoryPrefetchMaxFiles() > 0;
+    }
+
+    @Override
+    public int getDirectoryPrefetchMaxFiles() {
+      return get().getDirectoryPrefetchMaxFiles();
+    }
+
+    @Override
+    public int getCacheHotMegabytes() {
+      return get().getCacheHotMegabytes();
+    }
+  }
+
+  private static final class BlackholeAppender implements HalAppender {
+
+    private final Blackhole blackhole;
+
+    private BlackholeAppender(Blackhole blackhole) {
+      this.blackhole = blackhole;
+    }
+
+    @Override
+    public void appendLink(String rel, String href) {
+      blackhole.consume(href);
+    }
+
+    @Override
+    public LinkArrayBuilder linkArrayBuilder(String rel) {
+      return new LinkArrayBuilder() {
+        @Override
+        public LinkArrayBuilder append(String name, String href) {
+          blackhole.consume(href);
+          return this;
+        }
+
+        @Override
+        public void build() {
+          // nothing to build, the links are consumed already
+        }
+      };
+    }
+
+    @Override
+    public void appendEmbedded(String rel, HalRepresentation embedded) {
+      blackhole.consume(embedded);
+    }
+
+    @Override
+    public void appendEmbedded(String rel, List<HalRepresentation> embedded) {
+      blackhole.consume(embedded);
+    }
+  }
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package com.cloudogu.scm.gotenberg;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Stops the threads of the plugin, when SCM-Manager shuts down or the plugin is restarted. Running tasks are
+ * interrupted and queued tasks are dropped.
+ */
+final class BackgroundExecutors {
+
+  private BackgroundExecutors() {
+  }
+
+  static void shutdown(Executor... executors) {
+    for (Executor executor : executors) {
+      // executors of tests may run the tasks directly
+      if (executor instanceof ExecutorService service) {
+        service.shutdownNow();
+      }
+    }
+  }
+}
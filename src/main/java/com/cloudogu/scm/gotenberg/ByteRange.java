@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package com.cloudogu.scm.gotenberg;
+
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.ToString;
+
+import java.util.Optional;
+
+/**
+ * A single satisfiable range of a http range request. Requests with multiple ranges are served completely.
+ */
+@Getter
+@ToString
+@EqualsAndHashCode
+class ByteRange {
+
+  private static final String UNIT = "bytes=";
+
+  private final long start;
+  private final long end;
+
+  private ByteRange(long start, long end) {
+    this.start = start;
+    this.end = end;
+  }
+
+  long getLength() {
+    return end - start + 1;
+  }
+
+  String toContentRange(long total) {
+    return "bytes " + start + "-" + end + "/" + total;
+  }
+
+  static String unsatisfiable(long total) {
+    return "bytes */" + total;
+  }
+
+  /**
+   * Parses the value of a range header for a document with the given length. Returns an empty optional, if the whole
+   * document should be served.
+   *
+   * @throws UnsatisfiableException if the range does not overlap the document
+   */
+  static Optional<ByteRange> parse(String header, long total) {
+    if (header == null || !header.startsWith(UNIT) || header.indexOf(',') >= 0) {
+      return Optional.empty();
+    }
+    String spec = header.substring(UNIT.length()).trim();
+    int separator = spec.indexOf('-');
+    if (separator < 0) {
+      return Optional.empty();
+    }
+    try {
+      String first = spec.substring(0, separator).trim();
+      String last = spec.substring(separator + 1).trim();
+      if (first.isEmpty()) {
+        // suffix range, e.g. the last 500 bytes
+        long suffix = Long.parseLong(last);
+        if (suffix <= 0 || total == 0) {
+          throw new UnsatisfiableException();
+        }
+        return Optional.of(new ByteRange(Math.max(total - suffix, 0), total - 1));
+      }
+      long start = Long.parseLong(first);
+      long end = total - 1;
+      if (!last.isEmpty()) {
+        long requestedEnd = Long.parseLong(last);
+        if (requestedEnd < start) {
+          return Optional.empty();
+        }
+        end = Math.min(requestedEnd, end);
+      }
+      if (start >= total) {
+        throw new UnsatisfiableException();
+      }
+      return Optional.of(new ByteRange(start, end));
+    } catch (NumberFormatException ex) {
+      // invalid ranges are ignored
+      return Optional.empty();
+    }
+  }
+
+  static class UnsatisfiableException extends RuntimeException {
+    UnsatisfiableException() {
+      super("range is not satisfiable");
+    }
+  }
+}
@@ -16,74 +16,340 @@
 
 package com.cloudogu.scm.gotenberg;
 
+import com.github.legman.Subscribe;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import sonia.scm.EagerSingleton;
+import sonia.scm.HandlerEventType;
+import sonia.scm.plugin.Extension;
 import sonia.scm.repository.Repository;
+import sonia.scm.repository.RepositoryEvent;
 import sonia.scm.store.Blob;
 import sonia.scm.store.BlobStore;
 import sonia.scm.store.BlobStoreFactory;
+import sonia.scm.store.DataStore;
+import sonia.scm.store.DataStoreFactory;
 import sonia.scm.store.StoreException;
 
 import jakarta.inject.Inject;
-import jakarta.inject.Singleton;
+import java.io.Closeable;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.time.Instant;
+import java.util.Collection;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
 
-@Singleton
-public final class CacheFactory {
+@Extension
+@EagerSingleton
+public final class CacheFactory implements Closeable {
 
   private static final Logger LOG = LoggerFactory.getLogger(CacheFactory.class);
 
   private static final String STORE = "gotenberg";
+  private static final String INDEX_STORE = "gotenberg-index";
+  private static final String SHARED_STORE = "gotenberg-shared";
+  private static final String SHARED_INDEX_STORE = "gotenberg-shared-index";
+  private static final String SHARED_REFERENCES_STORE = "gotenberg-shared-references";
+  private static final String SHARED_ID = "shared";
+  private static final long MEGABYTE = 1024L * 1024L;
+  private static final long HOT_AFTER_HITS = 1;
 
   private final BlobStoreFactory blobStoreFactory;
+  private final DataStoreFactory dataStoreFactory;
+  private final GotenbergConfigurationStore configurationStore;
+  private final HotCache hotCache;
+  private final Executor indexLoader;
   private final Map<String, Cache> caches = new ConcurrentHashMap<>();
-  private final int cacheSize;
+  private volatile SharedCache shared;
 
   @Inject
-  public CacheFactory(BlobStoreFactory blobStoreFactory) {
-    this(blobStoreFactory, 20);
+  public CacheFactory(BlobStoreFactory blobStoreFactory,
+                      DataStoreFactory dataStoreFactory,
+                      GotenbergConfigurationStore configurationStore,
+                      HotCache hotCache) {
+    this(
+      blobStoreFactory,
+      dataStoreFactory,
+      configurationStore,
+      hotCache,
+      Executors.newSingleThreadExecutor(
+        new ThreadFactoryBuilder().setNameFormat("gotenberg-cache-index-%d").setDaemon(true).build()
+      )
+    );
   }
 
   @VisibleForTesting
-  CacheFactory(BlobStoreFactory blobStoreFactory, int cacheSize) {
+  CacheFactory(BlobStoreFactory blobStoreFactory,
+               DataStoreFactory dataStoreFactory,
+               GotenbergConfigurationStore configurationStore,
+               HotCache hotCache,
+               Executor indexLoader) {
     this.blobStoreFactory = blobStoreFactory;
-    this.cacheSize = cacheSize;
+    this.dataStoreFactory = dataStoreFactory;
+    this.configurationStore = configurationStore;
+    this.hotCache = hotCache;
+    this.indexLoader = indexLoader;
   }
 
   public Cache get(Repository repository) {
-    return caches.computeIfAbsent(
+    Cache cache = caches.get(repository.getId());
+    if (cache != null) {
+      return cache;
+    }
+    Cache created = new Cache(
       repository.getId(),
-      id -> new Cache(blobStoreFactory.withName(STORE).forRepository(repository).build())
+      blobStoreFactory.withName(STORE).forRepository(repository).build(),
+      dataStoreFactory.withType(CacheEntry.class).withName(INDEX_STORE).forRepository(repository).build(),
+      true,
+      key -> {}
     );
+    cache = caches.putIfAbsent(repository.getId(), created);
+    if (cache != null) {
+      return cache;
+    }
+    // enumerating all blobs of a large cache takes some time, so we build the index in the background
+    indexLoader.execute(created::loadIndex);
+    return created;
+  }
+
+  /**
+   * Loads the indexes of the caches of all given repositories. Otherwise documents of an earlier run would not count
+   * for the total size limit until their repository is used again.
+   */
+  public void load(Collection<Repository> repositories) {
+    repositories.forEach(this::get);
+    if (configurationStore.isSharedCache()) {
+      shared();
+    }
+  }
+
+  /**
+   * Returns the view of the given repository on the cache which is shared between all repositories. Documents with
+   * the same content are stored only once, regardless of the repository they belong to.
+   */
+  public PdfCache getShared(Repository repository) {
+    return new SharedCacheView(shared(), repository.getId());
+  }
+
+  private SharedCache shared() {
+    SharedCache current = shared;
+    if (current == null) {
+      synchronized (this) {
+        current = shared;
+        if (current == null) {
+          current = new SharedCache(
+            dataStoreFactory.withType(SharedCacheReferences.class).withName(SHARED_REFERENCES_STORE).build()
+          );
+          shared = current;
+          indexLoader.execute(current.cache::loadIndex);
+        }
+      }
+    }
+    return current;
+  }
+
+  @Subscribe
+  public void onEvent(RepositoryEvent event) {
+    if (event.getEventType() == HandlerEventType.DELETE) {
+      String repositoryId = event.getItem().getId();
+      caches.remove(repositoryId);
+      hotCache.invalidatePrefix(repositoryId + "/");
+      // the shared cache is not created for the event, it may hold references from an earlier run only if enabled
+      if (shared != null || configurationStore.isSharedCache()) {
+        shared().release(repositoryId);
+      }
+    }
+  }
+
+  @Subscribe
+  public void onEvent(GotenbergConfigurationChangedEvent event) {
+    // lowered limits are enforced immediately and not only when the next document is written
+    GotenbergConfiguration configuration = event.getConfiguration();
+    allCaches()
+      .filter(cache -> cache.loaded)
+      .forEach(cache -> cache.checkLimits(configuration));
+    checkTotalSizeLimit(configuration);
+  }
+
+  /**
+   * Writes the access metadata of all caches, so that the eviction order survives a restart.
+   */
+  public void flush() {
+    allCaches().forEach(cache -> {
+      try {
+        cache.flush();
+      } catch (StoreException ex) {
+        LOG.warn("failed to store cache index", ex);
+      }
+    });
+  }
+
+  private void checkTotalSizeLimit(GotenbergConfiguration configuration) {
+    long maxBytes = megabytes(configuration.getCacheMaxMegabytes());
+    if (maxBytes <= 0) {
+      return;
+    }
+    long totalBytes = totalBytes();
+    while (totalBytes > maxBytes) {
+      // the repository which occupies the most space has to give up its least recently used entry
+      Optional<Cache> largest = allCaches()
+        .filter(cache -> cache.loaded)
+        .max(Comparator.comparingLong(cache -> cache.index.bytes()));
+      if (largest.isEmpty() || largest.get().index.size() == 0) {
+        return;
+      }
+      LOG.debug("total size limit of {} bytes reached by {} bytes, remove eldest entry", maxBytes, totalBytes);
+      largest.get().removeEldest();
+      totalBytes = totalBytes();
+    }
+  }
+
+  private long totalBytes() {
+    return allCaches().mapToLong(cache -> cache.index.bytes()).sum();
+  }
+
+  private Stream<Cache> allCaches() {
+    SharedCache current = shared;
+    if (current == null) {
+      return caches.values().stream();
+    }
+    return Stream.concat(caches.values().stream(), Stream.of(current.cache));
+  }
+
+  @Override
+  public void close() {
+    BackgroundExecutors.shutdown(indexLoader);
   }
 
-  public class Cache {
+  private static long megabytes(int megabytes) {
+    return megabytes * MEGABYTE;
+  }
+
+  public class Cache implements PdfCache {
 
+    private final String id;
     private final BlobStore blobStore;
-    private final Map<String, Instant> lru = new HashMap<>();
+    private final DataStore<CacheEntry> indexStore;
+    private final boolean repositoryLimits;
+    private final Consumer<String> removalListener;
+    private final CacheIndex index = new CacheIndex();
+    // documents which are currently written by a tee, they must not be read before they are complete
+    private final Set<String> writing = ConcurrentHashMap.newKeySet();
+
+    // the eviction is postponed until the index is loaded, otherwise we would remove new entries first
+    private volatile boolean loaded = false;
 
-    private Cache(BlobStore blobStore) {
+    private Cache(String id, BlobStore blobStore, DataStore<CacheEntry> indexStore, boolean repositoryLimits, Consumer<String> removalListener) {
+      this.id = id;
       this.blobStore = blobStore;
-      blobStore.getAll().forEach(blob -> lru.put(blob.getId(), Instant.now()));
-      checkCacheSizeLimit();
+      this.indexStore = indexStore;
+      this.repositoryLimits = repositoryLimits;
+      this.removalListener = removalListener;
+    }
+
+    private void loadIndex() {
+      try {
+        readIndex();
+      } catch (RuntimeException ex) {
+        LOG.error("failed to load cache index, eviction is limited to new entries", ex);
+      } finally {
+        loaded = true;
+      }
+      GotenbergConfiguration configuration = configurationStore.get();
+      checkCacheSizeLimit(configuration);
+      checkTotalSizeLimit(configuration);
+    }
+
+    private void readIndex() {
+      Map<String, CacheEntry> stored = indexStore.getAll();
+      Map<String, CacheEntry> entries = new HashMap<>();
+      for (Blob blob : blobStore.getAll()) {
+        CacheEntry entry = stored.get(blob.getId());
+        if (entry == null) {
+          // we know nothing about the blob, so it is the first candidate for eviction
+          entry = new CacheEntry(0, 0, blob.getSize());
+        } else {
+          entry.setSize(blob.getSize());
+        }
+        entries.put(blob.getId(), entry);
+      }
+      for (String key : stored.keySet()) {
+        if (!entries.containsKey(key)) {
+          indexStore.remove(key);
+        }
+      }
+      index.load(entries);
     }
 
-    public synchronized Optional<InputStream> get(RepositoryPath repositoryPath) {
-      String cacheKey = repositoryPath.getCacheKey();
+    @Override
+    public Optional<Pdf> get(String cacheKey) {
+      if (writing.contains(cacheKey)) {
+        return Optional.empty();
+      }
+      Optional<byte[]> hot = hotCache.get(hotKey(cacheKey));
+      if (hot.isPresent()) {
+        index.touch(cacheKey);
+        return Optional.of(Pdf.of(cacheKey, hot.get()));
+      }
       Optional<Blob> optional = blobStore.getOptional(cacheKey);
-      if (optional.isPresent()) {
-        lru.put(cacheKey, Instant.now());
+      if (optional.isEmpty()) {
+        return Optional.empty();
+      }
+      Blob blob = optional.get();
+      boolean promote = hotCache.accepts(blob.getSize()) && isFrequentlyUsed(cacheKey);
+      index.touch(cacheKey);
+      if (promote) {
+        byte[] content = read(blob);
+        hotCache.put(hotKey(cacheKey), content);
+        return Optional.of(Pdf.of(cacheKey, content));
       }
-      return optional.map(this::getInputStream);
+      return Optional.of(new Pdf(cacheKey, getInputStream(blob), blob.getSize()));
+    }
+
+    @Override
+    public boolean contains(String cacheKey) {
+      if (writing.contains(cacheKey)) {
+        return false;
+      }
+      return index.contains(cacheKey) || blobStore.getOptional(cacheKey).isPresent();
+    }
+
+    @Override
+    public OptionalLong getCachedSize(String cacheKey) {
+      if (writing.contains(cacheKey)) {
+        return OptionalLong.empty();
+      }
+      return index.sizeOf(cacheKey);
+    }
+
+    private boolean isFrequentlyUsed(String cacheKey) {
+      return index.hits(cacheKey) >= HOT_AFTER_HITS;
+    }
+
+    private byte[] read(Blob blob) {
+      try (InputStream input = blob.getInputStream()) {
+        return ByteStreams.toByteArray(input);
+      } catch (IOException e) {
+        throw new StoreException("failed to read blob", e);
+      }
+    }
+
+    private String hotKey(String cacheKey) {
+      return id + "/" + cacheKey;
     }
 
     private InputStream getInputStream(Blob blob) {
@@ -94,40 +360,311 @@ public final class CacheFactory {
       }
     }
 
-    public synchronized void set(RepositoryPath repositoryPath, InputStream content) throws IOException {
-      String cacheKey = repositoryPath.getCacheKey();
+    /**
+     * Stores the content and returns the stored document. Content which exceeds the configured file size limit is not
+     * kept in the cache, it is removed as soon as the returned document is closed.
+     */
+    @Override
+    public Pdf set(String cacheKey, InputStream content) throws IOException {
+      GotenbergConfiguration configuration = configurationStore.get();
       Blob blob = blobStore.create(cacheKey);
+      long size;
       try (OutputStream output = blob.getOutputStream()) {
-        ByteStreams.copy(content, output);
+        size = ByteStreams.copy(content, output);
         blob.commit();
       }
-      lru.put(cacheKey, Instant.now());
-      checkCacheSizeLimit();
+
+      if (!keep(configuration, cacheKey, size)) {
+        return new Pdf(cacheKey, removeOnClose(blob), size);
+      }
+      return new Pdf(cacheKey, getInputStream(blob), size);
     }
 
-    private void checkCacheSizeLimit() {
-      while (lru.size() > 0 && lru.size() > cacheSize) {
-        LOG.debug("size limit of {} reached by {}, remove eldest entry", cacheSize, lru.size());
-        removeEldest();
+    /**
+     * Returns the content, which is written to the cache while it is read. The document is stored only if the content
+     * is read completely, otherwise it is removed as soon as the returned document is closed. Until then the document is
+     * not visible for other readers.
+     */
+    @Override
+    public Pdf tee(String cacheKey, InputStream content) throws IOException {
+      writing.add(cacheKey);
+      try {
+        Blob blob = blobStore.create(cacheKey);
+        return new Pdf(cacheKey, new Tee(cacheKey, content, blob, blob.getOutputStream()), Pdf.UNKNOWN_LENGTH);
+      } catch (IOException | RuntimeException e) {
+        writing.remove(cacheKey);
+        content.close();
+        throw e;
       }
     }
 
-    private void removeEldest() {
-      Map.Entry<String, Instant> eldest = null;
-      for (Map.Entry<String, Instant> e : lru.entrySet()) {
-        if (eldest == null || e.getValue().isBefore(eldest.getValue())) {
-          eldest = e;
+    private boolean keep(GotenbergConfiguration configuration, String cacheKey, long size) {
+      long maxFileBytes = megabytes(configuration.getCacheMaxFileMegabytes());
+      if (maxFileBytes > 0 && size > maxFileBytes) {
+        LOG.debug("{} exceeds the file size limit of {} bytes with {} bytes, it is not cached", cacheKey, maxFileBytes, size);
+        return false;
+      }
+
+      indexStore.put(cacheKey, index.put(cacheKey, size));
+      if (loaded) {
+        checkCacheSizeLimit(configuration);
+        checkTotalSizeLimit(configuration);
+      }
+      return true;
+    }
+
+    private InputStream removeOnClose(Blob blob) {
+      return new FilterInputStream(getInputStream(blob)) {
+        @Override
+        public void close() throws IOException {
+          try {
+            super.close();
+          } finally {
+            blobStore.remove(blob.getId());
+          }
+        }
+      };
+    }
+
+    private void checkLimits(GotenbergConfiguration configuration) {
+      long maxFileBytes = megabytes(configuration.getCacheMaxFileMegabytes());
+      if (maxFileBytes > 0) {
+        for (String key : index.evictLargerThan(maxFileBytes)) {
+          LOG.debug("{} exceeds the file size limit of {} bytes, remove it from blob store", key, maxFileBytes);
+          remove(key);
         }
       }
+      checkCacheSizeLimit(configuration);
+    }
 
-      if (eldest == null) {
-        throw new IllegalStateException("remove eldest should not be called if the map is empty");
+    private void checkCacheSizeLimit(GotenbergConfiguration configuration) {
+      int maxEntries;
+      long maxBytes;
+      if (repositoryLimits) {
+        maxEntries = configuration.getCacheMaxEntriesPerRepository();
+        maxBytes = megabytes(configuration.getCacheMaxMegabytesPerRepository());
+      } else {
+        maxEntries = 0;
+        maxBytes = megabytes(configuration.getSharedCacheMaxMegabytes());
+      }
+      for (String key : index.evict(maxEntries, maxBytes)) {
+        LOG.debug("size limit of {} entries or {} bytes reached, remove eldest entry from blob store: {}", maxEntries, maxBytes, key);
+        remove(key);
       }
+    }
 
-      String key = eldest.getKey();
-      LOG.debug("remove eldest entry from blob store: {}", key);
+    private void removeEldest() {
+      index.evictEldest().ifPresent(key -> {
+        LOG.debug("remove eldest entry from blob store: {}", key);
+        remove(key);
+      });
+    }
+
+    private void remove(String key) {
+      hotCache.invalidate(hotKey(key));
       blobStore.remove(key);
-      lru.remove(key);
+      indexStore.remove(key);
+      removalListener.accept(key);
+    }
+
+    private void flush() {
+      index.drainModified().forEach(indexStore::put);
+    }
+
+    /**
+     * Copies every byte which is read to the blob. If the blob can not be written, the content is still returned to
+     * the reader, but it is not cached.
+     */
+    private final class Tee extends FilterInputStream {
+
+      private final String cacheKey;
+      private final Blob blob;
+      private final OutputStream output;
+
+      private long size;
+      private boolean complete;
+      private boolean failed;
+      private boolean closed;
+
+      private Tee(String cacheKey, InputStream content, Blob blob, OutputStream output) {
+        super(content);
+        this.cacheKey = cacheKey;
+        this.blob = blob;
+        this.output = output;
+      }
+
+      @Override
+      public int read() throws IOException {
+        byte[] single = new byte[1];
+        int read = read(single, 0, 1);
+        return read < 0 ? -1 : single[0] & 0xff;
+      }
+
+      @Override
+      public int read(byte[] buffer, int off, int len) throws IOException {
+        int read = super.read(buffer, off, len);
+        if (read < 0) {
+          complete = true;
+        } else if (read > 0 && !failed) {
+          write(buffer, off, read);
+        }
+        return read;
+      }
+
+      @Override
+      public long skip(long n) throws IOException {
+        // skipped bytes have to be written anyway
+        byte[] buffer = new byte[(int) Math.min(n, 8192)];
+        long skipped = 0;
+        while (skipped < n) {
+          int read = read(buffer, 0, (int) Math.min(buffer.length, n - skipped));
+          if (read < 0) {
+            break;
+          }
+          skipped += read;
+        }
+        return skipped;
+      }
+
+      @Override
+      public boolean markSupported() {
+        return false;
+      }
+
+      private void write(byte[] buffer, int off, int len) {
+        try {
+          output.write(buffer, off, len);
+          size += len;
+        } catch (IOException e) {
+          LOG.warn("failed to write {} to cache, the document is not cached", cacheKey, e);
+          failed = true;
+        }
+      }
+
+      @Override
+      public void close() throws IOException {
+        if (closed) {
+          return;
+        }
+        closed = true;
+        try {
+          super.close();
+        } finally {
+          finish();
+        }
+      }
+
+      private void finish() {
+        try {
+          output.close();
+          if (complete && !failed) {
+            blob.commit();
+            writing.remove(cacheKey);
+            if (!keep(configurationStore.get(), cacheKey, size)) {
+              blobStore.remove(blob.getId());
+            }
+            return;
+          }
+        } catch (IOException | RuntimeException e) {
+          LOG.warn("failed to store {} in cache", cacheKey, e);
+        }
+        LOG.debug("{} was not read completely, it is not cached", cacheKey);
+        index.remove(cacheKey);
+        remove(cacheKey);
+        writing.remove(cacheKey);
+      }
+    }
+  }
+
+  /**
+   * Documents which are shared between repositories. Each document keeps track of the repositories which have used
+   * it, it is removed as soon as the last of them is deleted. Documents are evicted by the size limit of the shared
+   * cache and by the total size limit.
+   */
+  private class SharedCache {
+
+    private final DataStore<SharedCacheReferences> references;
+    private final Cache cache;
+
+    private SharedCache(DataStore<SharedCacheReferences> references) {
+      this.references = references;
+      this.cache = new Cache(
+        SHARED_ID,
+        blobStoreFactory.withName(SHARED_STORE).build(),
+        dataStoreFactory.withType(CacheEntry.class).withName(SHARED_INDEX_STORE).build(),
+        false,
+        references::remove
+      );
+    }
+
+    private void reference(String cacheKey, String repositoryId) {
+      SharedCacheReferences current = references.get(cacheKey);
+      if (current != null && current.getRepositories().contains(repositoryId)) {
+        return;
+      }
+      synchronized (this) {
+        SharedCacheReferences updated = references.getOptional(cacheKey).orElseGet(SharedCacheReferences::new);
+        if (updated.getRepositories().add(repositoryId)) {
+          references.put(cacheKey, updated);
+        }
+      }
+    }
+
+    private synchronized void release(String repositoryId) {
+      references.getAll().forEach((cacheKey, current) -> {
+        if (current.getRepositories().remove(repositoryId)) {
+          if (current.getRepositories().isEmpty()) {
+            LOG.debug("remove shared entry {}, it is no longer referenced", cacheKey);
+            cache.index.remove(cacheKey);
+            cache.remove(cacheKey);
+          } else {
+            references.put(cacheKey, current);
+          }
+        }
+      });
+    }
+  }
+
+  private static class SharedCacheView implements PdfCache {
+
+    private final SharedCache shared;
+    private final String repositoryId;
+
+    private SharedCacheView(SharedCache shared, String repositoryId) {
+      this.shared = shared;
+      this.repositoryId = repositoryId;
+    }
+
+    @Override
+    public Optional<Pdf> get(String cacheKey) {
+      Optional<Pdf> content = shared.cache.get(cacheKey);
+      if (content.isPresent()) {
+        shared.reference(cacheKey, repositoryId);
+      }
+      return content;
+    }
+
+    @Override
+    public boolean contains(String cacheKey) {
+      return shared.cache.contains(cacheKey);
+    }
+
+    @Override
+    public OptionalLong getCachedSize(String cacheKey) {
+      return shared.cache.getCachedSize(cacheKey);
+    }
+
+    @Override
+    public Pdf set(String cacheKey, InputStream content) throws IOException {
+      // the reference is created first, so that a concurrent release can not remove the new document
+      shared.reference(cacheKey, repositoryId);
+      return shared.cache.set(cacheKey, content);
+    }
+
+    @Override
+    public Pdf tee(String cacheKey, InputStream content) throws IOException {
+      shared.reference(cacheKey, repositoryId);
+      return shared.cache.tee(cacheKey, content);
     }
   }
 }
@@ -0,0 +1,324 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package com.cloudogu.scm.gotenberg;
+
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Access ordered index of cache entries and their metadata. All operations are O(1) per entry, the lock is never held
+ * during blob store operations. Reads do not wait for the lock, they are recorded and applied by the next thread which
+ * acquires the lock. The number of hits, the size and the presence of an entry can be queried without the lock as well.
+ */
+class CacheIndex {
+
+  private static final int MAX_PENDING_READS = 1024;
+
+  private final Clock clock;
+  private final ReentrantLock lock = new ReentrantLock();
+  // insertion ordered, accessed entries are moved to the end by removing and adding them again
+  private final Map<String, CacheEntry> entries = new LinkedHashMap<>();
+  private final Set<String> modified = new HashSet<>();
+  private final Queue<String> pendingReads = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger pendingReadCount = new AtomicInteger();
+  // hits of every entry, counted as soon as the entry is read, it is updated together with the entries
+  private final Map<String, AtomicLong> hits = new ConcurrentHashMap<>();
+  // sizes of every entry, so that directory listings can look them up without waiting for the lock
+  private final Map<String, Long> sizes = new ConcurrentHashMap<>();
+
+  private long bytes;
+  private long lastTimestamp;
+
+  CacheIndex() {
+    this(Clock.systemUTC());
+  }
+
+  CacheIndex(Clock clock) {
+    this.clock = clock;
+  }
+
+  void touch(String key) {
+    AtomicLong counter = hits.get(key);
+    if (counter != null) {
+      counter.incrementAndGet();
+    }
+    // if the buffer is full, we drop the read, the order is only an approximation under heavy load
+    if (pendingReadCount.incrementAndGet() <= MAX_PENDING_READS) {
+      pendingReads.add(key);
+    } else {
+      pendingReadCount.decrementAndGet();
+    }
+    if (lock.tryLock()) {
+      try {
+        drainPendingReads();
+      } finally {
+        lock.unlock();
+      }
+    }
+  }
+
+  CacheEntry put(String key, long size) {
+    lock.lock();
+    try {
+      drainPendingReads();
+      CacheEntry entry = new CacheEntry(nextTimestamp(), 0, size);
+      add(key, entry);
+      modified.remove(key);
+      return entry.copy();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Adds entries which are known from a previous run. The entries are ordered by their last access, so that the
+   * eviction order survives a restart. Entries which were added in the meantime are considered as more recently used
+   * than all loaded ones.
+   */
+  void load(Map<String, CacheEntry> known) {
+    List<Map.Entry<String, CacheEntry>> sorted = new ArrayList<>(known.entrySet());
+    sorted.sort(Comparator.comparingLong(e -> e.getValue().getLastAccess()));
+    lock.lock();
+    try {
+      drainPendingReads();
+      Map<String, CacheEntry> current = new LinkedHashMap<>(entries);
+      entries.clear();
+      bytes = 0;
+      for (Map.Entry<String, CacheEntry> e : sorted) {
+        if (!current.containsKey(e.getKey())) {
+          add(e.getKey(), e.getValue().copy());
+          lastTimestamp = Math.max(lastTimestamp, e.getValue().getLastAccess());
+        }
+      }
+      current.forEach(this::add);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void add(String key, CacheEntry entry) {
+    CacheEntry previous = entries.remove(key);
+    entries.put(key, entry);
+    hits.put(key, new AtomicLong(entry.getHits()));
+    sizes.put(key, entry.getSize());
+    if (previous != null) {
+      bytes -= previous.getSize();
+    }
+    bytes += entry.getSize();
+  }
+
+  void remove(String key) {
+    lock.lock();
+    try {
+      CacheEntry previous = entries.remove(key);
+      if (previous != null) {
+        bytes -= previous.getSize();
+      }
+      hits.remove(key);
+      sizes.remove(key);
+      modified.remove(key);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Removes the least recently used entries from the index until both limits are satisfied and returns their keys.
+   * A limit which is zero or negative is treated as unlimited.
+   */
+  List<String> evict(int maxEntries, long maxBytes) {
+    List<String> evicted = new ArrayList<>();
+    lock.lock();
+    try {
+      drainPendingReads();
+      Iterator<Map.Entry<String, CacheEntry>> iterator = entries.entrySet().iterator();
+      while (iterator.hasNext() && isExceeded(maxEntries, maxBytes)) {
+        Map.Entry<String, CacheEntry> eldest = iterator.next();
+        bytes -= eldest.getValue().getSize();
+        hits.remove(eldest.getKey());
+        sizes.remove(eldest.getKey());
+        modified.remove(eldest.getKey());
+        evicted.add(eldest.getKey());
+        iterator.remove();
+      }
+    } finally {
+      lock.unlock();
+    }
+    return evicted;
+  }
+
+  /**
+   * Removes all entries which are larger than the given size from the index and returns their keys.
+   */
+  List<String> evictLargerThan(long maxSize) {
+    List<String> evicted = new ArrayList<>();
+    lock.lock();
+    try {
+      drainPendingReads();
+      Iterator<Map.Entry<String, CacheEntry>> iterator = entries.entrySet().iterator();
+      while (iterator.hasNext()) {
+        Map.Entry<String, CacheEntry> entry = iterator.next();
+        if (entry.getValue().getSize() > maxSize) {
+          bytes -= entry.getValue().getSize();
+          hits.remove(entry.getKey());
+          sizes.remove(entry.getKey());
+          modified.remove(entry.getKey());
+          evicted.add(entry.getKey());
+          iterator.remove();
+        }
+      }
+    } finally {
+      lock.unlock();
+    }
+    return evicted;
+  }
+
+  Optional<String> evictEldest() {
+    lock.lock();
+    try {
+      drainPendingReads();
+      Iterator<Map.Entry<String, CacheEntry>> iterator = entries.entrySet().iterator();
+      if (!iterator.hasNext()) {
+        return Optional.empty();
+      }
+      Map.Entry<String, CacheEntry> eldest = iterator.next();
+      bytes -= eldest.getValue().getSize();
+      hits.remove(eldest.getKey());
+      sizes.remove(eldest.getKey());
+      modified.remove(eldest.getKey());
+      iterator.remove();
+      return Optional.of(eldest.getKey());
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private boolean isExceeded(int maxEntries, long maxBytes) {
+    return (maxEntries > 0 && entries.size() > maxEntries) || (maxBytes > 0 && bytes > maxBytes);
+  }
+
+  /**
+   * Returns a copy of every entry which was accessed since the last call.
+   */
+  Map<String, CacheEntry> drainModified() {
+    Map<String, CacheEntry> result = new LinkedHashMap<>();
+    lock.lock();
+    try {
+      drainPendingReads();
+      for (String key : modified) {
+        CacheEntry entry = entries.get(key);
+        if (entry != null) {
+          result.put(key, entry.copy());
+        }
+      }
+      modified.clear();
+    } finally {
+      lock.unlock();
+    }
+    return result;
+  }
+
+  private void drainPendingReads() {
+    String key;
+    while ((key = pendingReads.poll()) != null) {
+      pendingReadCount.decrementAndGet();
+      CacheEntry entry = entries.remove(key);
+      if (entry != null) {
+        entry.setLastAccess(nextTimestamp());
+        entry.setHits(entry.getHits() + 1);
+        entries.put(key, entry);
+        modified.add(key);
+      }
+    }
+  }
+
+  /**
+   * Returns the current time, but strictly increasing, so that the order of the entries can be restored from their
+   * timestamps.
+   */
+  private long nextTimestamp() {
+    lastTimestamp = Math.max(clock.millis(), lastTimestamp + 1);
+    return lastTimestamp;
+  }
+
+  Optional<CacheEntry> get(String key) {
+    lock.lock();
+    try {
+      drainPendingReads();
+      return Optional.ofNullable(entries.get(key)).map(CacheEntry::copy);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Returns {@code true} if the index contains the entry, without waiting for the lock.
+   */
+  boolean contains(String key) {
+    return hits.containsKey(key);
+  }
+
+  /**
+   * Returns how often the entry was read, without waiting for the lock. Reads are counted immediately, even if they
+   * are not yet applied to the access order.
+   */
+  long hits(String key) {
+    AtomicLong counter = hits.get(key);
+    return counter != null ? counter.get() : 0;
+  }
+
+  /**
+   * Returns the size of the entry without waiting for the lock and without counting it as access.
+   */
+  OptionalLong sizeOf(String key) {
+    Long size = sizes.get(key);
+    return size != null ? OptionalLong.of(size) : OptionalLong.empty();
+  }
+
+  int size() {
+    lock.lock();
+    try {
+      return entries.size();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  long bytes() {
+    lock.lock();
+    try {
+      return bytes;
+    } finally {
+      lock.unlock();
+    }
+  }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package com.cloudogu.scm.gotenberg;
+
+import sonia.scm.plugin.Extension;
+import sonia.scm.repository.RepositoryManager;
+import sonia.scm.web.security.AdministrationContext;
+
+import jakarta.inject.Inject;
+import jakarta.servlet.ServletContextEvent;
+import jakarta.servlet.ServletContextListener;
+
+/**
+ * Loads the cache indexes of all repositories at startup, so that the total size limit of the cache is enforced
+ * for documents which were stored before the restart.
+ */
+@Extension
+public class CacheIndexLoader implements ServletContextListener {
+
+  private final AdministrationContext administrationContext;
+  private final RepositoryManager repositoryManager;
+  private final CacheFactory cacheFactory;
+
+  @Inject
+  public CacheIndexLoader(AdministrationContext administrationContext,
+                          RepositoryManager repositoryManager,
+                          CacheFactory cacheFactory) {
+    this.administrationContext = administrationContext;
+    this.repositoryManager = repositoryManager;
+    this.cacheFactory = cacheFactory;
+  }
+
+  @Override
+  public void contextInitialized(ServletContextEvent sce) {
+    // the indexes are read by the background loader of the factory, the startup is not delayed
+    administrationContext.runAsAdmin(() -> cacheFactory.load(repositoryManager.getAll()));
+  }
+
+  @Override
+  public void contextDestroyed(ServletContextEvent sce) {
+    // nothing to do
+  }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package com.cloudogu.scm.gotenberg;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import lombok.AllArgsConstructor;
+import lombok.EqualsAndHashCode;
+import sonia.scm.repository.Repository;
+
+import jakarta.inject.Inject;
+import jakarta.inject.Singleton;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Resolves the key of the converted document from the content of the source file, the extension and the conversion
+ * options. The same content is converted only once, regardless of revision and path. The content is identified by the
+ * id the repository already knows, e.g. the id of the git blob, only if no {@link ContentIdProvider} supports the
+ * repository, the content is read and hashed.
+ */
+@Singleton
+public class CacheKeyResolver {
+
+  private static final long MAX_KEYS = 10_000;
+
+  private final FileResolver fileResolver;
+  private final Set<ContentIdProvider> contentIdProviders;
+  // keyed by the requested path itself, so that the lookup of a known key neither hashes nor concatenates strings
+  private final Cache<PathKey, String> keys = CacheBuilder.newBuilder()
+    .maximumSize(MAX_KEYS)
+    .build();
+
+  @Inject
+  public CacheKeyResolver(FileResolver fileResolver, Set<ContentIdProvider> contentIdProviders) {
+    this.fileResolver = fileResolver;
+    this.contentIdProviders = contentIdProviders;
+  }
+
+  public String resolve(Repository repository, RepositoryPath path) throws IOException {
+    try {
+      return keys.get(new PathKey(repository.getId(), path.getRevision(), path.getPath()), () -> createKey(repository, path));
+    } catch (ExecutionException ex) {
+      if (ex.getCause() instanceof IOException) {
+        throw (IOException) ex.getCause();
+      }
+      throw new IllegalStateException("failed to resolve cache key", ex.getCause());
+    } catch (UncheckedExecutionException ex) {
+      if (ex.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) ex.getCause();
+      }
+      throw ex;
+    }
+  }
+
+  /**
+   * Returns the key, if it was resolved before. The content of the file is never read.
+   */
+  public Optional<String> getIfResolved(Repository repository, RepositoryPath path) {
+    return getIfResolved(repository, path.getRevision(), path.getPath());
+  }
+
+  /**
+   * Returns the key of the file at the given revision, if it was resolved before. The content of the file is never
+   * read.
+   */
+  public Optional<String> getIfResolved(Repository repository, String revision, String path) {
+    return Optional.ofNullable(keys.getIfPresent(new PathKey(repository.getId(), revision, path)));
+  }
+
+  @SuppressWarnings("UnstableApiUsage")
+  private String createKey(Repository repository, RepositoryPath path) throws IOException {
+    String contentId = contentId(repository, path);
+    String extension = path.getExtension().orElse("");
+    return Hashing.sha256()
+      .hashString(Converter.CONVERSION + "/" + extension + "/" + contentId, StandardCharsets.UTF_8)
+      .toString();
+  }
+
+  private String contentId(Repository repository, RepositoryPath path) throws IOException {
+    for (ContentIdProvider provider : contentIdProviders) {
+      Optional<String> contentId = provider.getContentId(repository, path);
+      if (contentId.isPresent()) {
+        return contentId.get();
+      }
+    }
+    return fileResolver.hash(repository, path);
+  }
+
+  @EqualsAndHashCode
+  @AllArgsConstructor
+  private static final class PathKey {
+    private final String repositoryId;
+    private final String revision;
+    private final String path;
+  }
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package com.cloudogu.scm.gotenberg;
+
+import sonia.scm.plugin.ExtensionPoint;
+import sonia.scm.repository.Repository;
+
+import java.io.IOException;
+import java.util.Optional;
+
+/**
+ * Provides the id of the content of a file, which is already known to the repository, e.g. the id of a git blob. It
+ * replaces the hash of the content in the cache key, so that the content does not have to be read for it. The id
+ * must change whenever the content changes.
+ */
+@ExtensionPoint
+public interface ContentIdProvider {
+
+  /**
+   * Returns the id of the content or an empty optional, if the type of the repository is not supported.
+   */
+  Optional<String> getContentId(Repository repository, RepositoryPath path) throws IOException;
+
+}
@@ -0,0 +1,322 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package com.cloudogu.scm.gotenberg;
+
+import com.google.common.annotations.VisibleForTesting;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.apache.shiro.SecurityUtils;
+import sonia.scm.repository.Repository;
+
+import jakarta.inject.Inject;
+import jakarta.inject.Singleton;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limits the number of concurrent conversions, so that Gotenberg is not overloaded. Conversions which exceed the limit
+ * wait in a bounded queue. A conversion is rejected, if the queue is full, if it waits too long or if the user or the
+ * repository already occupies too many running or waiting conversions. Conversions which are queued elsewhere, e.g.
+ * background conversions, reserve their place when they are queued, so that they count as waiting from the start.
+ */
+@Singleton
+public class ConversionLimiter {
+
+  private static final String ANONYMOUS = "_anonymous";
+  private static final long DEFAULT_MAX_WAIT_SECONDS = 60;
+  private static final int RETRY_AFTER_SECONDS = 5;
+
+  private final GotenbergConfigurationStore configurationStore;
+  private final long maxWaitNanos;
+
+  private final ReentrantLock lock = new ReentrantLock(true);
+  private final Condition available = lock.newCondition();
+  private final Map<String, Integer> users = new HashMap<>();
+  private final Map<String, Integer> repositories = new HashMap<>();
+  private int running;
+  private int waiting;
+
+  private final Timer waitTimer;
+  private final Counter rejected;
+
+  @Inject
+  public ConversionLimiter(GotenbergConfigurationStore configurationStore, MeterRegistry meterRegistry) {
+    this(configurationStore, meterRegistry, DEFAULT_MAX_WAIT_SECONDS, TimeUnit.SECONDS);
+  }
+
+  @VisibleForTesting
+  ConversionLimiter(GotenbergConfigurationStore configurationStore, MeterRegistry meterRegistry, long maxWait, TimeUnit unit) {
+    this.configurationStore = configurationStore;
+    this.maxWaitNanos = unit.toNanos(maxWait);
+    this.waitTimer = Timer.builder("scm.gotenberg.conversions.wait")
+      .description("Time conversions waited for a free slot")
+      .register(meterRegistry);
+    this.rejected = Counter.builder("scm.gotenberg.conversions.rejected")
+      .description("Number of conversions which were rejected, because the limits were exceeded")
+      .register(meterRegistry);
+    Gauge.builder("scm.gotenberg.conversions.queued", this, ConversionLimiter::getWaiting)
+      .description("Number of conversions which wait for a free slot")
+      .register(meterRegistry);
+    Gauge.builder("scm.gotenberg.conversions.active", this, ConversionLimiter::getRunning)
+      .description("Number of running conversions")
+      .register(meterRegistry);
+  }
+
+  /**
+   * Waits until the conversion may start. The returned permit must be closed, when the conversion has finished.
+   *
+   * @throws ConversionLimitExceededException if the conversion is rejected
+   */
+  public Permit acquire(Repository repository) {
+    return reserve(repository).acquire();
+  }
+
+  /**
+   * Reserves a place in the queue without waiting for a free slot. The reservation counts against the limits of the
+   * user and the repository until it is either acquired or closed.
+   *
+   * @throws ConversionLimitExceededException if the conversion is rejected
+   */
+  public Reservation reserve(Repository repository) {
+    GotenbergConfiguration configuration = configurationStore.get();
+    String user = currentUser();
+    String repositoryId = repository.getId();
+    int maxConcurrent = configuration.getMaxConcurrentConversions();
+
+    lock.lock();
+    try {
+      if (isExceeded(users, user, configuration.getMaxConversionsPerUser())) {
+        throw reject("too many conversions for user " + user);
+      }
+      if (isExceeded(repositories, repositoryId, configuration.getMaxConversionsPerRepository())) {
+        throw reject("too many conversions for repository " + repository);
+      }
+      if (isFull(maxConcurrent) && waiting >= configuration.getMaxQueuedConversions()) {
+        throw reject("conversion queue is full");
+      }
+
+      // waiting conversions count as well, so that a single user can not fill the queue
+      users.merge(user, 1, Integer::sum);
+      repositories.merge(repositoryId, 1, Integer::sum);
+      waiting++;
+    } finally {
+      lock.unlock();
+    }
+    return new Reservation(user, repositoryId, maxConcurrent, null);
+  }
+
+  /**
+   * Reserves a slot for a speculative conversion, which starts only if a slot is free right now and no other
+   * conversion waits for one. The reservation is acquired without waiting. Speculative conversions never wait, so
+   * that they do not delay conversions which somebody waits for.
+   */
+  public Optional<Reservation> tryReserve(Repository repository) {
+    GotenbergConfiguration configuration = configurationStore.get();
+    String user = currentUser();
+    String repositoryId = repository.getId();
+    int maxConcurrent = configuration.getMaxConcurrentConversions();
+
+    lock.lock();
+    try {
+      if (waiting > 0
+        || isFull(maxConcurrent)
+        || isExceeded(users, user, configuration.getMaxConversionsPerUser())
+        || isExceeded(repositories, repositoryId, configuration.getMaxConversionsPerRepository())) {
+        return Optional.empty();
+      }
+      users.merge(user, 1, Integer::sum);
+      repositories.merge(repositoryId, 1, Integer::sum);
+      running++;
+    } finally {
+      lock.unlock();
+    }
+    return Optional.of(new Reservation(user, repositoryId, maxConcurrent, new Permit(user, repositoryId)));
+  }
+
+  private void awaitSlot(int maxConcurrent) {
+    try {
+      long remaining = maxWaitNanos;
+      while (isFull(maxConcurrent)) {
+        if (remaining <= 0) {
+          throw reject("timeout while waiting for a free conversion slot");
+        }
+        remaining = available.awaitNanos(remaining);
+      }
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw reject("interrupted while waiting for a free conversion slot");
+    }
+  }
+
+  private boolean isFull(int maxConcurrent) {
+    return maxConcurrent > 0 && running >= maxConcurrent;
+  }
+
+  private boolean isExceeded(Map<String, Integer> counts, String key, int max) {
+    return max > 0 && counts.getOrDefault(key, 0) >= max;
+  }
+
+  private ConversionLimitExceededException reject(String message) {
+    rejected.increment();
+    return new ConversionLimitExceededException(message, RETRY_AFTER_SECONDS);
+  }
+
+  private void release(String user, String repositoryId) {
+    lock.lock();
+    try {
+      running--;
+      decrement(users, user);
+      decrement(repositories, repositoryId);
+      available.signal();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void cancel(String user, String repositoryId) {
+    lock.lock();
+    try {
+      waiting--;
+      decrement(users, user);
+      decrement(repositories, repositoryId);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void decrement(Map<String, Integer> counts, String key) {
+    counts.computeIfPresent(key, (k, count) -> count > 1 ? count - 1 : null);
+  }
+
+  private String currentUser() {
+    Object principal = SecurityUtils.getSubject().getPrincipal();
+    return principal != null ? principal.toString() : ANONYMOUS;
+  }
+
+  int getRunning() {
+    lock.lock();
+    try {
+      return running;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  int getWaiting() {
+    lock.lock();
+    try {
+      return waiting;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * A place in the queue. The reservation must be closed, if the conversion is not started, closing an acquired
+   * reservation has no effect.
+   */
+  public class Reservation implements AutoCloseable {
+
+    private final String user;
+    private final String repositoryId;
+    private final int maxConcurrent;
+    // the permit of a reservation which got its slot right away
+    private final Permit permit;
+    private boolean done = false;
+
+    private Reservation(String user, String repositoryId, int maxConcurrent, Permit permit) {
+      this.user = user;
+      this.repositoryId = repositoryId;
+      this.maxConcurrent = maxConcurrent;
+      this.permit = permit;
+    }
+
+    /**
+     * Waits until the conversion may start. The returned permit must be closed, when the conversion has finished.
+     *
+     * @throws ConversionLimitExceededException if no slot becomes free in time
+     */
+    public Permit acquire() {
+      long start = System.nanoTime();
+      lock.lock();
+      try {
+        if (done) {
+          throw new IllegalStateException("reservation was already used");
+        }
+        done = true;
+        if (permit != null) {
+          return permit;
+        }
+        try {
+          awaitSlot(maxConcurrent);
+        } catch (ConversionLimitExceededException ex) {
+          cancel(user, repositoryId);
+          throw ex;
+        }
+        waiting--;
+        running++;
+      } finally {
+        lock.unlock();
+      }
+      waitTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+      return new Permit(user, repositoryId);
+    }
+
+    @Override
+    public void close() {
+      lock.lock();
+      try {
+        if (!done) {
+          done = true;
+          if (permit != null) {
+            permit.close();
+          } else {
+            cancel(user, repositoryId);
+          }
+        }
+      } finally {
+        lock.unlock();
+      }
+    }
+  }
+
+  public class Permit implements AutoCloseable {
+
+    private final String user;
+    private final String repositoryId;
+    private boolean released = false;
+
+    private Permit(String user, String repositoryId) {
+      this.user = user;
+      this.repositoryId = repositoryId;
+    }
+
+    @Override
+    public void close() {
+      if (!released) {
+        released = true;
+        release(user, repositoryId);
+      }
+    }
+  }
+}
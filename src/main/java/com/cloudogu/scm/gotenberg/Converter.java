@@ -18,61 +18,362 @@ package com.cloudogu.scm.gotenberg;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.ImmutableSet;
-import sonia.scm.io.ContentTypeResolver;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import lombok.extern.slf4j.Slf4j;
 import sonia.scm.net.ahc.AdvancedHttpClient;
 import sonia.scm.net.ahc.AdvancedHttpResponse;
-import sonia.scm.util.HttpUtil;
 
 import jakarta.inject.Inject;
+import jakarta.inject.Singleton;
+import java.io.Closeable;
 
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.util.OptionalLong;
 import java.util.Set;
-import java.util.function.Supplier;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
-public final class Converter {
+@Slf4j
+@Singleton
+public final class Converter implements Closeable {
 
-  private static final Set<String> CONVERTABLE = ImmutableSet.of(
+  @VisibleForTesting
+  static final Extensions CONVERTABLE = new Extensions(ImmutableSet.of(
     "bib", "doc", "xml", "docx", "fodt", "html", "ltx", "txt", "odt", "ott", "pdb", "pdf", "psw", "rtf", "sdw", "stw",
     "uot", "vor", "wps", "epub", "png", "bmp", "emf", "eps", "fodg", "gif", "jpg", "met", "odd", "otg", "pbm",
     "pct", "pgm", "ppm", "ras", "std", "svg", "svm", "swf", "sxd", "sxw", "tiff", "xhtml", "xpm", "fodp", "potm", "pot",
     "pptx", "pps", "ppt", "pwp", "sda", "sdd", "sti", "sxi", "uop", "wmf", "csv", "dbf", "dif", "fods", "ods", "ots",
     "pxl", "sdc", "slk", "stc", "sxc", "uos", "xls", "xlt", "xlsx", "tif", "jpeg", "odp"
-  );
+  ));
+
+  // identifies the conversion options, it is part of the cache key
+  static final String CONVERSION = "forms/libreoffice/convert";
+
+  private static final int SERVER_ERROR = 500;
+  // answers of proxies or an overloaded gotenberg, the conversion itself has not failed
+  private static final Set<Integer> TRANSIENT_ERRORS = ImmutableSet.of(502, 503, 504);
+  private static final long BACKOFF_MILLIS = 250;
+  private static final long MAX_BACKOFF_MILLIS = 4000;
+  // requests which were abandoned after a timeout occupy their thread until they return
+  private static final int MAX_REQUEST_THREADS = 64;
+  private static final long IDLE_THREAD_SECONDS = 60;
+  private static final int RETRY_AFTER_SECONDS = 5;
 
   private final GotenbergConfigurationStore configurationStore;
+  private final GotenbergBackends backends;
   private final AdvancedHttpClient client;
+  private final ResponseWatchdog watchdog;
+  private final Executor requestExecutor;
+  private final long backoffMillis;
 
   @Inject
-  public Converter(GotenbergConfigurationStore configurationStore, AdvancedHttpClient client) {
-    this.configurationStore = configurationStore;
-    this.client = client;
+  public Converter(GotenbergConfigurationStore configurationStore, GotenbergBackends backends, AdvancedHttpClient client, ResponseWatchdog watchdog) {
+    this(
+      configurationStore,
+      backends,
+      client,
+      watchdog,
+      new ThreadPoolExecutor(
+        0,
+        MAX_REQUEST_THREADS,
+        IDLE_THREAD_SECONDS,
+        TimeUnit.SECONDS,
+        new SynchronousQueue<>(),
+        new ThreadFactoryBuilder().setNameFormat("gotenberg-request-%d").setDaemon(true).build()
+      ),
+      BACKOFF_MILLIS
+    );
   }
 
   @VisibleForTesting
-  Converter(GotenbergConfigurationStore configurationStore, AdvancedHttpClient client, ContentTypeResolver contentTypeResolver, Supplier<String> boundaryGenerator) {
+  Converter(GotenbergConfigurationStore configurationStore, GotenbergBackends backends, AdvancedHttpClient client, ResponseWatchdog watchdog, Executor requestExecutor, long backoffMillis) {
     this.configurationStore = configurationStore;
+    this.backends = backends;
     this.client = client;
+    this.watchdog = watchdog;
+    this.requestExecutor = requestExecutor;
+    this.backoffMillis = backoffMillis;
   }
 
   public boolean isConvertable(String extension) {
     return CONVERTABLE.contains(extension);
   }
 
-  public InputStream convert(RepositoryPath path, InputStream content) throws IOException {
-    String url = createConvertUrl();
-    AdvancedHttpResponse response = client.post(url)
-      .formContent()
-      .file("files", path.getFilename(), content)
-      .build()
-      .request();
+  /**
+   * Returns {@code true} if the extension of the path is convertable. Unlike {@link #isConvertable(String)} it does
+   * not require to extract the extension first, so it is cheap enough for every file of a directory listing.
+   */
+  public boolean isConvertablePath(String path) {
+    return CONVERTABLE.matches(path);
+  }
+
+  /**
+   * Sends the content to Gotenberg and returns the converted document. The content is streamed as multipart body and
+   * is not buffered in memory. Transient failures are retried with the content opened again, as long as no byte of the
+   * converted document was returned. The whole conversion has to be finished within the configured timeout.
+   * <p>
+   * The release is run once the request to Gotenberg has finished, that is when the returned document is closed, when
+   * the conversion fails or, if a request was abandoned after the timeout, when the abandoned request returns.
+   */
+  public InputStream convert(RepositoryPath path, Content content, Runnable release) throws IOException {
+    Release once = new Release(release);
+    try {
+      InputStream converted = convert(path, content, once);
+      return new FilterInputStream(converted) {
+        @Override
+        public void close() throws IOException {
+          try {
+            super.close();
+          } finally {
+            once.run();
+          }
+        }
+      };
+    } catch (IOException | RuntimeException e) {
+      once.runUnlessDeferred();
+      throw e;
+    }
+  }
+
+  private InputStream convert(RepositoryPath path, Content content, Release release) throws IOException {
+    GotenbergConfiguration configuration = configurationStore.get();
+    long deadline = System.currentTimeMillis() + configuration.conversionTimeoutMillis();
+    // the length is sent as content length of every attempt, so the content does not have to be counted
+    OptionalLong length = content.getLength();
+    for (int retry = 0; ; retry++) {
+      try {
+        return attempt(path, content, length, configuration, deadline, release);
+      } catch (TransientFailure failure) {
+        long backoff = backoff(retry);
+        if (retry >= configuration.getConversionRetries() || System.currentTimeMillis() + backoff >= deadline) {
+          throw failure.unwrap();
+        }
+        log.debug("conversion of {} failed, retry in {}ms", path, backoff, failure.getCause());
+        sleep(backoff);
+      }
+    }
+  }
+
+  private InputStream attempt(RepositoryPath path, Content content, OptionalLong length, GotenbergConfiguration configuration, long deadline, Release release) throws IOException, TransientFailure {
+    InputStream stream = content.open();
+    GotenbergBackends.Lease lease;
+    try {
+      lease = backends.acquire();
+    } catch (RuntimeException e) {
+      stream.close();
+      throw e;
+    }
+    AdvancedHttpResponse response;
+    try {
+      response = request(lease, new MultipartBody("files", path.getFilename(), stream, length, content), deadline, release);
+    } catch (GotenbergUnavailableException e) {
+      // the request was not sent, so the server is not to blame
+      lease.close();
+      throw e;
+    } catch (TransientFailure | IOException | RuntimeException e) {
+      lease.failed();
+      if (!release.isDeferred()) {
+        lease.close();
+      }
+      throw e;
+    }
     if (!response.isSuccessful()) {
-      throw new GotenbergServerException("Unexpected response by Gotenberg server: " + response.getStatus());
+      // the connection is returned to the pool of the http client only if the error response is closed
+      discard(response);
+      // client errors are caused by the document and not by the server
+      if (response.getStatus() >= SERVER_ERROR) {
+        lease.failed();
+      }
+      lease.close();
+      GotenbergServerException exception = new GotenbergServerException("Unexpected response by Gotenberg server: " + response.getStatus());
+      if (TRANSIENT_ERRORS.contains(response.getStatus())) {
+        throw new TransientFailure(exception);
+      }
+      throw exception;
     }
-    return response.contentAsStream();
+    lease.succeeded();
+    // the request is outstanding until the converted document was read
+    long idleTimeoutMillis = TimeUnit.SECONDS.toMillis(configuration.getReadTimeoutSeconds());
+    return lease.track(watchdog.watch(response.contentAsStream(), idleTimeoutMillis, Math.max(1, remaining(deadline))));
+  }
+
+  /**
+   * Sends the request from a separate thread, because the http client does not support a timeout per request. If the
+   * deadline passes, the upload is aborted. The thread can not be interrupted while it waits for the answer of
+   * Gotenberg, so the lease and the release are kept until the abandoned request returns.
+   */
+  private AdvancedHttpResponse request(GotenbergBackends.Lease lease, MultipartBody body, long deadline, Release release) throws IOException, TransientFailure {
+    CompletableFuture<AdvancedHttpResponse> future;
+    try {
+      future = CompletableFuture.supplyAsync(() -> {
+        try {
+          return client.post(lease.url("/" + CONVERSION))
+            .contentType(body.getContentType())
+            .rawContent(body)
+            .request();
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      }, requestExecutor);
+    } catch (RejectedExecutionException e) {
+      body.abort();
+      throw new GotenbergUnavailableException("too many pending requests to gotenberg", RETRY_AFTER_SECONDS);
+    }
+    try {
+      AdvancedHttpResponse response = future.get(Math.max(1, remaining(deadline)), TimeUnit.MILLISECONDS);
+      body.close();
+      return response;
+    } catch (TimeoutException e) {
+      abandon(future, lease, body, release);
+      throw new GotenbergServerException("Gotenberg did not answer in time");
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      abandon(future, lease, body, release);
+      throw new InterruptedIOException("interrupted while waiting for gotenberg");
+    } catch (ExecutionException e) {
+      body.close();
+      Throwable cause = e.getCause();
+      if (cause instanceof UncheckedIOException) {
+        // connection refused or reset, the request can be sent again
+        throw new TransientFailure(((UncheckedIOException) cause).getCause());
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      throw new IllegalStateException("request to gotenberg failed", cause);
+    }
+  }
+
+  private static void abandon(CompletableFuture<AdvancedHttpResponse> future, GotenbergBackends.Lease lease, MultipartBody body, Release release) {
+    release.defer();
+    future.whenComplete((response, failure) -> {
+      if (response != null) {
+        discard(response);
+      }
+      lease.close();
+      release.run();
+    });
+    try {
+      // a running upload fails with the next read, an answer which is already in progress is bounded by the read
+      // timeout of the http client
+      body.abort();
+    } catch (IOException e) {
+      log.debug("failed to close content of abandoned request", e);
+    }
+  }
+
+  private static void discard(AdvancedHttpResponse response) {
+    try {
+      InputStream content = response.contentAsStream();
+      // error responses may come without body
+      if (content != null) {
+        content.close();
+      }
+    } catch (IOException e) {
+      log.debug("failed to close discarded response of gotenberg", e);
+    }
+  }
+
+  private static long remaining(long deadline) {
+    return deadline - System.currentTimeMillis();
+  }
+
+  private long backoff(int retry) {
+    long exponential = Math.min(MAX_BACKOFF_MILLIS, backoffMillis << Math.min(retry, 16));
+    // half of the backoff is random, so that retries of concurrent conversions are spread
+    return exponential / 2 + ThreadLocalRandom.current().nextLong(exponential / 2 + 1);
   }
 
-  private String createConvertUrl() {
-    return HttpUtil.append(configurationStore.get().getUrl(), "/forms/libreoffice/convert");
+  private static void sleep(long millis) throws InterruptedIOException {
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("interrupted while waiting for retry");
+    }
+  }
+
+  @Override
+  public void close() {
+    BackgroundExecutors.shutdown(requestExecutor);
+  }
+
+  /**
+   * The content of the document which should be converted. It is opened again for each attempt.
+   */
+  @FunctionalInterface
+  public interface Content {
+    InputStream open() throws IOException;
+
+    /**
+     * Returns the length of the content, if it is known without reading it. Otherwise the content is read once more
+     * to compute the content length of the upload.
+     */
+    default OptionalLong getLength() throws IOException {
+      return OptionalLong.empty();
+    }
+  }
+
+  /**
+   * Runs the release of a conversion once. The release is deferred, while an abandoned request is still running.
+   */
+  private static final class Release {
+
+    private final Runnable release;
+    private final AtomicBoolean released = new AtomicBoolean();
+    private volatile boolean deferred;
+
+    private Release(Runnable release) {
+      this.release = release;
+    }
+
+    private void defer() {
+      deferred = true;
+    }
+
+    private boolean isDeferred() {
+      return deferred;
+    }
+
+    private void run() {
+      if (released.compareAndSet(false, true)) {
+        release.run();
+      }
+    }
+
+    private void runUnlessDeferred() {
+      if (!deferred) {
+        run();
+      }
+    }
+  }
+
+  private static final class TransientFailure extends Exception {
+
+    private TransientFailure(IOException cause) {
+      super(cause);
+    }
+
+    private TransientFailure(GotenbergServerException cause) {
+      super(cause);
+    }
+
+    private IOException unwrap() {
+      if (getCause() instanceof GotenbergServerException) {
+        throw (GotenbergServerException) getCause();
+      }
+      return (IOException) getCause();
+    }
   }
 }
@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package com.cloudogu.scm.gotenberg;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.RateLimiter;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import sonia.scm.repository.FileObject;
+import sonia.scm.repository.NamespaceAndName;
+
+import jakarta.inject.Inject;
+import jakarta.inject.Singleton;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Speculatively converts the smallest documents of a directory, when the directory is browsed, so that a click on
+ * one of them is likely served from the cache. Each directory is prefetched at most once in a while and the number of
+ * prefetched directories is rate limited, directories which exceed the limit are ignored. The documents are converted
+ * on the speculative lane of the {@link PdfService}, which drops them if it is busy.
+ */
+@Singleton
+public class DirectoryPrefetcher {
+
+  private static final double DIRECTORIES_PER_SECOND = 2;
+  private static final long MAX_RECENT_DIRECTORIES = 1_000;
+  private static final long RECENT_EXPIRATION_MINUTES = 10;
+
+  private final GotenbergConfigurationStore configurationStore;
+  private final PdfService pdfService;
+  private final RateLimiter rateLimiter;
+  private final Cache<String, Boolean> recentDirectories = CacheBuilder.newBuilder()
+    .maximumSize(MAX_RECENT_DIRECTORIES)
+    .expireAfterWrite(RECENT_EXPIRATION_MINUTES, TimeUnit.MINUTES)
+    .build();
+  private final Counter scheduledCounter;
+  private final Counter droppedCounter;
+
+  @Inject
+  public DirectoryPrefetcher(GotenbergConfigurationStore configurationStore, PdfService pdfService, MeterRegistry meterRegistry) {
+    this(configurationStore, pdfService, meterRegistry, RateLimiter.create(DIRECTORIES_PER_SECOND));
+  }
+
+  @VisibleForTesting
+  DirectoryPrefetcher(GotenbergConfigurationStore configurationStore,
+                      PdfService pdfService,
+                      MeterRegistry meterRegistry,
+                      RateLimiter rateLimiter) {
+    this.configurationStore = configurationStore;
+    this.pdfService = pdfService;
+    this.rateLimiter = rateLimiter;
+    this.scheduledCounter = Counter.builder("scm.gotenberg.prefetch.documents")
+      .description("Number of documents which were scheduled for conversion, because their directory was browsed")
+      .register(meterRegistry);
+    this.droppedCounter = Counter.builder("scm.gotenberg.prefetch.dropped")
+      .description("Number of browsed directories which were not prefetched, because of the rate limit")
+      .register(meterRegistry);
+  }
+
+  /**
+   * Schedules the conversion of the supported documents of the directory. Nothing is read or converted on the calling
+   * thread, because it is called while the directory listing is rendered.
+   */
+  public void prefetch(NamespaceAndName repository, String revision, FileObject directory) {
+    if (!configurationStore.isDirectoryPrefetchEnabled()) {
+      return;
+    }
+    List<String> paths = smallestDocuments(directory, configurationStore.getDirectoryPrefetchMaxFiles());
+    String key = repository + "/" + revision + "/" + directory.getPath();
+    if (paths.isEmpty() || recentDirectories.getIfPresent(key) != null) {
+      return;
+    }
+    if (!rateLimiter.tryAcquire()) {
+      droppedCounter.increment();
+      return;
+    }
+    recentDirectories.put(key, Boolean.TRUE);
+
+    // the smallest documents are scheduled first and are ready first
+    boolean scheduled = false;
+    for (String path : paths) {
+      RepositoryPath document = new RepositoryPath(repository.getNamespace(), repository.getName(), revision, path);
+      if (pdfService.prefetch(document)) {
+        scheduledCounter.increment();
+        scheduled = true;
+      }
+    }
+    if (!scheduled) {
+      // the lane was full, the directory may be prefetched again when it is browsed the next time
+      recentDirectories.invalidate(key);
+    }
+  }
+
+  private List<String> smallestDocuments(FileObject directory, int maxFiles) {
+    return directory.getChildren()
+      .stream()
+      .filter(child -> !child.isDirectory() && pdfService.isSupported(child))
+      .sorted(Comparator.comparingLong(child -> child.getLength().orElse(Long.MAX_VALUE)))
+      .limit(maxFiles)
+      .map(FileObject::getPath)
+      .collect(Collectors.toList());
+  }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package com.cloudogu.scm.gotenberg;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Set of lower case ascii file extensions, which can be matched against the extension of a path without allocating
+ * substrings. The extensions are grouped by their length and their last character, so that a path is compared with
+ * one or two candidates at most. The extension of a path is determined like {@link Filenames#extension(String)} does.
+ */
+final class Extensions {
+
+  private static final int ASCII = 128;
+
+  private final Set<String> extensions;
+  private final int maxLength;
+  // candidates[length][last character]
+  private final String[][][] candidates;
+
+  Extensions(Set<String> extensions) {
+    this.extensions = extensions;
+    this.maxLength = extensions.stream().mapToInt(String::length).max().orElse(0);
+    this.candidates = new String[maxLength + 1][ASCII][];
+    for (int length = 1; length <= maxLength; length++) {
+      for (char last = 0; last < ASCII; last++) {
+        List<String> matching = new ArrayList<>();
+        for (String extension : extensions) {
+          if (extension.length() == length && extension.charAt(length - 1) == last) {
+            matching.add(extension);
+          }
+        }
+        if (!matching.isEmpty()) {
+          candidates[length][last] = matching.toArray(new String[0]);
+        }
+      }
+    }
+  }
+
+  boolean contains(String extension) {
+    return extensions.contains(extension);
+  }
+
+  /**
+   * Returns {@code true} if the extension of the path is one of the extensions, regardless of its case.
+   */
+  boolean matches(String path) {
+    int dot = path.lastIndexOf('.');
+    int length = path.length() - dot - 1;
+    if (dot <= 0 || length <= 0 || length > maxLength) {
+      return false;
+    }
+    int last = lowerCase(path.charAt(path.length() - 1));
+    if (last >= ASCII) {
+      return false;
+    }
+    String[] matching = candidates[length][last];
+    if (matching == null) {
+      return false;
+    }
+    for (String candidate : matching) {
+      if (equalsIgnoreCase(path, dot + 1, candidate)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static boolean equalsIgnoreCase(String path, int offset, String candidate) {
+    for (int i = 0; i < candidate.length(); i++) {
+      if (lowerCase(path.charAt(offset + i)) != candidate.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Lower case of ascii characters, which equals {@link String#toLowerCase(Locale)} with {@link Locale#ENGLISH} for
+   * every character an extension consists of.
+   */
+  private static int lowerCase(char c) {
+    if (c >= 'A' && c <= 'Z') {
+      return c + ('a' - 'A');
+    }
+    return c;
+  }
+}
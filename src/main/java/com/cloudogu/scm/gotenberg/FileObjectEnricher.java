@@ -20,14 +20,18 @@ import sonia.scm.api.v2.resources.Enrich;
 import sonia.scm.api.v2.resources.HalAppender;
 import sonia.scm.api.v2.resources.HalEnricher;
 import sonia.scm.api.v2.resources.HalEnricherContext;
+import sonia.scm.api.v2.resources.ScmPathInfo;
 import sonia.scm.api.v2.resources.ScmPathInfoStore;
 import sonia.scm.plugin.Extension;
 import sonia.scm.repository.BrowserResult;
 import sonia.scm.repository.FileObject;
 import sonia.scm.repository.NamespaceAndName;
+import sonia.scm.repository.Repository;
+import sonia.scm.repository.RepositoryManager;
 
 import jakarta.inject.Inject;
 import jakarta.inject.Provider;
+import java.util.OptionalLong;
 
 @Extension
 @Enrich(FileObject.class)
@@ -35,32 +39,87 @@ public class FileObjectEnricher implements HalEnricher {
 
   private final GotenbergConfigurationStore configurationStore;
   private final PdfService service;
+  private final DirectoryPrefetcher prefetcher;
+  private final RepositoryManager repositoryManager;
   private final Provider<ScmPathInfoStore> pathInfoStore;
 
+  private volatile Listing listing;
+
   @Inject
-  public FileObjectEnricher(GotenbergConfigurationStore configurationStore, PdfService service, Provider<ScmPathInfoStore> pathInfoStore) {
+  public FileObjectEnricher(GotenbergConfigurationStore configurationStore,
+                            PdfService service,
+                            DirectoryPrefetcher prefetcher,
+                            RepositoryManager repositoryManager,
+                            Provider<ScmPathInfoStore> pathInfoStore) {
     this.configurationStore = configurationStore;
     this.service = service;
+    this.prefetcher = prefetcher;
+    this.repositoryManager = repositoryManager;
     this.pathInfoStore = pathInfoStore;
   }
 
   @Override
   public void enrich(HalEnricherContext context, HalAppender appender) {
     FileObject file = context.oneRequireByType(FileObject.class);
-    if (configurationStore.get().isEnabled() && service.isSupported(file)) {
+    if (!configurationStore.isEnabled()) {
+      return;
+    }
+    if (file.isDirectory()) {
+      // the directory knows all of its children, so we can prefetch the documents of the listing at once
       NamespaceAndName repository = context.oneRequireByType(NamespaceAndName.class);
       BrowserResult browserResult = context.oneRequireByType(BrowserResult.class);
+      prefetcher.prefetch(repository, browserResult.getRevision(), file);
+    } else if (service.isSupported(file)) {
+      NamespaceAndName repository = context.oneRequireByType(NamespaceAndName.class);
+      BrowserResult browserResult = context.oneRequireByType(BrowserResult.class);
+
+      Listing current = listing(repository);
+      String namespace = repository.getNamespace();
+      String name = repository.getName();
+      String revision = browserResult.getRevision();
 
+      appender.appendLink("pdf", current.links.convertToPdf(namespace, name, revision, file.getPath()).asString());
+      appender.appendLink("pdfStatus", current.links.getConversionStatus(namespace, name, revision, file.getPath()).asString());
 
-      String href = apiLinks().gotenberg().convertToPdf(
-        repository.getNamespace(), repository.getName(), browserResult.getRevision(), file.getPath()
-      ).asString();
+      // tells the ui whether the document opens instantly, nothing is read or converted for it
+      if (current.repository != null) {
+        OptionalLong cachedSize = service.peekCachedSize(current.repository, revision, file.getPath());
+        if (cachedSize.isPresent()) {
+          appender.appendEmbedded("cachedPdf", new CachedPdfDto(cachedSize.getAsLong()));
+        }
+      }
+    }
+  }
 
-      appender.appendLink("pdf", href);
+  private Listing listing(NamespaceAndName namespaceAndName) {
+    // the path info is created once per request, so the links and the repository are resolved once for all files of
+    // a listing
+    ScmPathInfo pathInfo = pathInfoStore.get().get();
+    Listing current = listing;
+    if (current == null || current.pathInfo != pathInfo || !current.namespaceAndName.equals(namespaceAndName)) {
+      current = new Listing(
+        pathInfo,
+        namespaceAndName,
+        new RestApiLinks(pathInfo.getApiRestUri()).gotenberg(),
+        repositoryManager.get(namespaceAndName)
+      );
+      listing = current;
     }
+    return current;
   }
 
-  private RestApiLinks apiLinks() {
-    return new RestApiLinks(pathInfoStore.get().get().getApiRestUri());
+  private static final class Listing {
+
+    private final ScmPathInfo pathInfo;
+    private final NamespaceAndName namespaceAndName;
+    private final RestApiLinks.Gotenberg links;
+    private final Repository repository;
+
+    private Listing(ScmPathInfo pathInfo, NamespaceAndName namespaceAndName, RestApiLinks.Gotenberg links, Repository repository) {
+      this.pathInfo = pathInfo;
+      this.namespaceAndName = namespaceAndName;
+      this.links = links;
+      this.repository = repository;
+    }
   }
 }
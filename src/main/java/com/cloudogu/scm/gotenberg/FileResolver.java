@@ -16,13 +16,19 @@
 
 package com.cloudogu.scm.gotenberg;
 
+import com.google.common.hash.Hashing;
+import com.google.common.hash.HashingInputStream;
+import com.google.common.io.ByteStreams;
+import sonia.scm.repository.BrowserResult;
 import sonia.scm.repository.Repository;
 import sonia.scm.repository.api.RepositoryService;
 import sonia.scm.repository.api.RepositoryServiceFactory;
 
 import jakarta.inject.Inject;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.OptionalLong;
 
 public class FileResolver {
 
@@ -33,11 +39,55 @@ public class FileResolver {
     this.repositoryServiceFactory = repositoryServiceFactory;
   }
 
+  @SuppressWarnings("UnstableApiUsage")
+  public String hash(Repository repository, RepositoryPath repositoryPath) throws IOException {
+    try (HashingInputStream content = new HashingInputStream(Hashing.sha256(), getContent(repository, repositoryPath))) {
+      ByteStreams.exhaust(content);
+      return content.hash().toString();
+    }
+  }
+
+  /**
+   * Returns the content of the file as stream. The repository service is kept open until the stream is closed, so
+   * the content is read directly from the repository and never held in memory.
+   */
   public InputStream getContent(Repository repository, RepositoryPath repositoryPath) throws IOException {
-    try (RepositoryService service = repositoryServiceFactory.create(repository)) {
-      return service.getCatCommand()
+    RepositoryService service = repositoryServiceFactory.create(repository);
+    try {
+      InputStream content = service.getCatCommand()
         .setRevision(repositoryPath.getRevision())
         .getStream(repositoryPath.getPath());
+      return new FilterInputStream(content) {
+        @Override
+        public void close() throws IOException {
+          try {
+            super.close();
+          } finally {
+            service.close();
+          }
+        }
+      };
+    } catch (IOException | RuntimeException e) {
+      service.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Returns the length of the file without reading its content.
+   */
+  public OptionalLong getLength(Repository repository, RepositoryPath repositoryPath) throws IOException {
+    try (RepositoryService service = repositoryServiceFactory.create(repository)) {
+      BrowserResult result = service.getBrowseCommand()
+        .setRevision(repositoryPath.getRevision())
+        .setPath(repositoryPath.getPath())
+        .setDisableLastCommit(true)
+        .setDisableSubRepositoryDetection(true)
+        .getBrowserResult();
+      if (result == null || result.getFile() == null) {
+        return OptionalLong.empty();
+      }
+      return result.getFile().getLength();
     }
   }
 
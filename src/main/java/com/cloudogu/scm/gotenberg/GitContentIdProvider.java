@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package com.cloudogu.scm.gotenberg;
+
+import org.eclipse.jgit.errors.MissingObjectException;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import sonia.scm.plugin.Extension;
+import sonia.scm.plugin.Requires;
+import sonia.scm.repository.GitRepositoryHandler;
+import sonia.scm.repository.GitUtil;
+import sonia.scm.repository.Repository;
+
+import jakarta.inject.Inject;
+import java.io.IOException;
+import java.util.Optional;
+
+import static sonia.scm.ContextEntry.ContextBuilder.entity;
+import static sonia.scm.NotFoundException.notFound;
+
+/**
+ * Uses the id of the git blob as content id. Only the tree of the commit is read, the blob itself is never loaded.
+ */
+@Extension
+@Requires("scm-git-plugin")
+public class GitContentIdProvider implements ContentIdProvider {
+
+  private final GitRepositoryHandler repositoryHandler;
+
+  @Inject
+  public GitContentIdProvider(GitRepositoryHandler repositoryHandler) {
+    this.repositoryHandler = repositoryHandler;
+  }
+
+  @Override
+  public Optional<String> getContentId(Repository repository, RepositoryPath path) throws IOException {
+    if (!GitRepositoryHandler.TYPE_NAME.equals(repository.getType())) {
+      return Optional.empty();
+    }
+    try (org.eclipse.jgit.lib.Repository git = GitUtil.open(repositoryHandler.getDirectory(repository.getId()));
+         RevWalk revWalk = new RevWalk(git)) {
+      RevCommit commit = parseCommit(git, revWalk, repository, path.getRevision());
+      try (TreeWalk treeWalk = TreeWalk.forPath(git, path.getPath(), commit.getTree())) {
+        if (treeWalk == null || (treeWalk.getRawMode(0) & FileMode.TYPE_MASK) != FileMode.TYPE_FILE) {
+          throw notFound(entity("File", path.getPath()).in("Revision", path.getRevision()).in(repository.getNamespaceAndName()));
+        }
+        return Optional.of("git:" + treeWalk.getObjectId(0).name());
+      }
+    }
+  }
+
+  private RevCommit parseCommit(org.eclipse.jgit.lib.Repository git, RevWalk revWalk, Repository repository, String revision) throws IOException {
+    ObjectId id = git.resolve(revision);
+    try {
+      if (id != null) {
+        return revWalk.parseCommit(id);
+      }
+    } catch (MissingObjectException ex) {
+      // the id of a changeset is resolved without checking whether it exists
+    }
+    throw notFound(entity("Revision", revision).in(repository.getNamespaceAndName()));
+  }
+}
@@ -0,0 +1,473 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package com.cloudogu.scm.gotenberg;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import sonia.scm.net.ahc.AdvancedHttpClient;
+import sonia.scm.util.HttpUtil;
+
+import jakarta.inject.Inject;
+import jakarta.inject.Singleton;
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The configured Gotenberg servers. Each conversion is sent to the server with the fewest outstanding requests whose
+ * circuit is closed. The circuit of a server opens if too many of its recent requests failed or were too slow, or if
+ * its health check fails. After a while a single trial request is let through, which closes the circuit again on
+ * success. If the circuits of all servers are open, conversions fail immediately.
+ */
+@Slf4j
+@Singleton
+public class GotenbergBackends implements Closeable {
+
+  static final String HEALTH = "/health";
+
+  static final int MAX_CONSECUTIVE_FAILURES = 3;
+  static final int WINDOW_SIZE = 20;
+  static final int MIN_CALLS_IN_WINDOW = 10;
+  static final int MAX_FAILURE_PERCENTAGE = 50;
+  static final long SLOW_CALL_MILLIS = TimeUnit.SECONDS.toMillis(60);
+  static final long OPEN_MILLIS = TimeUnit.SECONDS.toMillis(30);
+  static final long PROBE_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(3);
+
+  private static final int MAX_PROBE_THREADS = 16;
+
+  private final GotenbergConfigurationStore configurationStore;
+  private final AdvancedHttpClient client;
+  private final MeterRegistry meterRegistry;
+  private final Clock clock;
+  private final Executor probeExecutor;
+  private final long probeTimeoutMillis;
+  private final Counter rejected;
+
+  // used to spread requests between servers with the same number of outstanding requests
+  private final AtomicInteger rotation = new AtomicInteger();
+
+  private volatile Pool pool = new Pool(ImmutableList.of(), ImmutableList.of());
+
+  @Inject
+  public GotenbergBackends(GotenbergConfigurationStore configurationStore, AdvancedHttpClient client, MeterRegistry meterRegistry) {
+    this(
+      configurationStore,
+      client,
+      meterRegistry,
+      Clock.systemUTC(),
+      new ThreadPoolExecutor(
+        0, MAX_PROBE_THREADS, 60L, TimeUnit.SECONDS, new SynchronousQueue<>(),
+        new ThreadFactoryBuilder().setNameFormat("gotenberg-probe-%d").setDaemon(true).build()
+      ),
+      PROBE_TIMEOUT_MILLIS
+    );
+  }
+
+  @VisibleForTesting
+  GotenbergBackends(GotenbergConfigurationStore configurationStore, AdvancedHttpClient client, MeterRegistry meterRegistry,
+                    Clock clock, Executor probeExecutor, long probeTimeoutMillis) {
+    this.configurationStore = configurationStore;
+    this.client = client;
+    this.meterRegistry = meterRegistry;
+    this.clock = clock;
+    this.probeExecutor = probeExecutor;
+    this.probeTimeoutMillis = probeTimeoutMillis;
+    this.rejected = Counter.builder("scm.gotenberg.backend.rejected")
+      .description("Number of conversions which failed fast, because no Gotenberg server was available")
+      .register(meterRegistry);
+  }
+
+  Lease acquire() {
+    List<Backend> backends = current().backends;
+    if (backends.isEmpty()) {
+      throw new GotenbergServerException("No Gotenberg server configured");
+    }
+    long now = clock.millis();
+    Backend selected = select(backends);
+    if (selected == null) {
+      selected = selectTrial(backends, now);
+    }
+    if (selected == null) {
+      rejected.increment();
+      throw new GotenbergUnavailableException("No Gotenberg server available", retryAfterSeconds(backends, now));
+    }
+    selected.outstanding.incrementAndGet();
+    return new Lease(selected, now);
+  }
+
+  private Backend select(List<Backend> backends) {
+    int start = Math.floorMod(rotation.getAndIncrement(), backends.size());
+    Backend selected = null;
+    for (int i = 0; i < backends.size(); i++) {
+      Backend backend = backends.get((start + i) % backends.size());
+      if (backend.isHealthy() && (selected == null || backend.outstanding.get() < selected.outstanding.get())) {
+        selected = backend;
+      }
+    }
+    return selected;
+  }
+
+  private Backend selectTrial(List<Backend> backends, long now) {
+    for (Backend backend : backends) {
+      if (backend.tryTrial(now)) {
+        return backend;
+      }
+    }
+    return null;
+  }
+
+  private int retryAfterSeconds(List<Backend> backends, long now) {
+    long millis = backends.stream().mapToLong(backend -> backend.millisUntilTrial(now)).min().orElse(0);
+    return (int) Math.max(1, TimeUnit.MILLISECONDS.toSeconds(millis + 999));
+  }
+
+  /**
+   * Requests the health endpoint of every configured server. The checks run in parallel on their own threads, so the
+   * caller is not blocked. A failed check or one which takes longer than the probe timeout opens the circuit of the
+   * server, a successful one allows a trial request to a server with an open circuit. A server is not checked again,
+   * as long as its previous check has not returned.
+   */
+  void probe() {
+    if (!configurationStore.isEnabled()) {
+      return;
+    }
+    for (Backend backend : current().backends) {
+      if (backend.probing.compareAndSet(false, true)) {
+        try {
+          CompletableFuture.supplyAsync(() -> check(backend), probeExecutor)
+            .orTimeout(probeTimeoutMillis, TimeUnit.MILLISECONDS)
+            .whenComplete((healthy, e) -> {
+              if (Boolean.TRUE.equals(healthy)) {
+                backend.healthCheckSucceeded();
+              } else {
+                backend.open(clock.millis(), e != null ? "health check timed out" : "health check failed");
+              }
+            });
+        } catch (RejectedExecutionException e) {
+          log.debug("skip health check of gotenberg server {}, all probe threads are busy", backend.url);
+          backend.probing.set(false);
+        }
+      }
+    }
+  }
+
+  private boolean check(Backend backend) {
+    try {
+      return client.get(HttpUtil.append(backend.url, HEALTH)).request().isSuccessful();
+    } catch (IOException | RuntimeException e) {
+      log.debug("health check of gotenberg server {} failed", backend.url, e);
+      return false;
+    } finally {
+      backend.probing.set(false);
+    }
+  }
+
+  List<Backend> getBackends() {
+    return current().backends;
+  }
+
+  private Pool current() {
+    List<String> urls = urls(configurationStore.get());
+    Pool current = pool;
+    if (!current.urls.equals(urls)) {
+      synchronized (this) {
+        current = pool;
+        if (!current.urls.equals(urls)) {
+          current = rebuild(current, urls);
+          pool = current;
+        }
+      }
+    }
+    return current;
+  }
+
+  private Pool rebuild(Pool previous, List<String> urls) {
+    Map<String, Backend> known = new HashMap<>();
+    previous.backends.forEach(backend -> known.put(backend.url, backend));
+    List<Backend> backends = new ArrayList<>();
+    for (String url : urls) {
+      Backend backend = known.remove(url);
+      backends.add(backend != null ? backend : register(new Backend(url)));
+    }
+    known.values().forEach(this::unregister);
+    return new Pool(ImmutableList.copyOf(urls), ImmutableList.copyOf(backends));
+  }
+
+  private Backend register(Backend backend) {
+    backend.gauges.add(Gauge.builder("scm.gotenberg.backend.outstanding", backend, b -> b.outstanding.get())
+      .description("Number of requests which are currently processed by the Gotenberg server")
+      .tag("backend", backend.url)
+      .register(meterRegistry));
+    backend.gauges.add(Gauge.builder("scm.gotenberg.backend.healthy", backend, b -> b.isHealthy() ? 1 : 0)
+      .description("Whether the circuit of the Gotenberg server is closed")
+      .tag("backend", backend.url)
+      .register(meterRegistry));
+    return backend;
+  }
+
+  private void unregister(Backend backend) {
+    backend.gauges.forEach(meterRegistry::remove);
+  }
+
+  private static List<String> urls(GotenbergConfiguration configuration) {
+    Set<String> urls = new LinkedHashSet<>();
+    if (!Strings.isNullOrEmpty(configuration.getUrl())) {
+      urls.add(configuration.getUrl());
+    }
+    if (configuration.getAdditionalUrls() != null) {
+      configuration.getAdditionalUrls().stream()
+        .filter(url -> !Strings.isNullOrEmpty(url))
+        .forEach(urls::add);
+    }
+    return ImmutableList.copyOf(urls);
+  }
+
+  @Override
+  public void close() {
+    BackgroundExecutors.shutdown(probeExecutor);
+  }
+
+  private static final class Pool {
+    private final List<String> urls;
+    private final List<Backend> backends;
+
+    private Pool(List<String> urls, List<Backend> backends) {
+      this.urls = urls;
+      this.backends = backends;
+    }
+  }
+
+  enum CircuitState {
+    CLOSED, OPEN, HALF_OPEN
+  }
+
+  static final class Backend {
+
+    private final String url;
+    private final AtomicInteger outstanding = new AtomicInteger();
+    private final AtomicBoolean probing = new AtomicBoolean();
+    private final List<Gauge> gauges = new ArrayList<>();
+
+    // ring buffer with the outcomes of the most recent requests, true means failed
+    private final boolean[] window = new boolean[WINDOW_SIZE];
+    private int windowIndex;
+    private int windowCalls;
+    private int windowFailures;
+    private int consecutiveFailures;
+
+    private volatile CircuitState state = CircuitState.CLOSED;
+    private long openedAt;
+    private boolean trialInProgress;
+
+    private Backend(String url) {
+      this.url = url;
+    }
+
+    String getUrl() {
+      return url;
+    }
+
+    int getOutstanding() {
+      return outstanding.get();
+    }
+
+    CircuitState getState() {
+      return state;
+    }
+
+    boolean isHealthy() {
+      return state == CircuitState.CLOSED;
+    }
+
+    private synchronized boolean tryTrial(long now) {
+      if (state == CircuitState.OPEN && now - openedAt >= OPEN_MILLIS) {
+        log.info("send trial request to gotenberg server {}", url);
+        state = CircuitState.HALF_OPEN;
+      }
+      if (state == CircuitState.HALF_OPEN && !trialInProgress) {
+        trialInProgress = true;
+        return true;
+      }
+      return false;
+    }
+
+    private synchronized long millisUntilTrial(long now) {
+      if (state == CircuitState.OPEN) {
+        return Math.max(0, openedAt + OPEN_MILLIS - now);
+      }
+      return 0;
+    }
+
+    private synchronized void record(boolean failed, long now) {
+      if (state == CircuitState.HALF_OPEN) {
+        trialInProgress = false;
+        if (failed) {
+          open(now, "trial request failed");
+        } else {
+          close();
+        }
+      } else if (state == CircuitState.CLOSED) {
+        addToWindow(failed);
+        if (failed && isFailureThresholdExceeded()) {
+          open(now, windowFailures + " of the last " + windowCalls + " requests failed");
+        }
+      }
+      // outcomes of requests which were started before the circuit opened are ignored
+    }
+
+    private void addToWindow(boolean failed) {
+      if (windowCalls == WINDOW_SIZE) {
+        if (window[windowIndex]) {
+          windowFailures--;
+        }
+      } else {
+        windowCalls++;
+      }
+      window[windowIndex] = failed;
+      windowIndex = (windowIndex + 1) % WINDOW_SIZE;
+      if (failed) {
+        windowFailures++;
+        consecutiveFailures++;
+      } else {
+        consecutiveFailures = 0;
+      }
+    }
+
+    private boolean isFailureThresholdExceeded() {
+      return consecutiveFailures >= MAX_CONSECUTIVE_FAILURES
+        || (windowCalls >= MIN_CALLS_IN_WINDOW && windowFailures * 100 >= windowCalls * MAX_FAILURE_PERCENTAGE);
+    }
+
+    private synchronized void abandon() {
+      if (state == CircuitState.HALF_OPEN) {
+        trialInProgress = false;
+      }
+    }
+
+    private synchronized void healthCheckSucceeded() {
+      if (state == CircuitState.OPEN) {
+        state = CircuitState.HALF_OPEN;
+      }
+    }
+
+    private synchronized void open(long now, String reason) {
+      if (state != CircuitState.OPEN) {
+        log.warn("open circuit of gotenberg server {}: {}", url, reason);
+      }
+      state = CircuitState.OPEN;
+      openedAt = now;
+      trialInProgress = false;
+    }
+
+    private void close() {
+      log.info("close circuit of gotenberg server {}", url);
+      state = CircuitState.CLOSED;
+      windowIndex = 0;
+      windowCalls = 0;
+      windowFailures = 0;
+      consecutiveFailures = 0;
+    }
+  }
+
+  /**
+   * An outstanding request to one of the servers. The outcome of the request has to be reported with
+   * {@link #succeeded()} or {@link #failed()} and the lease has to be closed after the response was read completely.
+   */
+  final class Lease implements Closeable {
+
+    private final Backend backend;
+    private final long startedAt;
+    private final AtomicBoolean recorded = new AtomicBoolean();
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    private Lease(Backend backend, long startedAt) {
+      this.backend = backend;
+      this.startedAt = startedAt;
+    }
+
+    String url(String path) {
+      return HttpUtil.append(backend.url, path);
+    }
+
+    /**
+     * Reports a successful response. A response which took too long counts as failure nevertheless, because it
+     * indicates an overloaded server.
+     */
+    void succeeded() {
+      long now = clock.millis();
+      record(now - startedAt > SLOW_CALL_MILLIS, now);
+    }
+
+    void failed() {
+      record(true, clock.millis());
+    }
+
+    private void record(boolean failed, long now) {
+      if (recorded.compareAndSet(false, true)) {
+        backend.record(failed, now);
+      }
+    }
+
+    /**
+     * Returns a stream which closes the lease together with the given stream.
+     */
+    InputStream track(InputStream content) {
+      return new FilterInputStream(content) {
+        @Override
+        public void close() throws IOException {
+          try {
+            super.close();
+          } finally {
+            Lease.this.close();
+          }
+        }
+      };
+    }
+
+    @Override
+    public void close() {
+      if (closed.compareAndSet(false, true)) {
+        backend.outstanding.decrementAndGet();
+        if (!recorded.get()) {
+          backend.abandon();
+        }
+      }
+    }
+  }
+}
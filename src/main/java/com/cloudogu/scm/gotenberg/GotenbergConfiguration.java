@@ -21,9 +21,13 @@ import com.cloudogu.conveyor.Include;
 import lombok.Data;
 import org.hibernate.validator.constraints.URL;
 
+import jakarta.validation.constraints.Min;
 import jakarta.xml.bind.annotation.XmlAccessType;
 import jakarta.xml.bind.annotation.XmlAccessorType;
 import jakarta.xml.bind.annotation.XmlRootElement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 @Data
 @GenerateDto
@@ -31,11 +35,139 @@ import jakarta.xml.bind.annotation.XmlRootElement;
 @XmlAccessorType(XmlAccessType.FIELD)
 public class GotenbergConfiguration {
 
+  static final int DEFAULT_CONVERSION_TIMEOUT_SECONDS = 300;
+
   @URL
   @Include
   private String url = "http://localhost:3000";
 
+  @Include
+  private List<@URL String> additionalUrls = new ArrayList<>();
+
   @Include
   private boolean enabled = false;
 
+  @Min(0)
+  @Include
+  private int cacheMaxEntriesPerRepository = 20;
+
+  @Min(0)
+  @Include
+  private int cacheMaxMegabytesPerRepository = 0;
+
+  @Min(0)
+  @Include
+  private int cacheMaxMegabytes = 0;
+
+  @Min(0)
+  @Include
+  private int cacheMaxFileMegabytes = 0;
+
+  @Min(0)
+  @Include
+  private int cacheHotMegabytes = 16;
+
+  @Include
+  private boolean sharedCache = false;
+
+  @Min(0)
+  @Include
+  private int sharedCacheMaxMegabytes = 1024;
+
+  @Min(0)
+  @Include
+  private int maxConcurrentConversions = 4;
+
+  @Min(0)
+  @Include
+  private int maxQueuedConversions = 32;
+
+  @Min(0)
+  @Include
+  private int maxConversionsPerUser = 8;
+
+  @Min(0)
+  @Include
+  private int maxConversionsPerRepository = 0;
+
+  @Min(1)
+  @Include
+  private int conversionTimeoutSeconds = DEFAULT_CONVERSION_TIMEOUT_SECONDS;
+
+  @Min(0)
+  @Include
+  private int readTimeoutSeconds = 60;
+
+  @Min(0)
+  @Include
+  private int conversionRetries = 2;
+
+  @Include
+  private boolean preConversionEnabled = false;
+
+  @Include
+  private List<String> preConversionRepositories = new ArrayList<>();
+
+  @Include
+  private List<String> preConversionPaths = new ArrayList<>();
+
+  @Min(0)
+  @Include
+  private int preConversionMaxFileMegabytes = 20;
+
+  @Min(0)
+  @Include
+  private int preConversionMaxFilesPerPush = 20;
+
+  @Include
+  private boolean directoryPrefetchEnabled = false;
+
+  @Min(0)
+  @Include
+  private int directoryPrefetchMaxFiles = 5;
+
+  /**
+   * Returns a copy, which can be changed without affecting this configuration.
+   */
+  public GotenbergConfiguration copy() {
+    GotenbergConfiguration copy = new GotenbergConfiguration();
+    copy.url = url;
+    copy.additionalUrls = copyOf(additionalUrls);
+    copy.enabled = enabled;
+    copy.cacheMaxEntriesPerRepository = cacheMaxEntriesPerRepository;
+    copy.cacheMaxMegabytesPerRepository = cacheMaxMegabytesPerRepository;
+    copy.cacheMaxMegabytes = cacheMaxMegabytes;
+    copy.cacheMaxFileMegabytes = cacheMaxFileMegabytes;
+    copy.cacheHotMegabytes = cacheHotMegabytes;
+    copy.sharedCache = sharedCache;
+    copy.sharedCacheMaxMegabytes = sharedCacheMaxMegabytes;
+    copy.maxConcurrentConversions = maxConcurrentConversions;
+    copy.maxQueuedConversions = maxQueuedConversions;
+    copy.maxConversionsPerUser = maxConversionsPerUser;
+    copy.maxConversionsPerRepository = maxConversionsPerRepository;
+    copy.conversionTimeoutSeconds = conversionTimeoutSeconds;
+    copy.readTimeoutSeconds = readTimeoutSeconds;
+    copy.conversionRetries = conversionRetries;
+    copy.preConversionEnabled = preConversionEnabled;
+    copy.preConversionRepositories = copyOf(preConversionRepositories);
+    copy.preConversionPaths = copyOf(preConversionPaths);
+    copy.preConversionMaxFileMegabytes = preConversionMaxFileMegabytes;
+    copy.preConversionMaxFilesPerPush = preConversionMaxFilesPerPush;
+    copy.directoryPrefetchEnabled = directoryPrefetchEnabled;
+    copy.directoryPrefetchMaxFiles = directoryPrefetchMaxFiles;
+    return copy;
+  }
+
+  /**
+   * Returns the conversion timeout in milliseconds. Stored configurations which were not validated may contain zero, in
+   * this case the default is used, because every conversion has to end.
+   */
+  long conversionTimeoutMillis() {
+    int seconds = conversionTimeoutSeconds > 0 ? conversionTimeoutSeconds : DEFAULT_CONVERSION_TIMEOUT_SECONDS;
+    return TimeUnit.SECONDS.toMillis(seconds);
+  }
+
+  private static List<String> copyOf(List<String> list) {
+    return list != null ? new ArrayList<>(list) : null;
+  }
 }
@@ -0,0 +1,34 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package com.cloudogu.scm.gotenberg;
+
+import lombok.Getter;
+import sonia.scm.event.Event;
+
+/**
+ * Is fired after the configuration of the plugin was stored.
+ */
+@Event
+@Getter
+public class GotenbergConfigurationChangedEvent {
+
+  private final GotenbergConfiguration configuration;
+
+  public GotenbergConfigurationChangedEvent(GotenbergConfiguration configuration) {
+    this.configuration = configuration;
+  }
+}
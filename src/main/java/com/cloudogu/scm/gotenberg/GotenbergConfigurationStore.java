@@ -16,31 +16,98 @@
 
 package com.cloudogu.scm.gotenberg;
 
+import sonia.scm.event.ScmEventBus;
 import sonia.scm.store.ConfigurationStore;
 import sonia.scm.store.ConfigurationStoreFactory;
 
 import jakarta.inject.Inject;
 import jakarta.inject.Singleton;
 
+/**
+ * Access to the configuration of the plugin. The configuration is read from the store only once and is kept as
+ * snapshot, which is replaced whenever the configuration is changed. The snapshot is never handed out, callers get a
+ * copy, so that they can not change the configuration of everybody else by accident. Values which are checked for
+ * every file or directory have their own accessors, which read the snapshot without copying it.
+ */
 @Singleton
 public class GotenbergConfigurationStore {
 
   private static final String NAME = "gotenberg";
 
   private final ConfigurationStore<GotenbergConfiguration> store;
+  private final ScmEventBus eventBus;
+  private volatile GotenbergConfiguration snapshot;
 
   @Inject
-  public GotenbergConfigurationStore(ConfigurationStoreFactory factory) {
+  public GotenbergConfigurationStore(ConfigurationStoreFactory factory, ScmEventBus eventBus) {
     this.store = factory.withType(GotenbergConfiguration.class).withName(NAME).build();
+    this.eventBus = eventBus;
   }
 
+  /**
+   * Returns a copy of the configuration, which can be changed without affecting the stored one.
+   */
   public GotenbergConfiguration get() {
-    return store.getOptional().orElse(new GotenbergConfiguration());
+    return snapshot().copy();
+  }
+
+  /**
+   * Returns {@code true} if the plugin is enabled.
+   */
+  public boolean isEnabled() {
+    return snapshot().isEnabled();
+  }
+
+  /**
+   * Returns {@code true} if documents are converted only once for all repositories.
+   */
+  public boolean isSharedCache() {
+    return snapshot().isSharedCache();
+  }
+
+  /**
+   * Returns {@code true} if the documents of browsed directories are converted ahead of time.
+   */
+  public boolean isDirectoryPrefetchEnabled() {
+    GotenbergConfiguration current = snapshot();
+    return current.isDirectoryPrefetchEnabled() && current.getDirectoryPrefetchMaxFiles() > 0;
+  }
+
+  /**
+   * Returns the maximum number of documents which are converted ahead of time per browsed directory.
+   */
+  public int getDirectoryPrefetchMaxFiles() {
+    return snapshot().getDirectoryPrefetchMaxFiles();
+  }
+
+  /**
+   * Returns the size of the in memory cache in megabytes.
+   */
+  public int getCacheHotMegabytes() {
+    return snapshot().getCacheHotMegabytes();
+  }
+
+  private GotenbergConfiguration snapshot() {
+    GotenbergConfiguration current = snapshot;
+    if (current == null) {
+      synchronized (this) {
+        current = snapshot;
+        if (current == null) {
+          current = store.getOptional().orElse(new GotenbergConfiguration());
+          snapshot = current;
+        }
+      }
+    }
+    return current;
   }
 
-  public void set(GotenbergConfiguration configuration) {
+  public synchronized void set(GotenbergConfiguration configuration) {
     Permissions.write().check();
     store.set(configuration);
+    // the store is written only here, so this is the only place where the snapshot becomes stale
+    GotenbergConfiguration current = configuration.copy();
+    snapshot = current;
+    eventBus.post(new GotenbergConfigurationChangedEvent(current.copy()));
   }
 
 }
@@ -0,0 +1,54 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package com.cloudogu.scm.gotenberg;
+
+import sonia.scm.plugin.Extension;
+import sonia.scm.schedule.Scheduler;
+import sonia.scm.schedule.Task;
+
+import jakarta.inject.Inject;
+import jakarta.servlet.ServletContextEvent;
+import jakarta.servlet.ServletContextListener;
+
+@Extension
+public class GotenbergHealthCheck implements ServletContextListener {
+
+  private static final String EVERY_TEN_SECONDS = "0/10 * * * * ?";
+
+  private final Scheduler scheduler;
+  private final GotenbergBackends backends;
+
+  private Task task;
+
+  @Inject
+  public GotenbergHealthCheck(Scheduler scheduler, GotenbergBackends backends) {
+    this.scheduler = scheduler;
+    this.backends = backends;
+  }
+
+  @Override
+  public void contextInitialized(ServletContextEvent sce) {
+    task = scheduler.schedule(EVERY_TEN_SECONDS, backends::probe);
+  }
+
+  @Override
+  public void contextDestroyed(ServletContextEvent sce) {
+    if (task != null) {
+      task.cancel();
+    }
+  }
+}
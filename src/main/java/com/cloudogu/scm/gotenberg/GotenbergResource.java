@@ -18,7 +18,7 @@ package com.cloudogu.scm.gotenberg;
 
 import com.cloudogu.jaxrstie.GenerateLinkBuilder;
 import com.google.common.annotations.VisibleForTesting;
-import com.google.common.io.ByteStreams;
+import com.google.common.net.HttpHeaders;
 import de.otto.edison.hal.Link;
 import de.otto.edison.hal.Links;
 import io.swagger.v3.oas.annotations.OpenAPIDefinition;
@@ -31,6 +31,9 @@ import jakarta.inject.Inject;
 import jakarta.validation.Valid;
 import jakarta.ws.rs.Consumes;
 import jakarta.ws.rs.GET;
+import jakarta.ws.rs.HEAD;
+import jakarta.ws.rs.HeaderParam;
+import jakarta.ws.rs.POST;
 import jakarta.ws.rs.PUT;
 import jakarta.ws.rs.Path;
 import jakarta.ws.rs.PathParam;
@@ -42,7 +45,11 @@ import jakarta.ws.rs.core.UriInfo;
 import sonia.scm.api.v2.resources.ErrorDto;
 import sonia.scm.web.VndMediaType;
 
-import java.io.InputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.OptionalLong;
 
 @Path("v2/gotenberg")
 @GenerateLinkBuilder(className = "RestApiLinks")
@@ -53,6 +60,16 @@ public class GotenbergResource {
 
   @VisibleForTesting
   static final String CONTENT_TYPE = VndMediaType.PREFIX + "gotenberg-config" + VndMediaType.SUFFIX;
+  @VisibleForTesting
+  static final String STATUS_CONTENT_TYPE = VndMediaType.PREFIX + "gotenberg-conversion-status" + VndMediaType.SUFFIX;
+
+  private static final String BYTES = "bytes";
+  private static final long IMMUTABLE_MAX_AGE = 31_536_000;
+  private static final int RETRY_AFTER_SECONDS = 1;
+  private static final String PREFER = "Prefer";
+  private static final String RESPOND_ASYNC = "respond-async";
+  private static final String CACHE_STATUS = "Cache-Status";
+  private static final String CACHE_NAME = "scm-gotenberg";
 
   private final PdfService pdfService;
   private final GotenbergConfigurationStore store;
@@ -158,6 +175,22 @@ public class GotenbergResource {
     responseCode = "200",
     description = "success"
   )
+  @ApiResponse(
+    responseCode = "202",
+    description = "the document is converted in the background because of 'Prefer: respond-async', the location header links to the conversion status"
+  )
+  @ApiResponse(
+    responseCode = "206",
+    description = "success, the requested range of the document"
+  )
+  @ApiResponse(
+    responseCode = "304",
+    description = "the document matches the given etag"
+  )
+  @ApiResponse(
+    responseCode = "416",
+    description = "the requested range is not satisfiable"
+  )
   @ApiResponse(
     responseCode = "500",
     description = "internal server error",
@@ -170,18 +203,257 @@ public class GotenbergResource {
     responseCode = "502",
     description = "Unexpected Gotenberg server error"
   )
-  public StreamingOutput convertToPdf(@PathParam("namespace") String namespace,
-                                      @PathParam("name") String name,
-                                      @PathParam("revision") String revision,
-                                      @PathParam("path") String path) {
+  @SuppressWarnings("java:S107") // every parameter is part of the http api
+  public Response convertToPdf(@Context UriInfo uriInfo,
+                               @PathParam("namespace") String namespace,
+                               @PathParam("name") String name,
+                               @PathParam("revision") String revision,
+                               @PathParam("path") String path,
+                               @HeaderParam(PREFER) String prefer,
+                               @HeaderParam(HttpHeaders.RANGE) String range,
+                               @HeaderParam(HttpHeaders.IF_RANGE) String ifRange,
+                               @HeaderParam(HttpHeaders.IF_NONE_MATCH) String ifNoneMatch) throws IOException {
 
     RepositoryPath repositoryPath = new RepositoryPath(namespace, name, revision, path);
+    String cacheControl = cacheControl(revision);
+    if (ifNoneMatch != null) {
+      String etag = etag(pdfService.getCacheKey(repositoryPath));
+      if (matches(ifNoneMatch, etag)) {
+        // the client has the current document already, neither the cache nor gotenberg is required
+        return Response.notModified()
+          .header(HttpHeaders.ETAG, etag)
+          .header(HttpHeaders.CACHE_CONTROL, cacheControl)
+          .build();
+      }
+    }
+
+    if (isAsync(prefer) && pdfService.convertInBackground(repositoryPath) == ConversionStatus.CONVERTING) {
+      // the request thread is not blocked by long conversions, the client polls the status instead
+      String status = apiLinks(uriInfo).gotenberg().getConversionStatus(namespace, name, revision, path).asString();
+      return Response.accepted()
+        .location(URI.create(status))
+        .header(HttpHeaders.RETRY_AFTER, RETRY_AFTER_SECONDS)
+        .build();
+    }
+
+    Pdf pdf = pdfService.getOrConvertPdf(repositoryPath);
+    String etag = etag(pdf.getKey());
+
+    Optional<ByteRange> byteRange;
+    try {
+      byteRange = requestedRange(pdf, etag, range, ifRange);
+    } catch (ByteRange.UnsatisfiableException ex) {
+      pdf.close();
+      return Response.status(Response.Status.REQUESTED_RANGE_NOT_SATISFIABLE)
+        .header(HttpHeaders.ACCEPT_RANGES, BYTES)
+        .header(HttpHeaders.CONTENT_RANGE, ByteRange.unsatisfiable(pdf.getLength()))
+        .build();
+    }
+
+    Response.ResponseBuilder response;
+    if (byteRange.isPresent()) {
+      ByteRange partial = byteRange.get();
+      StreamingOutput output = os -> {
+        pdf.writeTo(os, partial);
+        os.close();
+      };
+      response = Response.status(Response.Status.PARTIAL_CONTENT)
+        .entity(output)
+        .header(HttpHeaders.CONTENT_RANGE, partial.toContentRange(pdf.getLength()))
+        .header(HttpHeaders.CONTENT_LENGTH, partial.getLength());
+    } else {
+      StreamingOutput output = os -> {
+        pdf.writeTo(os);
+        os.close();
+      };
+      response = Response.ok(output);
+      if (pdf.hasLength()) {
+        response.header(HttpHeaders.CONTENT_LENGTH, pdf.getLength());
+      }
+    }
+    if (pdf.hasLength()) {
+      response.header(HttpHeaders.ACCEPT_RANGES, BYTES);
+    }
+    return response
+      .header(HttpHeaders.ETAG, etag)
+      .header(HttpHeaders.CACHE_CONTROL, cacheControl)
+      .build();
+  }
+
+  @HEAD
+  @Produces("application/pdf")
+  @Path("pdf/{namespace}/{name}/{revision}/{path: .*}")
+  @Operation(
+    summary = "Pdf cache status",
+    description = "Returns the headers of the converted document without reading or converting the source file, the Cache-Status header tells whether the document is already cached",
+    tags = "Gotenberg",
+    operationId = "gotenberg_pdf_cache_status"
+  )
+  @ApiResponse(
+    responseCode = "200",
+    description = "success, the etag is only known if the document was requested before, the content length only if it is cached"
+  )
+  @ApiResponse(
+    responseCode = "500",
+    description = "internal server error",
+    content = @Content(
+      mediaType = VndMediaType.ERROR_TYPE,
+      schema = @Schema(implementation = ErrorDto.class)
+    )
+  )
+  public Response getPdfCacheStatus(@PathParam("namespace") String namespace,
+                                    @PathParam("name") String name,
+                                    @PathParam("revision") String revision,
+                                    @PathParam("path") String path) throws IOException {
+    // without this method, jax-rs would answer head requests with the get method, which converts the document
+    // the source file is never read, a document whose key was not resolved yet can not be cached either
+    RepositoryPath repositoryPath = new RepositoryPath(namespace, name, revision, path);
+    Optional<String> cacheKey = pdfService.getResolvedCacheKey(repositoryPath);
+    OptionalLong size = cacheKey.isPresent() ? pdfService.getCachedSize(repositoryPath) : OptionalLong.empty();
+
+    Response.ResponseBuilder response = Response.ok()
+      .header(HttpHeaders.CACHE_CONTROL, cacheControl(revision));
+    cacheKey.ifPresent(key -> response.header(HttpHeaders.ETAG, etag(key)));
+    if (size.isPresent()) {
+      response
+        .header(CACHE_STATUS, CACHE_NAME + "; hit")
+        .header(HttpHeaders.CONTENT_LENGTH, size.getAsLong())
+        .header(HttpHeaders.ACCEPT_RANGES, BYTES);
+    } else {
+      response.header(CACHE_STATUS, CACHE_NAME + "; fwd=miss");
+    }
+    return response.build();
+  }
+
+  @GET
+  @Produces(STATUS_CONTENT_TYPE)
+  @Path("status/{namespace}/{name}/{revision}/{path: .*}")
+  @Operation(
+    summary = "Conversion status",
+    description = "Returns the status of the conversion of the given document without starting it",
+    tags = "Gotenberg",
+    operationId = "gotenberg_conversion_status"
+  )
+  @ApiResponse(
+    responseCode = "200",
+    description = "success",
+    content = @Content(
+      mediaType = STATUS_CONTENT_TYPE,
+      schema = @Schema(implementation = ConversionStatusDto.class)
+    )
+  )
+  @ApiResponse(
+    responseCode = "500",
+    description = "internal server error",
+    content = @Content(
+      mediaType = VndMediaType.ERROR_TYPE,
+      schema = @Schema(implementation = ErrorDto.class)
+    )
+  )
+  @ApiResponse(
+    responseCode = "502",
+    description = "The background conversion has failed with an unexpected Gotenberg server error"
+  )
+  public ConversionStatusDto getConversionStatus(@Context UriInfo uriInfo,
+                                                 @PathParam("namespace") String namespace,
+                                                 @PathParam("name") String name,
+                                                 @PathParam("revision") String revision,
+                                                 @PathParam("path") String path) throws IOException {
+    RepositoryPath repositoryPath = new RepositoryPath(namespace, name, revision, path);
+    return createStatusDto(uriInfo, repositoryPath, pdfService.getConversionStatus(repositoryPath));
+  }
+
+  @POST
+  @Produces(STATUS_CONTENT_TYPE)
+  @Path("status/{namespace}/{name}/{revision}/{path: .*}")
+  @Operation(
+    summary = "Start conversion",
+    description = "Starts the conversion of the given document in the background, if it is not converted yet, and returns its status",
+    tags = "Gotenberg",
+    operationId = "gotenberg_start_conversion"
+  )
+  @ApiResponse(
+    responseCode = "200",
+    description = "success",
+    content = @Content(
+      mediaType = STATUS_CONTENT_TYPE,
+      schema = @Schema(implementation = ConversionStatusDto.class)
+    )
+  )
+  @ApiResponse(
+    responseCode = "500",
+    description = "internal server error",
+    content = @Content(
+      mediaType = VndMediaType.ERROR_TYPE,
+      schema = @Schema(implementation = ErrorDto.class)
+    )
+  )
+  @ApiResponse(
+    responseCode = "502",
+    description = "The last background conversion has failed with an unexpected Gotenberg server error"
+  )
+  public ConversionStatusDto startConversion(@Context UriInfo uriInfo,
+                                             @PathParam("namespace") String namespace,
+                                             @PathParam("name") String name,
+                                             @PathParam("revision") String revision,
+                                             @PathParam("path") String path) throws IOException {
+    RepositoryPath repositoryPath = new RepositoryPath(namespace, name, revision, path);
+    return createStatusDto(uriInfo, repositoryPath, pdfService.convertInBackground(repositoryPath));
+  }
+
+  private ConversionStatusDto createStatusDto(UriInfo uriInfo, RepositoryPath path, ConversionStatus status) {
+    RestApiLinks.Gotenberg links = apiLinks(uriInfo).gotenberg();
+    Links.Builder builder = Links.linkingTo();
+    builder.self(links.getConversionStatus(path.getNamespace(), path.getName(), path.getRevision(), path.getPath()).asString());
+    if (status == ConversionStatus.READY) {
+      builder.single(Link.link("pdf", links.convertToPdf(path.getNamespace(), path.getName(), path.getRevision(), path.getPath()).asString()));
+    }
+    return new ConversionStatusDto(builder.build(), status);
+  }
+
+  private boolean isAsync(String prefer) {
+    return prefer != null && prefer.toLowerCase(Locale.ENGLISH).contains(RESPOND_ASYNC);
+  }
+
+  private RestApiLinks apiLinks(UriInfo uriInfo) {
+    return new RestApiLinks(uriInfo.getBaseUri());
+  }
+
+  private String cacheControl(String revision) {
+    // the document of a changeset never changes, the document of a branch has to be revalidated
+    if (RevisionResolver.isChangesetId(revision)) {
+      return "private, max-age=" + IMMUTABLE_MAX_AGE + ", immutable";
+    }
+    return "private, no-cache";
+  }
+
+  private boolean matches(String ifNoneMatch, String etag) {
+    for (String candidate : ifNoneMatch.split(",")) {
+      String value = candidate.trim();
+      // if-none-match uses the weak comparison
+      if (value.startsWith("W/")) {
+        value = value.substring(2);
+      }
+      if (value.equals("*") || value.equals(etag)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private Optional<ByteRange> requestedRange(Pdf pdf, String etag, String range, String ifRange) {
+    if (range == null || !pdf.hasLength()) {
+      return Optional.empty();
+    }
+    // we have no modification date, so a date in if-range never matches
+    if (ifRange != null && !ifRange.equals(etag)) {
+      return Optional.empty();
+    }
+    return ByteRange.parse(range, pdf.getLength());
+  }
 
-    return os -> {
-      InputStream pdf = pdfService.getOrConvertPdf(repositoryPath);
-      ByteStreams.copy(pdf, os);
-      os.close();
-    };
+  private String etag(String cacheKey) {
+    return "\"" + cacheKey + "\"";
   }
 
 }
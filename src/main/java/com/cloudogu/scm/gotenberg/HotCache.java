@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package com.cloudogu.scm.gotenberg;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+
+import jakarta.inject.Inject;
+import jakarta.inject.Singleton;
+import java.util.Optional;
+
+/**
+ * Keeps small and frequently requested documents on the heap, so that they can be served without disk io. The tier
+ * is bounded by the configured size, a single document may occupy at most an eighth of it.
+ */
+@Singleton
+public class HotCache {
+
+  private static final long MEGABYTE = 1024L * 1024L;
+  private static final int MAX_FILE_FRACTION = 8;
+
+  private final GotenbergConfigurationStore configurationStore;
+  private final Counter hits;
+  private final Counter misses;
+
+  private volatile Tier tier = new Tier(0);
+
+  @Inject
+  public HotCache(GotenbergConfigurationStore configurationStore, MeterRegistry meterRegistry) {
+    this.configurationStore = configurationStore;
+    this.hits = Counter.builder("scm.gotenberg.cache.hot.hits")
+      .description("Number of cached documents which were served from memory")
+      .register(meterRegistry);
+    this.misses = Counter.builder("scm.gotenberg.cache.hot.misses")
+      .description("Number of cached documents which had to be read from the blob store")
+      .register(meterRegistry);
+    Gauge.builder("scm.gotenberg.cache.hot.bytes", this, hotCache -> hotCache.tier.bytes())
+      .description("Size of the documents which are kept in memory")
+      .baseUnit("bytes")
+      .register(meterRegistry);
+  }
+
+  Optional<byte[]> get(String key) {
+    byte[] content = tier.contents.getIfPresent(key);
+    if (content != null) {
+      hits.increment();
+      return Optional.of(content);
+    }
+    misses.increment();
+    // the configuration is only checked on a miss, because those have to read from disk anyway
+    current();
+    return Optional.empty();
+  }
+
+  boolean accepts(long size) {
+    Tier current = current();
+    return current.maxFileBytes > 0 && size <= current.maxFileBytes;
+  }
+
+  void put(String key, byte[] content) {
+    Tier current = current();
+    if (current.maxFileBytes > 0 && content.length <= current.maxFileBytes) {
+      current.contents.put(key, content);
+    }
+  }
+
+  void invalidate(String key) {
+    tier.contents.invalidate(key);
+  }
+
+  void invalidatePrefix(String prefix) {
+    tier.contents.asMap().keySet().removeIf(key -> key.startsWith(prefix));
+  }
+
+  private Tier current() {
+    long maxBytes = configurationStore.getCacheHotMegabytes() * MEGABYTE;
+    Tier current = tier;
+    if (current.maxBytes != maxBytes) {
+      synchronized (this) {
+        current = tier;
+        if (current.maxBytes != maxBytes) {
+          current = new Tier(maxBytes);
+          tier = current;
+        }
+      }
+    }
+    return current;
+  }
+
+  private static class Tier {
+
+    private final long maxBytes;
+    private final long maxFileBytes;
+    private final Cache<String, byte[]> contents;
+
+    private Tier(long maxBytes) {
+      this.maxBytes = maxBytes;
+      this.maxFileBytes = maxBytes / MAX_FILE_FRACTION;
+      this.contents = CacheBuilder.newBuilder()
+        .maximumWeight(Math.max(maxBytes, 0))
+        .<String, byte[]>weigher((key, value) -> value.length)
+        .build();
+    }
+
+    private long bytes() {
+      return contents.asMap().values().stream().mapToLong(content -> content.length).sum();
+    }
+  }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package com.cloudogu.scm.gotenberg;
+
+import com.google.common.base.Optional;
+import com.google.common.io.ByteSource;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.OptionalLong;
+import java.util.UUID;
+
+/**
+ * A multipart/form-data body with a single file part. The framing is written around the content of the file, so the
+ * content is streamed to the server while it is read from the repository and is never buffered. The already opened
+ * content is used for the first read of the body, it is opened again for every further read. If the length of the
+ * content is known, the size of the body is known in advance and the content has to match it. Otherwise the size is
+ * counted by reading the content once more. Once the body is aborted, every read fails, which aborts a running upload.
+ */
+final class MultipartBody extends ByteSource implements Closeable {
+
+  private static final String CRLF = "\r\n";
+
+  private final String boundary = "gotenberg-" + UUID.randomUUID();
+  private final byte[] header;
+  private final byte[] trailer;
+  private final OptionalLong contentLength;
+  private final Converter.Content content;
+  private InputStream opened;
+  private volatile boolean aborted;
+
+  MultipartBody(String name, String filename, InputStream opened, OptionalLong contentLength, Converter.Content content) {
+    this.header = bytes(
+      "--" + boundary + CRLF
+        + "Content-Disposition: form-data; name=\"" + escape(name) + "\"; filename=\"" + escape(filename) + "\"" + CRLF
+        + "Content-Type: application/octet-stream" + CRLF
+        + CRLF
+    );
+    this.trailer = bytes(CRLF + "--" + boundary + "--" + CRLF);
+    this.opened = opened;
+    this.contentLength = contentLength;
+    this.content = content;
+  }
+
+  String getContentType() {
+    return "multipart/form-data; boundary=" + boundary;
+  }
+
+  @Override
+  public Optional<Long> sizeIfKnown() {
+    if (contentLength.isEmpty()) {
+      return Optional.absent();
+    }
+    return Optional.of(header.length + contentLength.getAsLong() + trailer.length);
+  }
+
+  @Override
+  public synchronized InputStream openStream() throws IOException {
+    checkAborted();
+    InputStream stream = opened != null ? opened : content.open();
+    opened = null;
+    if (contentLength.isPresent()) {
+      stream = new ExactLengthInputStream(stream, contentLength.getAsLong());
+    }
+    List<InputStream> parts = List.of(new ByteArrayInputStream(header), stream, new ByteArrayInputStream(trailer));
+    return new FilterInputStream(new SequenceInputStream(Collections.enumeration(parts))) {
+      @Override
+      public int read() throws IOException {
+        checkAborted();
+        return super.read();
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+        checkAborted();
+        return super.read(b, off, len);
+      }
+    };
+  }
+
+  /**
+   * Fails all further reads of the body and closes the content, if it was not read yet.
+   */
+  void abort() throws IOException {
+    aborted = true;
+    close();
+  }
+
+  /**
+   * Closes the content, if it was not read, e.g. because the connection could not be established.
+   */
+  @Override
+  public void close() throws IOException {
+    InputStream unused;
+    synchronized (this) {
+      unused = opened;
+      opened = null;
+    }
+    if (unused != null) {
+      unused.close();
+    }
+  }
+
+  private void checkAborted() throws IOException {
+    if (aborted) {
+      throw new IOException("upload to gotenberg was aborted");
+    }
+  }
+
+  // quotes and line breaks would end the header, browsers encode them the same way
+  private static String escape(String value) {
+    return value.replace("\"", "%22").replace("\r", "%0D").replace("\n", "%0A");
+  }
+
+  private static byte[] bytes(String value) {
+    return value.getBytes(StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Fails, if the content does not have the expected length, because the size of the body was sent in advance and a
+   * different content would corrupt the request.
+   */
+  private static final class ExactLengthInputStream extends FilterInputStream {
+
+    private final long expected;
+    private long count;
+
+    private ExactLengthInputStream(InputStream content, long expected) {
+      super(content);
+      this.expected = expected;
+    }
+
+    @Override
+    public int read() throws IOException {
+      int read = super.read();
+      count(read < 0 ? -1 : 1);
+      return read;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      int read = super.read(b, off, len);
+      count(read);
+      return read;
+    }
+
+    private void count(int read) throws IOException {
+      if (read > 0) {
+        count += read;
+      }
+      if (count > expected || (read < 0 && count != expected)) {
+        throw new IOException("content does not have the expected length of " + expected + " bytes");
+      }
+    }
+  }
+}
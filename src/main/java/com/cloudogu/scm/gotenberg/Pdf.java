@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package com.cloudogu.scm.gotenberg;
+
+import com.google.common.io.ByteStreams;
+import lombok.Getter;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A converted document, the cache key it is stored with and its length in bytes, if it is known.
+ */
+@Getter
+public class Pdf implements Closeable {
+
+  static final long UNKNOWN_LENGTH = -1;
+
+  private final String key;
+  private final InputStream content;
+  private final long length;
+
+  Pdf(String key, InputStream content, long length) {
+    this.key = key;
+    this.content = content;
+    this.length = length;
+  }
+
+  static Pdf of(String key, byte[] content) {
+    return new Pdf(key, new ByteArrayInputStream(content), content.length);
+  }
+
+  boolean hasLength() {
+    return length >= 0;
+  }
+
+  /**
+   * Writes the whole document to the output and closes the content afterwards.
+   */
+  void writeTo(OutputStream output) throws IOException {
+    try (InputStream input = content) {
+      ByteStreams.copy(input, output);
+    }
+  }
+
+  /**
+   * Writes the given range of the document to the output and closes the content afterwards. The content is skipped up
+   * to the start of the range, which is a seek for documents that are read from a file.
+   */
+  void writeTo(OutputStream output, ByteRange range) throws IOException {
+    try (InputStream input = content) {
+      ByteStreams.skipFully(input, range.getStart());
+      ByteStreams.copy(ByteStreams.limit(input, range.getLength()), output);
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    content.close();
+  }
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package com.cloudogu.scm.gotenberg;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Optional;
+import java.util.OptionalLong;
+
+/**
+ * Storage for converted documents, addressed by the cache key of their source.
+ */
+public interface PdfCache {
+
+  Optional<Pdf> get(String cacheKey);
+
+  /**
+   * Returns {@code true} if the document is cached, without reading it or counting it as access.
+   */
+  boolean contains(String cacheKey);
+
+  /**
+   * Returns the size of the document, if it is cached and known to the in memory index. Neither the store nor the
+   * document is accessed, so the result may be empty for cached documents, e.g. while the index is loaded.
+   */
+  OptionalLong getCachedSize(String cacheKey);
+
+  /**
+   * Stores the content and returns the stored document.
+   */
+  Pdf set(String cacheKey, InputStream content) throws IOException;
+
+  /**
+   * Returns the content, which is stored while it is read. The document is only cached, if it was read completely.
+   */
+  Pdf tee(String cacheKey, InputStream content) throws IOException;
+
+}
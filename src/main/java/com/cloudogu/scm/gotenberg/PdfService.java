@@ -16,60 +16,398 @@
 
 package com.cloudogu.scm.gotenberg;
 
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.apache.shiro.SecurityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import sonia.scm.repository.FileObject;
 import sonia.scm.repository.Repository;
 import sonia.scm.repository.RepositoryManager;
+import sonia.scm.repository.RepositoryPermissions;
 
 import jakarta.inject.Inject;
 import jakarta.inject.Singleton;
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Map;
 import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import static sonia.scm.ContextEntry.ContextBuilder.entity;
 import static sonia.scm.NotFoundException.notFound;
 
 @Singleton
-class PdfService {
+class PdfService implements Closeable {
+
+  private static final Logger LOG = LoggerFactory.getLogger(PdfService.class);
+
+  private static final int BACKGROUND_THREADS = 4;
+  // background conversions are limited by the conversion limiter, the queue is only a safety net if it is disabled
+  private static final int MAX_QUEUED_BACKGROUND = 256;
+  // speculative conversions run one at a time, the oldest are kept and newer ones are dropped if the lane is full
+  private static final int MAX_QUEUED_SPECULATIVE = 32;
+  // pumps are bounded by the conversion limits, the pool is only a safety net if they are disabled
+  private static final int MAX_PUMP_THREADS = 64;
+  private static final long IDLE_THREAD_SECONDS = 60;
+  private static final int RETRY_AFTER_SECONDS = 5;
+  private static final long MAX_FAILURES = 1_000;
+  private static final long FAILURE_EXPIRATION_MINUTES = 10;
+  // every uncached document keeps its spool file, which is larger than the file size limit of the cache
+  private static final long MAX_UNCACHED = 32;
+  private static final long UNCACHED_EXPIRATION_MINUTES = 10;
 
   private final RepositoryManager repositoryManager;
   private final CacheFactory cacheFactory;
   private final FileResolver fileResolver;
   private final Converter converter;
+  private final RevisionResolver revisionResolver;
+  private final CacheKeyResolver cacheKeyResolver;
+  private final GotenbergConfigurationStore configurationStore;
+  private final ConversionLimiter conversionLimiter;
+  private final Executor backgroundExecutor;
+  private final Executor speculativeExecutor;
+  private final Executor pumpExecutor;
+
+  private final Map<String, Spool> conversions = new ConcurrentHashMap<>();
+  // failures of background conversions are kept until the client asks for the status
+  private final Cache<String, Exception> failures = CacheBuilder.newBuilder()
+    .maximumSize(MAX_FAILURES)
+    .expireAfterWrite(FAILURE_EXPIRATION_MINUTES, TimeUnit.MINUTES)
+    .build();
+  // documents which were converted, but not kept in the cache, e.g. because they exceed the file size limit
+  private final Cache<String, Spool> uncached = CacheBuilder.newBuilder()
+    .maximumSize(MAX_UNCACHED)
+    .expireAfterAccess(UNCACHED_EXPIRATION_MINUTES, TimeUnit.MINUTES)
+    .<String, Spool>removalListener(notification -> notification.getValue().dispose())
+    .build();
+  private final Counter coalescedCounter;
+  private final Counter speculativeDroppedCounter;
 
   @Inject
   public PdfService(RepositoryManager repositoryManager,
                     CacheFactory cacheFactory,
                     FileResolver fileResolver,
-                    Converter converter) {
+                    Converter converter,
+                    RevisionResolver revisionResolver,
+                    CacheKeyResolver cacheKeyResolver,
+                    GotenbergConfigurationStore configurationStore,
+                    ConversionLimiter conversionLimiter,
+                    MeterRegistry meterRegistry) {
+    this(
+      repositoryManager,
+      cacheFactory,
+      fileResolver,
+      converter,
+      revisionResolver,
+      cacheKeyResolver,
+      configurationStore,
+      conversionLimiter,
+      meterRegistry,
+      new ThreadPoolExecutor(
+        BACKGROUND_THREADS,
+        BACKGROUND_THREADS,
+        0,
+        TimeUnit.MILLISECONDS,
+        new LinkedBlockingQueue<>(MAX_QUEUED_BACKGROUND),
+        new ThreadFactoryBuilder().setNameFormat("gotenberg-conversion-%d").setDaemon(true).build()
+      ),
+      new ThreadPoolExecutor(
+        1,
+        1,
+        0,
+        TimeUnit.MILLISECONDS,
+        new LinkedBlockingQueue<>(MAX_QUEUED_SPECULATIVE),
+        new ThreadFactoryBuilder()
+          .setNameFormat("gotenberg-speculative-%d")
+          .setPriority(Thread.MIN_PRIORITY)
+          .setDaemon(true)
+          .build()
+      ),
+      new ThreadPoolExecutor(
+        0,
+        MAX_PUMP_THREADS,
+        IDLE_THREAD_SECONDS,
+        TimeUnit.SECONDS,
+        new SynchronousQueue<>(),
+        new ThreadFactoryBuilder().setNameFormat("gotenberg-pump-%d").setDaemon(true).build()
+      )
+    );
+  }
+
+  @VisibleForTesting
+  @SuppressWarnings("java:S107") // the service ties all parts together
+  PdfService(RepositoryManager repositoryManager,
+             CacheFactory cacheFactory,
+             FileResolver fileResolver,
+             Converter converter,
+             RevisionResolver revisionResolver,
+             CacheKeyResolver cacheKeyResolver,
+             GotenbergConfigurationStore configurationStore,
+             ConversionLimiter conversionLimiter,
+             MeterRegistry meterRegistry,
+             Executor backgroundExecutor,
+             Executor speculativeExecutor,
+             Executor pumpExecutor) {
     this.repositoryManager = repositoryManager;
     this.cacheFactory = cacheFactory;
     this.fileResolver = fileResolver;
     this.converter = converter;
+    this.revisionResolver = revisionResolver;
+    this.cacheKeyResolver = cacheKeyResolver;
+    this.configurationStore = configurationStore;
+    this.conversionLimiter = conversionLimiter;
+    this.backgroundExecutor = backgroundExecutor;
+    this.speculativeExecutor = speculativeExecutor;
+    this.pumpExecutor = pumpExecutor;
+    this.coalescedCounter = Counter.builder("scm.gotenberg.conversions.coalesced")
+      .description("Number of pdf requests which waited for an already running conversion")
+      .register(meterRegistry);
+    this.speculativeDroppedCounter = Counter.builder("scm.gotenberg.conversions.speculative.dropped")
+      .description("Number of speculative conversions which were dropped, because the lane was full or no slot was free")
+      .register(meterRegistry);
   }
 
   public boolean isSupported(FileObject file) {
-    return Filenames.extension(file.getPath())
-      .map(converter::isConvertable)
-      .orElse(false);
+    return isSupported(file.getPath());
+  }
+
+  public boolean isSupported(String path) {
+    return converter.isConvertablePath(path);
+  }
+
+  /**
+   * Returns the key of the converted document without reading or converting it.
+   */
+  public String getCacheKey(RepositoryPath requestedPath) throws IOException {
+    Repository repository = getRepository(requestedPath);
+    RepositoryPath path = revisionResolver.resolve(repository, requestedPath);
+    return cacheKeyResolver.resolve(repository, path);
+  }
+
+  /**
+   * Returns the key of the converted document, if it was resolved before. The source file is neither read nor hashed.
+   */
+  public Optional<String> getResolvedCacheKey(RepositoryPath requestedPath) throws IOException {
+    Repository repository = getRepository(requestedPath);
+    RepositoryPath path = revisionResolver.resolve(repository, requestedPath);
+    return cacheKeyResolver.getIfResolved(repository, path);
+  }
+
+  /**
+   * Returns the size of the converted document, if it is cached and its key was resolved before. The source file is
+   * neither read nor converted.
+   */
+  public OptionalLong getCachedSize(RepositoryPath requestedPath) throws IOException {
+    Repository repository = getRepository(requestedPath);
+    RepositoryPath path = revisionResolver.resolve(repository, requestedPath);
+    return cachedSize(repository, path.getRevision(), path.getPath());
+  }
+
+  /**
+   * Returns the size of the converted document, if it is cached and its key was resolved before. Neither the
+   * repository nor a store is read and no lock is taken, so it is cheap enough to be called for every file of a
+   * directory listing. The revision has to be the id of a changeset and the caller has to check the permissions.
+   */
+  public OptionalLong peekCachedSize(Repository repository, String revision, String path) {
+    if (!RevisionResolver.isChangesetId(revision)) {
+      return OptionalLong.empty();
+    }
+    return cachedSize(repository, revision, path);
+  }
+
+  private OptionalLong cachedSize(Repository repository, String revision, String path) {
+    Optional<String> cacheKey = cacheKeyResolver.getIfResolved(repository, revision, path);
+    if (cacheKey.isEmpty()) {
+      return OptionalLong.empty();
+    }
+    // the key is only known, if the document was requested before, so the cache of the repository exists already
+    OptionalLong size = cacheFactory.get(repository).getCachedSize(cacheKey.get());
+    if (size.isEmpty() && configurationStore.isSharedCache()) {
+      return cacheFactory.getShared(repository).getCachedSize(cacheKey.get());
+    }
+    return size;
+  }
+
+  public Pdf getOrConvertPdf(RepositoryPath requestedPath) throws IOException {
+    Document document = resolve(requestedPath);
+    Optional<Pdf> cached = document.cache.get(document.cacheKey);
+    if (cached.isPresent()) {
+      return cached.get();
+    }
+    Spool kept = uncached.getIfPresent(document.conversionKey);
+    if (kept != null) {
+      Optional<Pdf> spooled = kept.open();
+      if (spooled.isPresent()) {
+        return spooled.get();
+      }
+    }
+    return convertOnce(document);
+  }
+
+  /**
+   * Returns the status of the conversion without starting it. A document which was converted, but not kept in the
+   * cache, is ready as well, it is served from the file of its spool for a while. If the last background conversion of
+   * the document has failed, its exception is thrown once.
+   */
+  public ConversionStatus getConversionStatus(RepositoryPath requestedPath) throws IOException {
+    Document document = resolve(requestedPath);
+    if (isReady(document)) {
+      return ConversionStatus.READY;
+    }
+    rethrowFailure(document);
+    return conversions.containsKey(document.conversionKey) ? ConversionStatus.CONVERTING : ConversionStatus.NOT_CONVERTED;
+  }
+
+  /**
+   * Starts the conversion of the document in the background, if it is neither ready nor already converting. If the
+   * last background conversion of the document has failed, its exception is thrown once. The limits of the conversion
+   * limiter are checked before the conversion is queued.
+   *
+   * @throws ConversionLimitExceededException if the conversion is rejected by the limiter or the queue is full
+   */
+  public ConversionStatus convertInBackground(RepositoryPath requestedPath) throws IOException {
+    Document document = resolve(requestedPath);
+    if (isReady(document)) {
+      return ConversionStatus.READY;
+    }
+    rethrowFailure(document);
+
+    Spool spool = createSpool(document);
+    if (conversions.putIfAbsent(document.conversionKey, spool) == null) {
+      ConversionLimiter.Reservation reservation = reserve(document, spool);
+      // the conversion runs with the permissions of the user who requested it
+      Runnable task = SecurityUtils.getSubject().associateWith(() -> convertInBackground(document, spool, reservation));
+      try {
+        backgroundExecutor.execute(task);
+      } catch (RejectedExecutionException ex) {
+        ConversionLimitExceededException exceeded = new ConversionLimitExceededException("too many queued conversions", RETRY_AFTER_SECONDS);
+        reservation.close();
+        conversions.remove(document.conversionKey, spool);
+        spool.fail(exceeded);
+        throw exceeded;
+      }
+    }
+    return ConversionStatus.CONVERTING;
+  }
+
+  private boolean isReady(Document document) {
+    return document.cache.contains(document.cacheKey) || uncached.getIfPresent(document.conversionKey) != null;
+  }
+
+  private void rethrowFailure(Document document) throws IOException {
+    Exception failure = failures.asMap().remove(document.conversionKey);
+    if (failure != null) {
+      rethrow(failure);
+    }
+  }
+
+  private void convertInBackground(Document document, Spool spool, ConversionLimiter.Reservation reservation) {
+    try {
+      convertIntoCache(document, spool, reservation);
+    } catch (IOException | RuntimeException ex) {
+      LOG.warn("background conversion of {} failed", document.path.getPath(), ex);
+      failures.put(document.conversionKey, ex);
+    }
+  }
+
+  /**
+   * Converts the document ahead of time, because it is likely requested soon. The document is resolved and converted
+   * on the speculative lane, which runs one conversion at a time and only if a conversion slot is free and no other
+   * conversion waits for one, so that speculative conversions never delay documents somebody waits for. Returns
+   * {@code false}, if the conversion was dropped, because the lane is full.
+   */
+  public boolean prefetch(RepositoryPath requestedPath) {
+    // the conversion runs with the permissions of the user who caused it
+    Runnable task = SecurityUtils.getSubject().associateWith(() -> convertSpeculatively(requestedPath));
+    try {
+      speculativeExecutor.execute(task);
+      return true;
+    } catch (RejectedExecutionException ex) {
+      speculativeDroppedCounter.increment();
+      return false;
+    }
   }
 
-  public InputStream getOrConvertPdf(RepositoryPath path) throws IOException {
+  private void convertSpeculatively(RepositoryPath requestedPath) {
+    try {
+      preConvert(requestedPath);
+    } catch (ConversionLimitExceededException ex) {
+      speculativeDroppedCounter.increment();
+    } catch (IOException | RuntimeException ex) {
+      // the failure is reported, when the document itself is requested
+      LOG.debug("speculative conversion of {} failed", requestedPath.getPath(), ex);
+    }
+  }
+
+  /**
+   * Converts the document on the calling thread, if it is neither ready nor already converting. The conversion starts
+   * only if a conversion slot is free and no other conversion waits for one, it never waits for a slot. Returns
+   * {@code false} if nothing had to be converted.
+   *
+   * @throws ConversionLimitExceededException if no conversion slot is free
+   */
+  public boolean preConvert(RepositoryPath requestedPath) throws IOException {
+    Document document = resolve(requestedPath);
+    if (isReady(document) || conversions.containsKey(document.conversionKey)) {
+      return false;
+    }
+    ConversionLimiter.Reservation reservation = conversionLimiter.tryReserve(document.repository)
+      .orElseThrow(() -> new ConversionLimitExceededException("no free conversion slot", RETRY_AFTER_SECONDS));
+    Spool spool = createSpool(document);
+    if (conversions.putIfAbsent(document.conversionKey, spool) != null) {
+      reservation.close();
+      return false;
+    }
+    convertIntoCache(document, spool, reservation);
+    return true;
+  }
+
+  private void convertIntoCache(Document document, Spool spool, ConversionLimiter.Reservation reservation) throws IOException {
+    // the pump runs on the calling thread, nobody reads the document unless another request waits for it
+    start(document, spool, reservation, Runnable::run).close();
+    Optional<Exception> failure = spool.getFailure();
+    if (failure.isPresent()) {
+      rethrow(failure.get());
+    }
+    LOG.debug("converted {} in background", document.cacheKey);
+  }
+
+  private Document resolve(RepositoryPath requestedPath) throws IOException {
+    Repository repository = getRepository(requestedPath);
+    RepositoryPath path = revisionResolver.resolve(repository, requestedPath);
+    String cacheKey = cacheKeyResolver.resolve(repository, path);
+
+    PdfCache cache = cacheFactory.get(repository);
+    if (configurationStore.isSharedCache() && !cache.contains(cacheKey)) {
+      // documents with the same content are converted only once, regardless of the repository
+      return new Document(repository, path, cacheKey, cacheFactory.getShared(repository), cacheKey);
+    }
+    return new Document(repository, path, cacheKey, cache, repository.getId() + "/" + cacheKey);
+  }
+
+  private Repository getRepository(RepositoryPath path) {
     checkIfPathIsSupported(path);
 
     Repository repository = repositoryManager.get(path.getNamespaceAndName());
     if (repository == null) {
       throw notFound(entity(path.getNamespaceAndName()));
     }
-
-    CacheFactory.Cache cache = cacheFactory.get(repository);
-
-    Optional<InputStream> optional = cache.get(path);
-    if (optional.isPresent()) {
-      return optional.get();
-    } else {
-      return convertAndCache(cache, repository, path);
-    }
+    // the shared cache must never serve documents of repositories, the user is not allowed to read
+    RepositoryPermissions.read(repository).check();
+    return repository;
   }
 
   private void checkIfPathIsSupported(RepositoryPath path) {
@@ -79,11 +417,161 @@ class PdfService {
      }
   }
 
-  private InputStream convertAndCache(CacheFactory.Cache cache, Repository repository, RepositoryPath path) throws IOException {
-    try (InputStream convert = converter.convert(path, fileResolver.getContent(repository, path))) {
-      cache.set(path, convert);
+  private Pdf convertOnce(Document document) throws IOException {
+    Spool spool = createSpool(document);
+    Spool running = conversions.putIfAbsent(document.conversionKey, spool);
+    if (running != null) {
+      // someone else is already converting the same document, we read it while it is written
+      coalescedCounter.increment();
+      Optional<Pdf> shared = running.open();
+      if (shared.isPresent()) {
+        return shared.get();
+      }
+      Optional<Pdf> cached = document.cache.get(document.cacheKey);
+      if (cached.isPresent()) {
+        return cached.get();
+      }
+      // the conversion has finished in the meantime and its result was not kept in the cache
+      return convertOnce(document);
+    }
+    return start(document, spool, reserve(document, spool), pumpExecutor);
+  }
+
+  private ConversionLimiter.Reservation reserve(Document document, Spool spool) {
+    try {
+      return conversionLimiter.reserve(document.repository);
+    } catch (RuntimeException ex) {
+      conversions.remove(document.conversionKey, spool);
+      spool.fail(ex);
+      throw ex;
+    }
+  }
+
+  /**
+   * Starts the conversion of the document and returns the reader of the caller, while the answer of Gotenberg is
+   * written to the cache and the spool by the pump. The conversion is finished for waiting requests, when Gotenberg
+   * has sent the document, regardless of the reader. Returns the cached document, if it was converted between our
+   * cache miss and the registration of our spool. A document which is not kept in the cache is kept in its spool.
+   */
+  private Pdf start(Document document, Spool spool, ConversionLimiter.Reservation reservation, Executor executor) throws IOException {
+    Pdf reader;
+    Pdf teed;
+    try {
+      Optional<Pdf> cached = document.cache.get(document.cacheKey);
+      if (cached.isPresent()) {
+        reservation.close();
+        conversions.remove(document.conversionKey, spool);
+        spool.discard();
+        return cached.get();
+      }
+      teed = convertAndCache(document, reservation);
+      try {
+        reader = spool.start();
+      } catch (IOException | RuntimeException ex) {
+        teed.close();
+        throw ex;
+      }
+    } catch (IOException | RuntimeException ex) {
+      reservation.close();
+      conversions.remove(document.conversionKey, spool);
+      spool.fail(ex);
+      throw ex;
+    }
+    try {
+      executor.execute(() -> {
+        try {
+          spool.retain();
+          spool.pump(teed.getContent());
+          if (spool.getFailure().isEmpty() && !document.cache.contains(document.cacheKey)) {
+            // the document is served from the spool, otherwise every poll and every request would convert it again
+            uncached.put(document.conversionKey, spool);
+          } else {
+            spool.dispose();
+          }
+        } finally {
+          conversions.remove(document.conversionKey, spool);
+        }
+      });
+    } catch (RejectedExecutionException ex) {
+      GotenbergUnavailableException unavailable = new GotenbergUnavailableException("too many running conversions", RETRY_AFTER_SECONDS);
+      reader.close();
+      teed.close();
+      conversions.remove(document.conversionKey, spool);
+      spool.fail(unavailable);
+      throw unavailable;
+    }
+    return reader;
+  }
+
+  private Pdf convertAndCache(Document document, ConversionLimiter.Reservation reservation) throws IOException {
+    RepositoryPath path = document.path;
+    ConversionLimiter.Permit permit = reservation.acquire();
+    // the permit is held until the response of gotenberg is read completely or an abandoned request has returned
+    InputStream convert = converter.convert(path, content(document.repository, path), permit::close);
+    try {
+      return document.cache.tee(document.cacheKey, convert);
+    } catch (IOException | RuntimeException ex) {
+      try {
+        convert.close();
+      } catch (IOException closeException) {
+        ex.addSuppressed(closeException);
+      }
+      throw ex;
+    }
+  }
+
+  private Converter.Content content(Repository repository, RepositoryPath path) {
+    return new Converter.Content() {
+      @Override
+      public InputStream open() throws IOException {
+        return fileResolver.getContent(repository, path);
+      }
+
+      @Override
+      public OptionalLong getLength() throws IOException {
+        return fileResolver.getLength(repository, path);
+      }
+    };
+  }
+
+  private Spool createSpool(Document document) {
+    return new Spool(document.cacheKey, configurationStore.get().conversionTimeoutMillis());
+  }
+
+  private void rethrow(Exception cause) throws IOException {
+    if (cause instanceof IOException) {
+      throw (IOException) cause;
+    } else if (cause instanceof RuntimeException) {
+      throw (RuntimeException) cause;
+    }
+    throw new IllegalStateException("conversion failed", cause);
+  }
+
+  /**
+   * A requested document with its resolved revision, its cache key and the cache it belongs to.
+   */
+  @Override
+  public void close() {
+    BackgroundExecutors.shutdown(backgroundExecutor, speculativeExecutor, pumpExecutor);
+    // removes the spool files of documents which were too large for the cache
+    uncached.invalidateAll();
+  }
+
+  private static class Document {
+
+    private final Repository repository;
+    private final RepositoryPath path;
+    private final String cacheKey;
+    private final PdfCache cache;
+    private final String conversionKey;
+
+    private Document(Repository repository, RepositoryPath path, String cacheKey, PdfCache cache, String conversionKey) {
+      this.repository = repository;
+      this.path = path;
+      this.cacheKey = cacheKey;
+      this.cache = cache;
+      this.conversionKey = conversionKey;
     }
-    return cache.get(path).orElseThrow(() -> new IllegalStateException("currently cached object is not available"));
   }
 
 }
@@ -0,0 +1,285 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package com.cloudogu.scm.gotenberg;
+
+import com.github.legman.Subscribe;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.shiro.SecurityUtils;
+import sonia.scm.EagerSingleton;
+import sonia.scm.plugin.Extension;
+import sonia.scm.repository.Added;
+import sonia.scm.repository.BrowserResult;
+import sonia.scm.repository.Changeset;
+import sonia.scm.repository.Copied;
+import sonia.scm.repository.Modifications;
+import sonia.scm.repository.Modified;
+import sonia.scm.repository.PostReceiveRepositoryHookEvent;
+import sonia.scm.repository.Removed;
+import sonia.scm.repository.Renamed;
+import sonia.scm.repository.Repository;
+import sonia.scm.repository.api.RepositoryService;
+import sonia.scm.repository.api.RepositoryServiceFactory;
+
+import jakarta.inject.Inject;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.OptionalLong;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Converts documents which were added or modified by a push in the background, so that they are already cached when
+ * they are viewed for the first time. The documents are converted one after another on a single thread with low
+ * priority, pushes which arrive while the queue is full are ignored. A document is only converted if a conversion slot
+ * is free and no other conversion waits for one, otherwise the rest of the push is skipped.
+ */
+@Slf4j
+@Extension
+@EagerSingleton
+public class PreConversion implements Closeable {
+
+  private static final int MAX_QUEUED_PUSHES = 100;
+  private static final long BYTES_PER_MEGABYTE = 1024L * 1024L;
+
+  private final GotenbergConfigurationStore configurationStore;
+  private final RepositoryServiceFactory repositoryServiceFactory;
+  private final PdfService pdfService;
+  private final Executor executor;
+  private final Counter convertedCounter;
+  private final Counter droppedCounter;
+
+  @Inject
+  public PreConversion(GotenbergConfigurationStore configurationStore,
+                       RepositoryServiceFactory repositoryServiceFactory,
+                       PdfService pdfService,
+                       MeterRegistry meterRegistry) {
+    this(
+      configurationStore,
+      repositoryServiceFactory,
+      pdfService,
+      meterRegistry,
+      new ThreadPoolExecutor(
+        1, 1, 0, TimeUnit.MILLISECONDS,
+        new LinkedBlockingQueue<>(MAX_QUEUED_PUSHES),
+        new ThreadFactoryBuilder()
+          .setNameFormat("gotenberg-preconversion-%d")
+          .setPriority(Thread.MIN_PRIORITY)
+          .setDaemon(true)
+          .build()
+      )
+    );
+  }
+
+  @VisibleForTesting
+  PreConversion(GotenbergConfigurationStore configurationStore,
+                RepositoryServiceFactory repositoryServiceFactory,
+                PdfService pdfService,
+                MeterRegistry meterRegistry,
+                Executor executor) {
+    this.configurationStore = configurationStore;
+    this.repositoryServiceFactory = repositoryServiceFactory;
+    this.pdfService = pdfService;
+    this.executor = executor;
+    this.convertedCounter = Counter.builder("scm.gotenberg.preconversion.converted")
+      .description("Number of documents which were converted after a push")
+      .register(meterRegistry);
+    this.droppedCounter = Counter.builder("scm.gotenberg.preconversion.dropped")
+      .description("Number of pushes which were ignored, because the queue was full")
+      .register(meterRegistry);
+  }
+
+  /**
+   * The event is handled synchronously, because the changesets of the hook context and the subject of the pushing
+   * user are only available during the push. The conversion itself runs in the background.
+   */
+  @Subscribe(async = false)
+  public void onEvent(PostReceiveRepositoryHookEvent event) {
+    GotenbergConfiguration configuration = configurationStore.get();
+    Repository repository = event.getRepository();
+    if (!configuration.isEnabled() || !configuration.isPreConversionEnabled()
+      || !matches(configuration.getPreConversionRepositories(), repository.getNamespace() + "/" + repository.getName())) {
+      return;
+    }
+    List<Changeset> changesets = ImmutableList.copyOf(event.getContext().getChangesetProvider().getChangesets());
+    if (changesets.isEmpty()) {
+      return;
+    }
+    // the documents are converted with the permissions of the user who pushed them
+    Runnable task = SecurityUtils.getSubject().associateWith(() -> preConvert(repository, changesets));
+    try {
+      executor.execute(task);
+    } catch (RejectedExecutionException ex) {
+      droppedCounter.increment();
+      log.debug("ignore push to {}, because too many pushes are waiting for conversion", repository);
+    }
+  }
+
+  private void preConvert(Repository repository, List<Changeset> changesets) {
+    GotenbergConfiguration configuration = configurationStore.get();
+    try (RepositoryService service = repositoryServiceFactory.create(repository)) {
+      int remaining = configuration.getPreConversionMaxFilesPerPush();
+      for (Map.Entry<String, Change> entry : collectChanges(service, changesets).entrySet()) {
+        if (configuration.getPreConversionMaxFilesPerPush() > 0 && remaining <= 0) {
+          log.debug("stop conversion of push to {}, because the maximum number of documents is reached", repository);
+          return;
+        }
+        String path = entry.getKey();
+        Change change = entry.getValue();
+        if (change.removed || !isCandidate(configuration, path) || isTooLarge(configuration, service, change.revision, path)) {
+          continue;
+        }
+        RepositoryPath repositoryPath = new RepositoryPath(repository.getNamespace(), repository.getName(), change.revision, path);
+        try {
+          // documents which were already cached do not count against the limit
+          if (pdfService.preConvert(repositoryPath)) {
+            convertedCounter.increment();
+            remaining--;
+          }
+        } catch (RetryLaterException ex) {
+          log.debug("stop conversion of push to {}, because no conversion is possible right now: {}", repository, ex.getMessage());
+          return;
+        } catch (IOException | RuntimeException ex) {
+          log.warn("failed to convert {} after push", path, ex);
+        }
+      }
+    } catch (IOException | RuntimeException ex) {
+      log.warn("failed to convert documents of push to {}", repository, ex);
+    }
+  }
+
+  /**
+   * Collects the changed paths with the most recent change of each path. The changesets of the hook context are
+   * ordered from the oldest to the newest, so later changesets replace the changes of earlier ones. Their dates are
+   * not used, because they are set by the committer and may be in any order, e.g. after a rebase.
+   */
+  private Map<String, Change> collectChanges(RepositoryService service, List<Changeset> changesets) throws IOException {
+    Map<String, Change> changes = new LinkedHashMap<>();
+    for (Changeset changeset : changesets) {
+      Modifications modifications = service.getModificationsCommand()
+        .revision(changeset.getId())
+        .getModifications();
+      if (modifications == null) {
+        continue;
+      }
+      // a path which is removed and added by the same changeset, e.g. by swapping two files, still exists
+      removedPaths(modifications).forEach(path -> changes.put(path, new Change(changeset.getId(), true)));
+      changedPaths(modifications).forEach(path -> changes.put(path, new Change(changeset.getId(), false)));
+    }
+    return changes;
+  }
+
+  private Stream<String> changedPaths(Modifications modifications) {
+    return Stream.of(
+      modifications.getAdded().stream().map(Added::getPath),
+      modifications.getModified().stream().map(Modified::getPath),
+      modifications.getRenamed().stream().map(Renamed::getNewPath),
+      modifications.getCopied().stream().map(Copied::getTargetPath)
+    ).flatMap(paths -> paths);
+  }
+
+  private Stream<String> removedPaths(Modifications modifications) {
+    return Stream.concat(
+      modifications.getRemoved().stream().map(Removed::getPath),
+      modifications.getRenamed().stream().map(Renamed::getOldPath)
+    );
+  }
+
+  private boolean isCandidate(GotenbergConfiguration configuration, String path) {
+    return pdfService.isSupported(path) && matches(configuration.getPreConversionPaths(), path);
+  }
+
+  private boolean isTooLarge(GotenbergConfiguration configuration, RepositoryService service, String revision, String path) throws IOException {
+    long maxBytes = configuration.getPreConversionMaxFileMegabytes() * BYTES_PER_MEGABYTE;
+    if (maxBytes <= 0) {
+      return false;
+    }
+    BrowserResult result = service.getBrowseCommand()
+      .setRevision(revision)
+      .setPath(path)
+      .setDisableLastCommit(true)
+      .setDisableSubRepositoryDetection(true)
+      .getBrowserResult();
+    if (result == null || result.getFile() == null) {
+      return true;
+    }
+    OptionalLong length = result.getFile().getLength();
+    return length.isPresent() && length.getAsLong() > maxBytes;
+  }
+
+  /**
+   * Returns {@code true} if the value matches one of the glob patterns or if there are no patterns at all. A
+   * {@code *} matches within a single directory, {@code **} matches across directories.
+   */
+  @VisibleForTesting
+  static boolean matches(List<String> globs, String value) {
+    if (globs == null || globs.isEmpty()) {
+      return true;
+    }
+    return globs.stream().anyMatch(glob -> toPattern(glob).matcher(value).matches());
+  }
+
+  private static Pattern toPattern(String glob) {
+    StringBuilder regex = new StringBuilder();
+    String pattern = glob.startsWith("/") ? glob.substring(1) : glob;
+    for (int i = 0; i < pattern.length(); i++) {
+      char c = pattern.charAt(i);
+      if (c == '*' && pattern.startsWith("**/", i)) {
+        regex.append("(?:.*/)?");
+        i += 2;
+      } else if (c == '*' && pattern.startsWith("**", i)) {
+        regex.append(".*");
+        i++;
+      } else if (c == '*') {
+        regex.append("[^/]*");
+      } else if (c == '?') {
+        regex.append("[^/]");
+      } else {
+        regex.append(Pattern.quote(String.valueOf(c)));
+      }
+    }
+    return Pattern.compile(regex.toString());
+  }
+
+  @Override
+  public void close() {
+    BackgroundExecutors.shutdown(executor);
+  }
+
+  private static final class Change {
+
+    private final String revision;
+    private final boolean removed;
+
+    private Change(String revision, boolean removed) {
+      this.revision = revision;
+      this.removed = removed;
+    }
+  }
+}
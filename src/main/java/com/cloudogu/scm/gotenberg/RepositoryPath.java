@@ -16,13 +16,11 @@
 
 package com.cloudogu.scm.gotenberg;
 
-import com.google.common.hash.Hashing;
 import lombok.EqualsAndHashCode;
 import lombok.Getter;
 import lombok.RequiredArgsConstructor;
 import sonia.scm.repository.NamespaceAndName;
 
-import java.nio.charset.StandardCharsets;
 import java.util.Optional;
 
 @Getter
@@ -35,8 +33,6 @@ public class RepositoryPath {
   private final String revision;
   private final String path;
 
-  private String cacheKey = null;
-
   public NamespaceAndName getNamespaceAndName() {
     return new NamespaceAndName(namespace, name);
   }
@@ -49,18 +45,4 @@ public class RepositoryPath {
     return Filenames.filename(path);
   }
 
-  public String getCacheKey() {
-    if (cacheKey == null) {
-      cacheKey = createCacheKey();
-    }
-    return cacheKey;
-  }
-
-  @SuppressWarnings("UnstableApiUsage")
-  private String createCacheKey() {
-    return Hashing.sha256()
-      .hashString(revision + "/" + path, StandardCharsets.UTF_8)
-      .toString();
-  }
-
 }
@@ -0,0 +1,164 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package com.cloudogu.scm.gotenberg;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import jakarta.inject.Singleton;
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketTimeoutException;
+import java.time.Clock;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Aborts the transfer of responses which stall or exceed their deadline, by closing the underlying stream from a
+ * separate thread. A blocked read on the stream fails afterwards.
+ */
+@Singleton
+public class ResponseWatchdog implements Closeable {
+
+  private static final long CHECK_INTERVAL_MILLIS = 1000;
+
+  private final Clock clock;
+  private final Set<Watched> watched = ConcurrentHashMap.newKeySet();
+  private final ScheduledExecutorService scheduler;
+
+  public ResponseWatchdog() {
+    this(
+      Clock.systemUTC(),
+      Executors.newSingleThreadScheduledExecutor(
+        new ThreadFactoryBuilder().setNameFormat("gotenberg-watchdog").setDaemon(true).build()
+      )
+    );
+    scheduler.scheduleWithFixedDelay(this::check, CHECK_INTERVAL_MILLIS, CHECK_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+  }
+
+  @VisibleForTesting
+  ResponseWatchdog(Clock clock) {
+    this(clock, null);
+  }
+
+  private ResponseWatchdog(Clock clock, ScheduledExecutorService scheduler) {
+    this.clock = clock;
+    this.scheduler = scheduler;
+  }
+
+  /**
+   * Returns a stream which is aborted, if no bytes could be read for longer than the idle timeout or if the whole
+   * transfer takes longer than the given duration. Zero or negative values disable the respective limit.
+   */
+  InputStream watch(InputStream content, long idleTimeoutMillis, long maxDurationMillis) {
+    long deadline = maxDurationMillis > 0 ? clock.millis() + maxDurationMillis : 0;
+    Watched stream = new Watched(content, idleTimeoutMillis, deadline);
+    watched.add(stream);
+    return stream;
+  }
+
+  @Override
+  public void close() {
+    BackgroundExecutors.shutdown(scheduler);
+  }
+
+  @VisibleForTesting
+  void check() {
+    long now = clock.millis();
+    for (Watched stream : watched) {
+      if (stream.isExpired(now)) {
+        stream.abort();
+      }
+    }
+  }
+
+  private class Watched extends FilterInputStream {
+
+    private final long idleTimeoutMillis;
+    private final long deadline;
+
+    private volatile long lastActivity;
+    private volatile boolean aborted;
+
+    private Watched(InputStream in, long idleTimeoutMillis, long deadline) {
+      super(in);
+      this.idleTimeoutMillis = idleTimeoutMillis;
+      this.deadline = deadline;
+      this.lastActivity = clock.millis();
+    }
+
+    private boolean isExpired(long now) {
+      return (idleTimeoutMillis > 0 && now - lastActivity > idleTimeoutMillis) || (deadline > 0 && now > deadline);
+    }
+
+    private void abort() {
+      aborted = true;
+      watched.remove(this);
+      try {
+        in.close();
+      } catch (IOException e) {
+        // the stream is abandoned anyway
+      }
+    }
+
+    @Override
+    public int read() throws IOException {
+      try {
+        return touch(super.read());
+      } catch (IOException e) {
+        throw aborted ? timeout(e) : e;
+      }
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      try {
+        return touch(super.read(b, off, len));
+      } catch (IOException e) {
+        throw aborted ? timeout(e) : e;
+      }
+    }
+
+    private int touch(int result) throws IOException {
+      if (aborted) {
+        throw new SocketTimeoutException("response of gotenberg timed out");
+      }
+      lastActivity = clock.millis();
+      return result;
+    }
+
+    private IOException timeout(IOException cause) {
+      if (cause instanceof SocketTimeoutException) {
+        return cause;
+      }
+      IOException timeout = new SocketTimeoutException("response of gotenberg timed out");
+      timeout.initCause(cause);
+      return timeout;
+    }
+
+    @Override
+    public void close() throws IOException {
+      watched.remove(this);
+      super.close();
+    }
+  }
+}
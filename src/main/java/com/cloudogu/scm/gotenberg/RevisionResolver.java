@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package com.cloudogu.scm.gotenberg;
+
+import com.github.legman.Subscribe;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import sonia.scm.EagerSingleton;
+import sonia.scm.plugin.Extension;
+import sonia.scm.repository.BrowserResult;
+import sonia.scm.repository.PostReceiveRepositoryHookEvent;
+import sonia.scm.repository.Repository;
+import sonia.scm.repository.api.RepositoryService;
+import sonia.scm.repository.api.RepositoryServiceFactory;
+
+import jakarta.inject.Inject;
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import static sonia.scm.ContextEntry.ContextBuilder.entity;
+import static sonia.scm.NotFoundException.notFound;
+
+/**
+ * Resolves symbolic revisions like branch names to the id of the changeset, because only the content of a changeset
+ * is immutable and can be cached.
+ */
+@Extension
+@EagerSingleton
+public class RevisionResolver {
+
+  private static final long MAX_REVISIONS = 1_000;
+  private static final long EXPIRATION_SECONDS = 60;
+  private static final Pattern CHANGESET_ID = Pattern.compile("[0-9a-f]{40}|[0-9a-f]{64}");
+
+  private final RepositoryServiceFactory repositoryServiceFactory;
+  private final Cache<String, String> revisions = CacheBuilder.newBuilder()
+    .maximumSize(MAX_REVISIONS)
+    .expireAfterWrite(EXPIRATION_SECONDS, TimeUnit.SECONDS)
+    .build();
+
+  @Inject
+  public RevisionResolver(RepositoryServiceFactory repositoryServiceFactory) {
+    this.repositoryServiceFactory = repositoryServiceFactory;
+  }
+
+  /**
+   * Returns {@code true} if the revision is the id of a changeset and therefore does not need to be resolved.
+   */
+  public static boolean isChangesetId(String revision) {
+    return CHANGESET_ID.matcher(revision).matches();
+  }
+
+  public RepositoryPath resolve(Repository repository, RepositoryPath path) throws IOException {
+    if (isChangesetId(path.getRevision())) {
+      return path;
+    }
+    String revision = resolve(repository, path.getRevision(), path.getPath());
+    if (revision.equals(path.getRevision())) {
+      return path;
+    }
+    return new RepositoryPath(path.getNamespace(), path.getName(), revision, path.getPath());
+  }
+
+  private String resolve(Repository repository, String revision, String path) throws IOException {
+    try {
+      return revisions.get(key(repository, revision), () -> lookup(repository, revision, path));
+    } catch (ExecutionException ex) {
+      if (ex.getCause() instanceof IOException) {
+        throw (IOException) ex.getCause();
+      }
+      throw new IllegalStateException("failed to resolve revision", ex.getCause());
+    } catch (UncheckedExecutionException ex) {
+      if (ex.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) ex.getCause();
+      }
+      throw ex;
+    }
+  }
+
+  private String lookup(Repository repository, String revision, String path) throws IOException {
+    try (RepositoryService service = repositoryServiceFactory.create(repository)) {
+      BrowserResult result = service.getBrowseCommand()
+        .setRevision(revision)
+        .setPath(path)
+        .setDisableLastCommit(true)
+        .getBrowserResult();
+      if (result == null) {
+        throw notFound(entity("Revision", revision).in(repository.getNamespaceAndName()));
+      }
+      return result.getRevision();
+    }
+  }
+
+  @Subscribe
+  public void onEvent(PostReceiveRepositoryHookEvent event) {
+    // branches of the repository may point to other changesets now
+    String prefix = key(event.getRepository(), "");
+    revisions.asMap().keySet().removeIf(key -> key.startsWith(prefix));
+  }
+
+  private String key(Repository repository, String revision) {
+    return repository.getId() + "/" + revision;
+  }
+}
@@ -0,0 +1,300 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package com.cloudogu.scm.gotenberg;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Optional;
+
+/**
+ * The document of a running conversion. A single pump reads the answer of Gotenberg to its end and writes it to a
+ * temporary file, while any number of readers follow the file at their own pace. So the conversion is finished and
+ * its resources are released as soon as Gotenberg has sent the document, regardless of how fast or whether the clients
+ * read it. The file is deleted, when the pump has finished and the last reader is closed, unless the spool is retained.
+ */
+final class Spool {
+
+  private static final Logger LOG = LoggerFactory.getLogger(Spool.class);
+
+  private static final int BUFFER_SIZE = 8192;
+  private static final int RETRY_AFTER_SECONDS = 5;
+
+  private final String key;
+  private final long timeoutMillis;
+
+  private Path file;
+  private FileChannel output;
+  private long written;
+  private boolean finished;
+  private boolean discarded;
+  private boolean retained;
+  private Exception failure;
+  // the pump holds a reference until it has finished
+  private int references = 1;
+
+  /**
+   * Creates the spool of a conversion which is about to start. Readers which wait longer than the timeout for the
+   * next part of the document fail.
+   */
+  Spool(String key, long timeoutMillis) {
+    this.key = key;
+    this.timeoutMillis = timeoutMillis;
+  }
+
+  /**
+   * Creates the file of the spool and returns the reader of the caller who started the conversion. The reader must be
+   * opened before the pump starts, otherwise the pump could finish and delete the file before.
+   */
+  synchronized Pdf start() throws IOException {
+    file = Files.createTempFile("gotenberg-", ".pdf");
+    output = FileChannel.open(file, StandardOpenOption.WRITE);
+    notifyAll();
+    return reader();
+  }
+
+  /**
+   * Returns a reader of the document, as soon as the conversion has started to send it. If the conversion has failed
+   * before, its exception is thrown. The result is empty, if the document is no longer available from the spool,
+   * because it was served from the cache or its spool was already deleted.
+   */
+  synchronized Optional<Pdf> open() throws IOException {
+    long deadline = System.currentTimeMillis() + timeoutMillis;
+    while (!discarded && failure == null && (file == null || (written == 0 && !finished))) {
+      long remaining = deadline - System.currentTimeMillis();
+      if (remaining <= 0) {
+        throw new GotenbergUnavailableException("timeout while waiting for a running conversion", RETRY_AFTER_SECONDS);
+      }
+      await(remaining);
+    }
+    if (failure != null && written == 0) {
+      rethrow(failure);
+    }
+    if (discarded || references == 0) {
+      return Optional.empty();
+    }
+    return Optional.of(reader());
+  }
+
+  private Pdf reader() throws IOException {
+    FileChannel input = FileChannel.open(file, StandardOpenOption.READ);
+    references++;
+    return new Pdf(key, new Reader(input), finished && failure == null ? written : Pdf.UNKNOWN_LENGTH);
+  }
+
+  /**
+   * Reads the content to its end and writes it to the spool. The content is closed afterwards, even if the spool
+   * could not be written.
+   */
+  void pump(InputStream content) {
+    try {
+      try (InputStream input = content) {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int read;
+        while ((read = input.read(buffer)) >= 0) {
+          write(ByteBuffer.wrap(buffer, 0, read));
+        }
+      }
+      finish(null);
+    } catch (IOException | RuntimeException ex) {
+      LOG.warn("failed to read converted document {}", key, ex);
+      finish(ex);
+    }
+  }
+
+  private void write(ByteBuffer buffer) throws IOException {
+    int length = buffer.remaining();
+    while (buffer.hasRemaining()) {
+      output.write(buffer);
+    }
+    synchronized (this) {
+      written += length;
+      notifyAll();
+    }
+  }
+
+  /**
+   * Fails the conversion before the pump was started. Waiting readers get the exception.
+   */
+  void fail(Exception exception) {
+    finish(exception);
+  }
+
+  /**
+   * Finishes the spool without a document, because it was found in the cache. Waiting readers read it from there.
+   */
+  synchronized void discard() {
+    discarded = true;
+    finish(null);
+  }
+
+  private synchronized void finish(Exception exception) {
+    if (finished) {
+      return;
+    }
+    finished = true;
+    failure = exception;
+    close(output);
+    notifyAll();
+    release();
+  }
+
+  /**
+   * Keeps the file after the pump has finished and the last reader is closed, so that the document can be opened
+   * later on, until {@link #dispose()} is called. It must be called before the pump has finished.
+   */
+  synchronized void retain() {
+    if (!retained && references > 0) {
+      retained = true;
+      references++;
+    }
+  }
+
+  /**
+   * Releases the file of a retained spool. It is deleted as soon as the last reader is closed.
+   */
+  synchronized void dispose() {
+    if (retained) {
+      retained = false;
+      release();
+    }
+  }
+
+  /**
+   * Returns the exception of the conversion, if it has failed.
+   */
+  synchronized Optional<Exception> getFailure() {
+    return Optional.ofNullable(failure);
+  }
+
+  private synchronized void release() {
+    references--;
+    if (references == 0 && file != null) {
+      try {
+        Files.deleteIfExists(file);
+      } catch (IOException ex) {
+        LOG.warn("failed to delete spool file {}", file, ex);
+      }
+    }
+  }
+
+  /**
+   * Waits until more than the given number of bytes are written and returns the number of bytes which can be read
+   * from the position. Returns zero, if the document was written completely.
+   */
+  private synchronized long awaitAvailable(long position) throws IOException {
+    long deadline = System.currentTimeMillis() + timeoutMillis;
+    while (written <= position && !finished) {
+      long remaining = deadline - System.currentTimeMillis();
+      if (remaining <= 0) {
+        throw new IOException("timeout while waiting for converted document " + key);
+      }
+      await(remaining);
+    }
+    if (written <= position && failure != null) {
+      throw new IOException("conversion of " + key + " failed", failure);
+    }
+    return written - position;
+  }
+
+  private void await(long millis) throws InterruptedIOException {
+    try {
+      wait(millis);
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("interrupted while waiting for converted document " + key);
+    }
+  }
+
+  private static void rethrow(Exception exception) throws IOException {
+    if (exception instanceof IOException) {
+      throw (IOException) exception;
+    }
+    throw (RuntimeException) exception;
+  }
+
+  private static void close(FileChannel channel) {
+    if (channel != null) {
+      try {
+        channel.close();
+      } catch (IOException ex) {
+        LOG.debug("failed to close spool file", ex);
+      }
+    }
+  }
+
+  private final class Reader extends InputStream {
+
+    private final FileChannel input;
+    private long position;
+    private boolean closed;
+
+    private Reader(FileChannel input) {
+      this.input = input;
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] single = new byte[1];
+      int read = read(single, 0, 1);
+      return read < 0 ? -1 : single[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] buffer, int off, int len) throws IOException {
+      if (len == 0) {
+        return 0;
+      }
+      long available = awaitAvailable(position);
+      if (available == 0) {
+        return -1;
+      }
+      int read = input.read(ByteBuffer.wrap(buffer, off, (int) Math.min(len, available)), position);
+      if (read > 0) {
+        position += read;
+      }
+      return read;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      if (n <= 0) {
+        return 0;
+      }
+      long skipped = Math.min(n, awaitAvailable(position));
+      position += skipped;
+      return skipped;
+    }
+
+    @Override
+    public void close() {
+      if (!closed) {
+        closed = true;
+        Spool.close(input);
+        release();
+      }
+    }
+  }
+}
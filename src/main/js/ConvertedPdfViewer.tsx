@@ -14,16 +14,61 @@
  * along with this program. If not, see https://www.gnu.org/licenses/.
  */
 
-import React, {FC} from "react";
-import {File, Link} from "@scm-manager/ui-types";
+import React, { FC } from "react";
+import { useTranslation } from "react-i18next";
+import { useQuery } from "react-query";
+import { apiClient } from "@scm-manager/ui-api";
+import { ErrorNotification, Loading } from "@scm-manager/ui-components";
+import { File, HalRepresentation, Link } from "@scm-manager/ui-types";
 import PdfViewer from "./PdfViewer";
 
 type Props = {
   file: File;
 };
 
-const ConvertedPdfViewer:FC<Props> = ({file}) => (
-  <PdfViewer src={(file._links.pdf as Link).href} download={file} />
-);
+type ConversionStatus = HalRepresentation & {
+  status: "NOT_CONVERTED" | "CONVERTING" | "READY";
+};
+
+const POLL_INTERVAL = 1000;
+
+const fetchStatus = (href: string): Promise<ConversionStatus> =>
+  apiClient.get(href).then(response => response.json());
+
+// polling only reads the status, the conversion is started once if the document was not converted yet
+const startConversion = (href: string): Promise<ConversionStatus> =>
+  apiClient.post(href).then(response => response.json());
+
+const useConversionStatus = (link?: Link) =>
+  useQuery<ConversionStatus, Error>(
+    ["gotenberg", "conversion", link?.href],
+    () =>
+      fetchStatus(link!.href).then(status =>
+        status.status === "NOT_CONVERTED" ? startConversion(link!.href) : status
+      ),
+    {
+      enabled: !!link,
+      // a running conversion is streamed to the viewer, so polling stops as soon as the conversion was started
+      refetchInterval: (data?: ConversionStatus) => (data?.status === "NOT_CONVERTED" ? POLL_INTERVAL : false)
+    }
+  );
+
+const ConvertedPdfViewer: FC<Props> = ({ file }) => {
+  const [t] = useTranslation("plugins");
+  // documents which are already cached are embedded by the enricher of the file, their status does not need to be read
+  const cached = !!file._embedded?.cachedPdf;
+  const statusLink = cached ? undefined : (file._links.pdfStatus as Link | undefined);
+  const { data, error } = useConversionStatus(statusLink);
+
+  // the conversion runs in the background, so that long conversions do not run into request timeouts, the pdf link
+  // joins a running conversion and returns the document while it is converted
+  if (error) {
+    return <ErrorNotification error={error} />;
+  }
+  if (statusLink && (!data || data.status === "NOT_CONVERTED")) {
+    return <Loading message={t("scm-gotenberg-plugin.pdfViewer.converting")} />;
+  }
+  return <PdfViewer src={(file._links.pdf as Link).href} download={file} />;
+};
 
 export default ConvertedPdfViewer;
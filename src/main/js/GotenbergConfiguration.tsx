@@ -18,7 +18,7 @@ import React, { FC, useEffect } from "react";
 import { useTranslation } from "react-i18next";
 import { useForm } from "react-hook-form";
 import { useConfigLink } from "@scm-manager/ui-api";
-import { Checkbox, ConfigurationForm, InputField, Title, validation } from "@scm-manager/ui-components";
+import { Checkbox, ConfigurationForm, InputField, Textarea, Title, validation } from "@scm-manager/ui-components";
 import { HalRepresentation } from "@scm-manager/ui-types";
 
 type Props = {
@@ -27,26 +27,118 @@ type Props = {
 
 type Configuration = HalRepresentation & {
   url: string;
+  additionalUrls: string[];
   enabled: boolean;
+  cacheMaxEntriesPerRepository: number;
+  cacheMaxMegabytesPerRepository: number;
+  cacheMaxMegabytes: number;
+  cacheMaxFileMegabytes: number;
+  cacheHotMegabytes: number;
+  sharedCache: boolean;
+  sharedCacheMaxMegabytes: number;
+  maxConcurrentConversions: number;
+  maxQueuedConversions: number;
+  maxConversionsPerUser: number;
+  maxConversionsPerRepository: number;
+  conversionTimeoutSeconds: number;
+  readTimeoutSeconds: number;
+  conversionRetries: number;
+  preConversionEnabled: boolean;
+  preConversionRepositories: string[];
+  preConversionPaths: string[];
+  preConversionMaxFileMegabytes: number;
+  preConversionMaxFilesPerPush: number;
+  directoryPrefetchEnabled: boolean;
+  directoryPrefetchMaxFiles: number;
 };
 
+// lists are edited as one entry per line
+const lists = ["additionalUrls", "preConversionRepositories", "preConversionPaths"] as const;
+
+type FormValues = Omit<Configuration, typeof lists[number]> & Record<typeof lists[number], string>;
+
+const splitLines = (value: string) =>
+  value
+    .split("\n")
+    .map(line => line.trim())
+    .filter(line => line.length > 0);
+
+const joinLists = (configuration: Configuration): FormValues => {
+  const values = { ...configuration } as unknown as FormValues;
+  lists.forEach(name => (values[name] = (configuration[name] || []).join("\n")));
+  return values;
+};
+
+const splitLists = (values: FormValues): Configuration => {
+  const configuration = { ...values } as unknown as Configuration;
+  lists.forEach(name => (configuration[name] = splitLines(values[name])));
+  return configuration;
+};
+
+const cacheLimits = [
+  "cacheMaxEntriesPerRepository",
+  "cacheMaxMegabytesPerRepository",
+  "cacheMaxMegabytes",
+  "cacheMaxFileMegabytes",
+  "cacheHotMegabytes"
+] as const;
+
+const sharedCacheLimits = ["sharedCacheMaxMegabytes"] as const;
+
+// every conversion has to end, so the timeout can not be disabled
+const positiveLimits: string[] = ["conversionTimeoutSeconds"];
+
+const conversionLimits = [
+  "maxConcurrentConversions",
+  "maxQueuedConversions",
+  "maxConversionsPerUser",
+  "maxConversionsPerRepository",
+  "conversionTimeoutSeconds",
+  "readTimeoutSeconds",
+  "conversionRetries"
+] as const;
+
+const preConversionLimits = ["preConversionMaxFileMegabytes", "preConversionMaxFilesPerPush"] as const;
+
+const prefetchLimits = ["directoryPrefetchMaxFiles"] as const;
+
 const GotenbergConfiguration: FC<Props> = ({ link }) => {
   const [t] = useTranslation("plugins");
   const { initialConfiguration, isReadOnly, update, ...formProps } = useConfigLink<Configuration>(link);
-  const { formState, handleSubmit, register, reset } = useForm<Configuration>({ mode: "onChange" });
+  const { formState, handleSubmit, register, reset } = useForm<FormValues>({ mode: "onChange" });
   const {errors} = formState;
 
   useEffect(() => {
     if (initialConfiguration) {
-      reset(initialConfiguration);
+      reset(joinLists(initialConfiguration));
     }
   }, [initialConfiguration]);
 
+  const renderLimit = (
+    name:
+      | typeof cacheLimits[number]
+      | typeof sharedCacheLimits[number]
+      | typeof conversionLimits[number]
+      | typeof preConversionLimits[number]
+      | typeof prefetchLimits[number]
+  ) => (
+    <InputField
+      key={name}
+      type="number"
+      label={t(`scm-gotenberg-plugin.config.${name}`)}
+      helpText={t(`scm-gotenberg-plugin.config.${name}HelpText`)}
+      disabled={isReadOnly}
+      errorMessage={t(`scm-gotenberg-plugin.config.${positiveLimits.includes(name) ? "invalidPositiveLimit" : "invalidLimit"}`)}
+      validationError={!!errors[name]}
+      {...register(name, { valueAsNumber: true, min: positiveLimits.includes(name) ? 1 : 0 })}
+    />
+  );
+
   return (
     <ConfigurationForm
       isValid={formState.isValid}
       isReadOnly={isReadOnly}
-      onSubmit={handleSubmit(update)}
+      onSubmit={handleSubmit(values => update(splitLists(values)))}
       {...formProps}
     >
       <Title title={t("scm-gotenberg-plugin.config.title")} />
@@ -60,12 +152,57 @@ const GotenbergConfiguration: FC<Props> = ({ link }) => {
           validate: url => validation.isUrlValid(url)
         })}
       />
+      <Textarea
+        label={t("scm-gotenberg-plugin.config.additionalUrls")}
+        helpText={t("scm-gotenberg-plugin.config.additionalUrlsHelpText")}
+        disabled={isReadOnly}
+        errorMessage={t("scm-gotenberg-plugin.config.invalid")}
+        validationError={!!errors.additionalUrls}
+        {...register("additionalUrls", {
+          validate: urls => splitLines(urls).every(url => validation.isUrlValid(url))
+        })}
+      />
       <Checkbox
         label={t("scm-gotenberg-plugin.config.enabled")}
         helpText={t("scm-gotenberg-plugin.config.enabledHelpText")}
         disabled={isReadOnly}
         {...register("enabled")}
       />
+      {cacheLimits.map(renderLimit)}
+      <Checkbox
+        label={t("scm-gotenberg-plugin.config.sharedCache")}
+        helpText={t("scm-gotenberg-plugin.config.sharedCacheHelpText")}
+        disabled={isReadOnly}
+        {...register("sharedCache")}
+      />
+      {sharedCacheLimits.map(renderLimit)}
+      {conversionLimits.map(renderLimit)}
+      <Checkbox
+        label={t("scm-gotenberg-plugin.config.preConversionEnabled")}
+        helpText={t("scm-gotenberg-plugin.config.preConversionEnabledHelpText")}
+        disabled={isReadOnly}
+        {...register("preConversionEnabled")}
+      />
+      <Textarea
+        label={t("scm-gotenberg-plugin.config.preConversionRepositories")}
+        helpText={t("scm-gotenberg-plugin.config.preConversionRepositoriesHelpText")}
+        disabled={isReadOnly}
+        {...register("preConversionRepositories")}
+      />
+      <Textarea
+        label={t("scm-gotenberg-plugin.config.preConversionPaths")}
+        helpText={t("scm-gotenberg-plugin.config.preConversionPathsHelpText")}
+        disabled={isReadOnly}
+        {...register("preConversionPaths")}
+      />
+      {preConversionLimits.map(renderLimit)}
+      <Checkbox
+        label={t("scm-gotenberg-plugin.config.directoryPrefetchEnabled")}
+        helpText={t("scm-gotenberg-plugin.config.directoryPrefetchEnabledHelpText")}
+        disabled={isReadOnly}
+        {...register("directoryPrefetchEnabled")}
+      />
+      {prefetchLimits.map(renderLimit)}
     </ConfigurationForm>
   );
 };
@@ -0,0 +1,75 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package com.cloudogu.scm.gotenberg;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class ByteRangeTest {
+
+  @Test
+  void shouldParseRange() {
+    assertThat(ByteRange.parse("bytes=0-99", 1000)).hasValueSatisfying(range -> {
+      assertThat(range.getStart()).isZero();
+      assertThat(range.getEnd()).isEqualTo(99);
+      assertThat(range.getLength()).isEqualTo(100);
+      assertThat(range.toContentRange(1000)).isEqualTo("bytes 0-99/1000");
+    });
+  }
+
+  @Test
+  void shouldParseOpenRange() {
+    assertThat(ByteRange.parse("bytes=900-", 1000))
+      .hasValueSatisfying(range -> assertThat(range.toContentRange(1000)).isEqualTo("bytes 900-999/1000"));
+  }
+
+  @Test
+  void shouldParseSuffixRange() {
+    assertThat(ByteRange.parse("bytes=-100", 1000))
+      .hasValueSatisfying(range -> assertThat(range.toContentRange(1000)).isEqualTo("bytes 900-999/1000"));
+  }
+
+  @Test
+  void shouldLimitRangeToDocument() {
+    assertThat(ByteRange.parse("bytes=500-5000", 1000))
+      .hasValueSatisfying(range -> assertThat(range.getEnd()).isEqualTo(999));
+    assertThat(ByteRange.parse("bytes=-5000", 1000))
+      .hasValueSatisfying(range -> assertThat(range.getStart()).isZero());
+  }
+
+  @Test
+  void shouldIgnoreInvalidRanges() {
+    assertThat(ByteRange.parse(null, 1000)).isEmpty();
+    assertThat(ByteRange.parse("items=0-1", 1000)).isEmpty();
+    assertThat(ByteRange.parse("bytes=a-b", 1000)).isEmpty();
+    assertThat(ByteRange.parse("bytes=10-5", 1000)).isEmpty();
+    assertThat(ByteRange.parse("bytes=42", 1000)).isEmpty();
+  }
+
+  @Test
+  void shouldIgnoreMultipleRanges() {
+    assertThat(ByteRange.parse("bytes=0-1,5-6", 1000)).isEmpty();
+  }
+
+  @Test
+  void shouldFailForUnsatisfiableRange() {
+    assertThrows(ByteRange.UnsatisfiableException.class, () -> ByteRange.parse("bytes=1000-", 1000));
+    assertThrows(ByteRange.UnsatisfiableException.class, () -> ByteRange.parse("bytes=-0", 1000));
+  }
+}
@@ -17,49 +17,561 @@
 package com.cloudogu.scm.gotenberg;
 
 import com.google.common.io.ByteStreams;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import sonia.scm.HandlerEventType;
 import sonia.scm.repository.Repository;
+import sonia.scm.repository.RepositoryEvent;
 import sonia.scm.repository.RepositoryTestData;
+import sonia.scm.store.DataStore;
 import sonia.scm.store.InMemoryBlobStoreFactory;
+import sonia.scm.store.InMemoryDataStoreFactory;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.lenient;
+import static org.mockito.Mockito.when;
 
+@ExtendWith(MockitoExtension.class)
 class CacheFactoryTest {
 
+  private static final int MEGABYTE = 1024 * 1024;
+
+  @Mock
+  private GotenbergConfigurationStore configurationStore;
+
+  private final GotenbergConfiguration configuration = new GotenbergConfiguration();
+
+  private final InMemoryBlobStoreFactory blobStoreFactory = new InMemoryBlobStoreFactory();
+  private final InMemoryDataStoreFactory dataStoreFactory = new InMemoryDataStoreFactory();
+  private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+  private HotCache hotCache;
+  private CacheFactory factory;
+
+  @BeforeEach
+  void setUpObjectUnderTest() {
+    lenient().when(configurationStore.get()).thenReturn(configuration);
+    lenient().when(configurationStore.isSharedCache()).then(invocation -> configuration.isSharedCache());
+    lenient().when(configurationStore.getCacheHotMegabytes()).then(invocation -> configuration.getCacheHotMegabytes());
+    hotCache = new HotCache(configurationStore, meterRegistry);
+    factory = createFactory();
+  }
+
+  private CacheFactory createFactory() {
+    return createFactory(Runnable::run);
+  }
+
+  private CacheFactory createFactory(Executor indexLoader) {
+    return new CacheFactory(blobStoreFactory, dataStoreFactory, configurationStore, hotCache, indexLoader);
+  }
+
   @Test
   void shouldCache() throws IOException {
     Repository repository = RepositoryTestData.createHeartOfGold();
 
-    CacheFactory factory = new CacheFactory(new InMemoryBlobStoreFactory());
-
     CacheFactory.Cache cache = factory.get(repository);
 
-    RepositoryPath path = path(repository, "a.txt");
-    cache.set(path, stream("Hello"));
+    String key = "a.txt";
+    cache.set(key, stream("Hello"));
 
-    assertThat(cache.get(path)).hasValueSatisfying(stream -> hasContent(stream, "Hello"));
+    assertThat(cache.get(key)).hasValueSatisfying(pdf -> hasContent(pdf.getContent(), "Hello"));
+  }
+
+  @Test
+  void shouldReturnStoredContent() throws IOException {
+    Repository repository = RepositoryTestData.createHeartOfGold();
+
+    CacheFactory.Cache cache = factory.get(repository);
+
+    assertThat(cache.set("a.txt", stream("Hello")).getContent()).hasContent("Hello");
   }
 
   @Test
   void shouldRemoveEldest() throws IOException {
+    configuration.setCacheMaxEntriesPerRepository(2);
+
+    Repository repository = RepositoryTestData.createHeartOfGold();
+    CacheFactory.Cache cache = factory.get(repository);
+
+    cache.set("a.txt", stream("Hello from a"));
+    cache.set("b.txt", stream("Hello from b"));
+    cache.set("c.txt", stream("Hello from c"));
+
+    assertThat(cache.get("a.txt")).isEmpty();
+    assertThat(cache.get("b.txt"))
+      .hasValueSatisfying(pdf -> hasContent(pdf.getContent(), "Hello from b"));
+    assertThat(cache.get("c.txt"))
+      .hasValueSatisfying(pdf -> hasContent(pdf.getContent(), "Hello from c"));
+  }
+
+  @Test
+  void shouldRemoveEldestByBytes() throws IOException {
+    configuration.setCacheMaxMegabytesPerRepository(2);
+
+    Repository repository = RepositoryTestData.createHeartOfGold();
+    CacheFactory.Cache cache = factory.get(repository);
+
+    cache.set("a.txt", megabyte());
+    cache.set("b.txt", megabyte());
+    cache.set("c.txt", megabyte());
+
+    assertThat(cache.get("a.txt")).isEmpty();
+    assertThat(cache.get("b.txt")).isPresent();
+    assertThat(cache.get("c.txt")).isPresent();
+  }
+
+  @Test
+  void shouldRemoveLeastRecentlyUsed() throws IOException {
+    configuration.setCacheMaxEntriesPerRepository(2);
+
+    Repository repository = RepositoryTestData.createHeartOfGold();
+    CacheFactory.Cache cache = factory.get(repository);
+
+    cache.set("a.txt", stream("Hello from a"));
+    cache.set("b.txt", stream("Hello from b"));
+    cache.get("a.txt");
+    cache.set("c.txt", stream("Hello from c"));
+
+    assertThat(cache.get("a.txt")).isPresent();
+    assertThat(cache.get("b.txt")).isEmpty();
+  }
+
+  @Test
+  void shouldApplyChangedLimits() throws IOException {
+    Repository repository = RepositoryTestData.createHeartOfGold();
+    CacheFactory.Cache cache = factory.get(repository);
+
+    cache.set("a.txt", stream("Hello from a"));
+    cache.set("b.txt", stream("Hello from b"));
+
+    configuration.setCacheMaxEntriesPerRepository(1);
+    cache.set("c.txt", stream("Hello from c"));
+
+    assertThat(cache.get("a.txt")).isEmpty();
+    assertThat(cache.get("b.txt")).isEmpty();
+    assertThat(cache.get("c.txt")).isPresent();
+  }
+
+  @Test
+  void shouldEnforceLoweredLimitsWhenConfigurationIsStored() throws IOException {
+    Repository heartOfGold = RepositoryTestData.createHeartOfGold();
+    CacheFactory.Cache heartOfGoldCache = factory.get(heartOfGold);
+    Repository puzzle = RepositoryTestData.create42Puzzle();
+    CacheFactory.Cache puzzleCache = factory.get(puzzle);
+
+    heartOfGoldCache.set("a.txt", stream("Hello from a"));
+    heartOfGoldCache.set("b.txt", stream("Hello from b"));
+    heartOfGoldCache.set("c.txt", new ByteArrayInputStream(new byte[MEGABYTE + 1]));
+    puzzleCache.set("d.txt", megabyte());
+    puzzleCache.set("e.txt", megabyte());
+
+    configuration.setCacheMaxFileMegabytes(1);
+    configuration.setCacheMaxEntriesPerRepository(1);
+    configuration.setCacheMaxMegabytes(1);
+    factory.onEvent(new GotenbergConfigurationChangedEvent(configuration));
+
+    assertThat(heartOfGoldCache.contains("a.txt")).isFalse();
+    assertThat(heartOfGoldCache.contains("b.txt")).isTrue();
+    assertThat(heartOfGoldCache.contains("c.txt")).isFalse();
+    assertThat(puzzleCache.contains("d.txt")).isFalse();
+    assertThat(puzzleCache.contains("e.txt")).isFalse();
+  }
+
+  @Test
+  void shouldRemoveFromLargestRepositoryIfTotalSizeIsExceeded() throws IOException {
+    configuration.setCacheMaxMegabytes(3);
+
+    Repository heartOfGold = RepositoryTestData.createHeartOfGold();
+    CacheFactory.Cache heartOfGoldCache = factory.get(heartOfGold);
+    Repository puzzle = RepositoryTestData.create42Puzzle();
+    CacheFactory.Cache puzzleCache = factory.get(puzzle);
+
+    heartOfGoldCache.set("a.txt", megabyte());
+    heartOfGoldCache.set("b.txt", megabyte());
+    puzzleCache.set("c.txt", megabyte());
+    puzzleCache.set("d.txt", megabyte());
+
+    assertThat(heartOfGoldCache.get("a.txt")).isEmpty();
+    assertThat(heartOfGoldCache.get("b.txt")).isPresent();
+    assertThat(puzzleCache.get("c.txt")).isPresent();
+    assertThat(puzzleCache.get("d.txt")).isPresent();
+  }
+
+  @Test
+  void shouldApplyTotalSizeLimitToCachesOfEarlierRun() throws IOException {
+    Repository heartOfGold = RepositoryTestData.createHeartOfGold();
+    CacheFactory.Cache heartOfGoldCache = factory.get(heartOfGold);
+    Repository puzzle = RepositoryTestData.create42Puzzle();
+
+    heartOfGoldCache.set("a.txt", megabyte());
+    heartOfGoldCache.set("b.txt", megabyte());
+    heartOfGoldCache.set("c.txt", megabyte());
+    factory.get(puzzle).set("d.txt", megabyte());
+    factory.flush();
+
+    configuration.setCacheMaxMegabytes(3);
+    CacheFactory restarted = createFactory();
+    restarted.load(List.of(heartOfGold, puzzle));
+
+    assertThat(restarted.get(heartOfGold).contains("a.txt")).isFalse();
+    assertThat(restarted.get(heartOfGold).contains("b.txt")).isTrue();
+    assertThat(restarted.get(heartOfGold).contains("c.txt")).isTrue();
+    assertThat(restarted.get(puzzle).contains("d.txt")).isTrue();
+  }
+
+  @Test
+  void shouldNotKeepFilesWhichExceedTheFileSizeLimit() throws IOException {
+    configuration.setCacheMaxFileMegabytes(1);
+
+    Repository repository = RepositoryTestData.createHeartOfGold();
+    CacheFactory.Cache cache = factory.get(repository);
+
+    String key = "a.txt";
+    Pdf content = cache.set(key, new ByteArrayInputStream(new byte[MEGABYTE + 1]));
+
+    assertThat(content.getLength()).isEqualTo(MEGABYTE + 1);
+    assertThat(ByteStreams.toByteArray(content.getContent())).hasSize(MEGABYTE + 1);
+    content.close();
+
+    assertThat(cache.get(key)).isEmpty();
+  }
+
+  @Test
+  void shouldKeepEvictionOrderAfterRestart() throws IOException {
+    configuration.setCacheMaxEntriesPerRepository(3);
+
+    Repository repository = RepositoryTestData.createHeartOfGold();
+    CacheFactory.Cache cache = factory.get(repository);
+
+    cache.set("a.txt", stream("Hello from a"));
+    cache.set("b.txt", stream("Hello from b"));
+    cache.set("c.txt", stream("Hello from c"));
+    cache.get("a.txt");
+    cache.get("b.txt");
+    factory.flush();
+
+    CacheFactory.Cache restarted = createFactory().get(repository);
+    restarted.set("d.txt", stream("Hello from d"));
+
+    assertThat(restarted.get("a.txt")).isPresent();
+    assertThat(restarted.get("b.txt")).isPresent();
+    assertThat(restarted.get("c.txt")).isEmpty();
+    assertThat(restarted.get("d.txt")).isPresent();
+  }
+
+  @Test
+  void shouldRemoveIndexEntryWithEvictedBlob() throws IOException {
+    configuration.setCacheMaxEntriesPerRepository(1);
+
+    Repository repository = RepositoryTestData.createHeartOfGold();
+    CacheFactory.Cache cache = factory.get(repository);
+
+    String a = "a.txt";
+    cache.set(a, stream("Hello from a"));
+    cache.set("b.txt", stream("Hello from b"));
+
+    DataStore<CacheEntry> indexStore = dataStoreFactory.withType(CacheEntry.class)
+      .withName("gotenberg-index")
+      .forRepository(repository)
+      .build();
+    assertThat(indexStore.getAll()).doesNotContainKey(a);
+  }
+
+  @Test
+  void shouldServeCacheWhileIndexIsLoading() throws IOException {
+    Repository repository = RepositoryTestData.createHeartOfGold();
+    factory.get(repository).set("a.txt", stream("Hello from a"));
+
+    List<Runnable> loaders = new ArrayList<>();
+    CacheFactory.Cache cache = createFactory(loaders::add).get(repository);
+
+    assertThat(loaders).hasSize(1);
+    assertThat(cache.get("a.txt"))
+      .hasValueSatisfying(pdf -> hasContent(pdf.getContent(), "Hello from a"));
+  }
+
+  @Test
+  void shouldPostponeEvictionUntilIndexIsLoaded() throws IOException {
+    configuration.setCacheMaxEntriesPerRepository(2);
+
+    Repository repository = RepositoryTestData.createHeartOfGold();
+    CacheFactory.Cache initial = factory.get(repository);
+    initial.set("a.txt", stream("Hello from a"));
+    initial.set("b.txt", stream("Hello from b"));
+    factory.flush();
+
+    List<Runnable> loaders = new ArrayList<>();
+    CacheFactory.Cache cache = createFactory(loaders::add).get(repository);
+    cache.set("c.txt", stream("Hello from c"));
+
+    assertThat(cache.get("a.txt")).isPresent();
+
+    loaders.forEach(Runnable::run);
+
+    assertThat(cache.get("a.txt")).isEmpty();
+    assertThat(cache.get("b.txt")).isPresent();
+    assertThat(cache.get("c.txt")).isPresent();
+  }
+
+  @Test
+  void shouldShareDocumentsBetweenRepositories() throws IOException {
+    Repository heartOfGold = RepositoryTestData.createHeartOfGold();
+    Repository puzzle = RepositoryTestData.create42Puzzle();
+
+    factory.getShared(heartOfGold).set("a.txt", stream("Hello from a"));
+
+    assertThat(factory.getShared(puzzle).get("a.txt"))
+      .hasValueSatisfying(pdf -> hasContent(pdf.getContent(), "Hello from a"));
+    assertThat(factory.get(puzzle).get("a.txt")).isEmpty();
+  }
+
+  @Test
+  void shouldKeepSharedDocumentWhileItIsReferenced() throws IOException {
+    Repository heartOfGold = RepositoryTestData.createHeartOfGold();
+    Repository puzzle = RepositoryTestData.create42Puzzle();
+
+    factory.getShared(heartOfGold).set("a.txt", stream("Hello from a"));
+    factory.getShared(puzzle).get("a.txt");
+
+    factory.onEvent(new RepositoryEvent(HandlerEventType.DELETE, heartOfGold));
+
+    assertThat(factory.getShared(puzzle).get("a.txt")).isPresent();
+  }
+
+  @Test
+  void shouldRemoveSharedDocumentWithLastReference() throws IOException {
+    Repository heartOfGold = RepositoryTestData.createHeartOfGold();
+    Repository puzzle = RepositoryTestData.create42Puzzle();
+
+    factory.getShared(heartOfGold).set("a.txt", stream("Hello from a"));
+    factory.getShared(puzzle).get("a.txt");
+
+    factory.onEvent(new RepositoryEvent(HandlerEventType.DELETE, heartOfGold));
+    factory.onEvent(new RepositoryEvent(HandlerEventType.DELETE, puzzle));
+
+    assertThat(factory.getShared(puzzle).get("a.txt")).isEmpty();
+  }
+
+  @Test
+  void shouldIgnoreOtherRepositoryEvents() throws IOException {
+    Repository heartOfGold = RepositoryTestData.createHeartOfGold();
+
+    factory.getShared(heartOfGold).set("a.txt", stream("Hello from a"));
+
+    factory.onEvent(new RepositoryEvent(HandlerEventType.MODIFY, heartOfGold));
+
+    assertThat(factory.getShared(heartOfGold).get("a.txt")).isPresent();
+  }
+
+  @Test
+  void shouldApplyTotalSizeLimitToSharedDocuments() throws IOException {
+    configuration.setCacheMaxMegabytes(2);
+
+    Repository heartOfGold = RepositoryTestData.createHeartOfGold();
+    PdfCache shared = factory.getShared(heartOfGold);
+
+    shared.set("a.txt", megabyte());
+    factory.get(heartOfGold).set("b.txt", megabyte());
+    shared.set("c.txt", megabyte());
+
+    assertThat(shared.get("a.txt")).isEmpty();
+    assertThat(factory.get(heartOfGold).get("b.txt")).isPresent();
+    assertThat(shared.get("c.txt")).isPresent();
+  }
+
+  @Test
+  void shouldApplySizeLimitOfSharedCache() throws IOException {
+    configuration.setSharedCacheMaxMegabytes(2);
+
+    PdfCache shared = factory.getShared(RepositoryTestData.createHeartOfGold());
+
+    shared.set("a.txt", megabyte());
+    shared.set("b.txt", megabyte());
+    shared.set("c.txt", megabyte());
+
+    assertThat(shared.get("a.txt")).isEmpty();
+    assertThat(shared.get("b.txt")).isPresent();
+    assertThat(shared.get("c.txt")).isPresent();
+  }
+
+  @Test
+  void shouldNotCreateSharedCacheForDeletedRepositoryIfDisabled() {
+    List<Runnable> indexLoads = new ArrayList<>();
+    factory = createFactory(indexLoads::add);
+
+    factory.onEvent(new RepositoryEvent(HandlerEventType.DELETE, RepositoryTestData.createHeartOfGold()));
+
+    assertThat(indexLoads).isEmpty();
+  }
+
+  @Test
+  void shouldReturnLengthOfCachedDocument() throws IOException {
     Repository repository = RepositoryTestData.createHeartOfGold();
-    CacheFactory factory = new CacheFactory(new InMemoryBlobStoreFactory(), 2);
     CacheFactory.Cache cache = factory.get(repository);
+    cache.set("a.txt", stream("Hello from a"));
+
+    assertThat(cache.get("a.txt")).hasValueSatisfying(pdf -> assertThat(pdf.getLength()).isEqualTo(12));
+  }
+
+  @Test
+  void shouldReturnSizeOfCachedDocumentFromIndex() throws IOException {
+    CacheFactory.Cache cache = factory.get(RepositoryTestData.createHeartOfGold());
+    cache.set("a.txt", stream("Hello from a"));
+
+    assertThat(cache.getCachedSize("a.txt")).hasValue(12);
+    assertThat(cache.getCachedSize("b.txt")).isEmpty();
+  }
 
-    cache.set(path(repository, "a.txt"), stream("Hello from a"));
-    cache.set(path(repository, "b.txt"), stream("Hello from b"));
-    cache.set(path(repository, "c.txt"), stream("Hello from c"));
+  @Test
+  void shouldNotReturnSizeOfTeedDocumentBeforeItIsComplete() throws IOException {
+    CacheFactory.Cache cache = factory.get(RepositoryTestData.createHeartOfGold());
+
+    try (Pdf pdf = cache.tee("a.txt", stream("Hello from a"))) {
+      assertThat(pdf.getContent().read()).isEqualTo('H');
+      assertThat(cache.getCachedSize("a.txt")).isEmpty();
+      assertThat(pdf.getContent()).hasContent("ello from a");
+    }
+
+    assertThat(cache.getCachedSize("a.txt")).hasValue(12);
+  }
+
+  @Test
+  void shouldReturnSizeOfSharedDocument() throws IOException {
+    Repository repository = RepositoryTestData.createHeartOfGold();
+    factory.getShared(repository).set("a.txt", stream("Hello from a"));
 
-    assertThat(cache.get(path(repository, "a.txt"))).isEmpty();
-    assertThat(cache.get(path(repository, "b.txt")))
-      .hasValueSatisfying(stream -> hasContent(stream, "Hello from b"));
-    assertThat(cache.get(path(repository, "c.txt")))
-      .hasValueSatisfying(stream -> hasContent(stream, "Hello from c"));
+    assertThat(factory.getShared(RepositoryTestData.createRestaurantAtTheEndOfTheUniverse()).getCachedSize("a.txt")).hasValue(12);
+  }
+
+  @Test
+  void shouldServeFrequentlyUsedDocumentsFromMemory() throws IOException {
+    Repository repository = RepositoryTestData.createHeartOfGold();
+    CacheFactory.Cache cache = factory.get(repository);
+    cache.set("a.txt", stream("Hello from a"));
+
+    cache.get("a.txt");
+    cache.get("a.txt");
+    blobStoreFactory.withName("gotenberg").forRepository(repository).build().remove("a.txt");
+
+    assertThat(cache.get("a.txt")).hasValueSatisfying(pdf -> hasContent(pdf.getContent(), "Hello from a"));
+    assertThat(hotHits()).isEqualTo(1);
+  }
+
+  @Test
+  void shouldNotKeepDocumentsInMemoryWhichAreUsedOnce() throws IOException {
+    Repository repository = RepositoryTestData.createHeartOfGold();
+    CacheFactory.Cache cache = factory.get(repository);
+    cache.set("a.txt", stream("Hello from a"));
+
+    cache.get("a.txt");
+    cache.get("a.txt");
+
+    assertThat(hotHits()).isZero();
+  }
+
+  @Test
+  void shouldNotKeepDocumentsInMemoryIfDisabled() throws IOException {
+    configuration.setCacheHotMegabytes(0);
+
+    Repository repository = RepositoryTestData.createHeartOfGold();
+    CacheFactory.Cache cache = factory.get(repository);
+    cache.set("a.txt", stream("Hello from a"));
+
+    for (int i = 0; i < 3; i++) {
+      cache.get("a.txt");
+    }
+
+    assertThat(hotHits()).isZero();
+  }
+
+  @Test
+  void shouldRemoveEvictedDocumentsFromMemory() throws IOException {
+    configuration.setCacheMaxEntriesPerRepository(1);
+
+    Repository repository = RepositoryTestData.createHeartOfGold();
+    CacheFactory.Cache cache = factory.get(repository);
+    cache.set("a.txt", stream("Hello from a"));
+    cache.get("a.txt");
+    cache.get("a.txt");
+
+    cache.set("b.txt", stream("Hello from b"));
+
+    assertThat(cache.get("a.txt")).isEmpty();
+  }
+
+  @Test
+  void shouldStoreTeedDocumentAfterItWasReadCompletely() throws IOException {
+    CacheFactory.Cache cache = factory.get(RepositoryTestData.createHeartOfGold());
+
+    try (Pdf pdf = cache.tee("a.txt", stream("Hello from a"))) {
+      assertThat(pdf.hasLength()).isFalse();
+      assertThat(pdf.getContent().read()).isEqualTo('H');
+      // incomplete documents are not visible
+      assertThat(cache.contains("a.txt")).isFalse();
+      assertThat(cache.get("a.txt")).isEmpty();
+
+      assertThat(pdf.getContent()).hasContent("ello from a");
+    }
+
+    assertThat(cache.contains("a.txt")).isTrue();
+    assertThat(cache.get("a.txt")).hasValueSatisfying(pdf -> {
+      assertThat(pdf.getLength()).isEqualTo(12);
+      hasContent(pdf.getContent(), "Hello from a");
+    });
+  }
+
+  @Test
+  void shouldNotStoreTeedDocumentWhichWasNotReadCompletely() throws IOException {
+    CacheFactory.Cache cache = factory.get(RepositoryTestData.createHeartOfGold());
+
+    try (Pdf pdf = cache.tee("a.txt", stream("Hello from a"))) {
+      assertThat(pdf.getContent().read()).isEqualTo('H');
+    }
+
+    assertThat(cache.contains("a.txt")).isFalse();
+    assertThat(cache.get("a.txt")).isEmpty();
+  }
+
+  @Test
+  void shouldNotKeepTeedDocumentWhichExceedsTheFileSizeLimit() throws IOException {
+    configuration.setCacheMaxFileMegabytes(1);
+    CacheFactory.Cache cache = factory.get(RepositoryTestData.createHeartOfGold());
+
+    try (Pdf pdf = cache.tee("a.txt", new ByteArrayInputStream(new byte[MEGABYTE + 1]))) {
+      assertThat(ByteStreams.exhaust(pdf.getContent())).isEqualTo(MEGABYTE + 1);
+    }
+
+    assertThat(cache.get("a.txt")).isEmpty();
+  }
+
+  @Test
+  void shouldReferenceTeedSharedDocument() throws IOException {
+    Repository heartOfGold = RepositoryTestData.createHeartOfGold();
+    Repository puzzle = RepositoryTestData.create42Puzzle();
+
+    try (Pdf pdf = factory.getShared(heartOfGold).tee("a.txt", stream("Hello from a"))) {
+      ByteStreams.exhaust(pdf.getContent());
+    }
+
+    assertThat(factory.getShared(puzzle).contains("a.txt")).isTrue();
+    factory.onEvent(new RepositoryEvent(HandlerEventType.DELETE, heartOfGold));
+    assertThat(factory.getShared(puzzle).get("a.txt")).isEmpty();
+  }
+
+  private double hotHits() {
+    return meterRegistry.counter("scm.gotenberg.cache.hot.hits").count();
   }
 
   private void hasContent(InputStream stream, String expected) {
@@ -71,12 +583,12 @@ class CacheFactoryTest {
     }
   }
 
-  private InputStream stream(String content) {
-    return new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8));
+  private InputStream megabyte() {
+    return new ByteArrayInputStream(new byte[MEGABYTE]);
   }
 
-  private RepositoryPath path(Repository repository, String path) {
-    return new RepositoryPath(repository.getNamespace(), repository.getName(), "42", path);
+  private InputStream stream(String content) {
+    return new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8));
   }
 
 }
@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package com.cloudogu.scm.gotenberg;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import sonia.scm.schedule.Scheduler;
+import sonia.scm.schedule.Task;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+class CacheIndexFlusherTest {
+
+  @Mock
+  private Scheduler scheduler;
+
+  @Mock
+  private CacheFactory cacheFactory;
+
+  @Mock
+  private Task task;
+
+  @InjectMocks
+  private CacheIndexFlusher flusher;
+
+  @Test
+  void shouldFlushScheduled() {
+    when(scheduler.schedule(anyString(), any(Runnable.class))).thenReturn(task);
+
+    flusher.contextInitialized(null);
+
+    ArgumentCaptor<Runnable> captor = ArgumentCaptor.forClass(Runnable.class);
+    verify(scheduler).schedule(anyString(), captor.capture());
+    captor.getValue().run();
+
+    verify(cacheFactory).flush();
+  }
+
+  @Test
+  void shouldCancelTaskAndFlushOnShutdown() {
+    when(scheduler.schedule(anyString(), any(Runnable.class))).thenReturn(task);
+
+    flusher.contextInitialized(null);
+    flusher.contextDestroyed(null);
+
+    verify(task).cancel();
+    verify(cacheFactory).flush();
+  }
+}
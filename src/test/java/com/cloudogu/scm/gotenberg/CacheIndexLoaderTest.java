@@ -0,0 +1,67 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package com.cloudogu.scm.gotenberg;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import sonia.scm.repository.Repository;
+import sonia.scm.repository.RepositoryManager;
+import sonia.scm.repository.RepositoryTestData;
+import sonia.scm.web.security.AdministrationContext;
+import sonia.scm.web.security.PrivilegedAction;
+
+import java.util.List;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+class CacheIndexLoaderTest {
+
+  @Mock
+  private AdministrationContext administrationContext;
+
+  @Mock
+  private RepositoryManager repositoryManager;
+
+  @Mock
+  private CacheFactory cacheFactory;
+
+  @InjectMocks
+  private CacheIndexLoader loader;
+
+  @Test
+  void shouldLoadCachesOfAllRepositoriesAsAdmin() {
+    List<Repository> repositories = List.of(RepositoryTestData.createHeartOfGold(), RepositoryTestData.create42Puzzle());
+    when(repositoryManager.getAll()).thenReturn(repositories);
+    doAnswer(invocation -> {
+      verify(cacheFactory, never()).load(any());
+      invocation.getArgument(0, PrivilegedAction.class).run();
+      return null;
+    }).when(administrationContext).runAsAdmin(any(PrivilegedAction.class));
+
+    loader.contextInitialized(null);
+
+    verify(cacheFactory).load(repositories);
+  }
+}
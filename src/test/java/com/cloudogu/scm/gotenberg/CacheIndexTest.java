@@ -0,0 +1,250 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package com.cloudogu.scm.gotenberg;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class CacheIndexTest {
+
+  private final MutableClock clock = new MutableClock();
+  private final CacheIndex index = new CacheIndex(clock);
+
+  @Test
+  void shouldEvictEldestByEntries() {
+    index.put("a", 1);
+    index.put("b", 1);
+    index.put("c", 1);
+
+    assertThat(index.evict(2, 0)).containsExactly("a");
+    assertThat(index.size()).isEqualTo(2);
+  }
+
+  @Test
+  void shouldEvictEldestByBytes() {
+    index.put("a", 10);
+    index.put("b", 20);
+    index.put("c", 30);
+
+    assertThat(index.evict(0, 35)).containsExactly("a", "b");
+    assertThat(index.bytes()).isEqualTo(30);
+  }
+
+  @Test
+  void shouldEvictLeastRecentlyUsed() {
+    index.put("a", 1);
+    index.put("b", 1);
+    index.touch("a");
+    index.put("c", 1);
+
+    assertThat(index.evict(2, 0)).containsExactly("b");
+  }
+
+  @Test
+  void shouldEvictEntriesLargerThanLimit() {
+    index.put("a", 10);
+    index.put("b", 30);
+    index.put("c", 20);
+
+    assertThat(index.evictLargerThan(15)).containsExactly("b", "c");
+    assertThat(index.contains("a")).isTrue();
+    assertThat(index.contains("b")).isFalse();
+    assertThat(index.bytes()).isEqualTo(10);
+  }
+
+  @Test
+  void shouldNotEvictWithoutLimits() {
+    index.put("a", 42);
+    index.put("b", 21);
+
+    assertThat(index.evict(0, 0)).isEmpty();
+  }
+
+  @Test
+  void shouldReplaceSizeOfExistingEntry() {
+    index.put("a", 42);
+    index.put("a", 21);
+
+    assertThat(index.size()).isEqualTo(1);
+    assertThat(index.bytes()).isEqualTo(21);
+  }
+
+  @Test
+  void shouldRemoveEntry() {
+    index.put("a", 42);
+    index.remove("a");
+
+    assertThat(index.size()).isZero();
+    assertThat(index.bytes()).isZero();
+  }
+
+  @Test
+  void shouldReturnSizeOfEntry() {
+    index.put("a", 42);
+
+    assertThat(index.sizeOf("a")).hasValue(42);
+    assertThat(index.sizeOf("b")).isEmpty();
+  }
+
+  @Test
+  void shouldForgetSizeOfRemovedAndEvictedEntries() {
+    index.put("a", 42);
+    index.put("b", 21);
+    index.put("c", 1);
+
+    index.remove("a");
+    index.evict(1, 0);
+
+    assertThat(index.sizeOf("a")).isEmpty();
+    assertThat(index.sizeOf("b")).isEmpty();
+    assertThat(index.sizeOf("c")).hasValue(1);
+  }
+
+  @Test
+  void shouldIgnoreTouchOfUnknownEntry() {
+    index.touch("a");
+
+    assertThat(index.size()).isZero();
+  }
+
+  @Test
+  void shouldCountHitsImmediately() {
+    index.put("a", 1);
+
+    index.touch("a");
+    index.touch("a");
+
+    assertThat(index.hits("a")).isEqualTo(2);
+    assertThat(index.hits("b")).isZero();
+  }
+
+  @Test
+  void shouldKeepHitsOfLoadedEntries() {
+    Map<String, CacheEntry> known = new HashMap<>();
+    known.put("a", new CacheEntry(1, 3, 1));
+
+    index.load(known);
+
+    assertThat(index.hits("a")).isEqualTo(3);
+    assertThat(index.contains("a")).isTrue();
+  }
+
+  @Test
+  void shouldForgetHitsOfRemovedEntries() {
+    index.put("a", 1);
+    index.put("b", 1);
+    index.touch("a");
+
+    index.remove("a");
+    index.evictEldest();
+
+    assertThat(index.hits("a")).isZero();
+    assertThat(index.contains("a")).isFalse();
+    assertThat(index.contains("b")).isFalse();
+  }
+
+  @Test
+  void shouldLoadEntriesOrderedByLastAccess() {
+    Map<String, CacheEntry> known = new HashMap<>();
+    known.put("a", new CacheEntry(3, 0, 1));
+    known.put("b", new CacheEntry(1, 0, 1));
+    known.put("c", new CacheEntry(2, 0, 1));
+
+    index.load(known);
+
+    assertThat(index.evict(1, 0)).containsExactly("b", "c");
+  }
+
+  @Test
+  void shouldKeepEntriesWhichWereAddedBeforeLoading() {
+    clock.millis = 100;
+    index.put("new", 1);
+
+    Map<String, CacheEntry> known = new HashMap<>();
+    known.put("old", new CacheEntry(200, 0, 1));
+    known.put("new", new CacheEntry(50, 0, 42));
+    index.load(known);
+
+    assertThat(index.bytes()).isEqualTo(2);
+    assertThat(index.evict(1, 0)).containsExactly("old");
+  }
+
+  @Test
+  void shouldTrackAccess() {
+    clock.millis = 21;
+    index.put("a", 42);
+
+    clock.millis = 42;
+    index.touch("a");
+    index.touch("a");
+
+    assertThat(index.get("a")).contains(new CacheEntry(43, 2, 42));
+  }
+
+  @Test
+  void shouldUseStrictlyIncreasingTimestamps() {
+    clock.millis = 21;
+    index.put("a", 1);
+    index.put("b", 1);
+
+    assertThat(index.get("a")).hasValueSatisfying(entry -> assertThat(entry.getLastAccess()).isEqualTo(21));
+    assertThat(index.get("b")).hasValueSatisfying(entry -> assertThat(entry.getLastAccess()).isEqualTo(22));
+  }
+
+  @Test
+  void shouldReturnModifiedEntriesOnlyOnce() {
+    index.put("a", 42);
+    index.put("b", 21);
+    index.touch("b");
+
+    assertThat(index.drainModified()).containsOnlyKeys("b");
+    assertThat(index.drainModified()).isEmpty();
+  }
+
+  private static class MutableClock extends Clock {
+
+    private long millis;
+
+    @Override
+    public ZoneId getZone() {
+      return ZoneOffset.UTC;
+    }
+
+    @Override
+    public Clock withZone(ZoneId zone) {
+      return this;
+    }
+
+    @Override
+    public long millis() {
+      return millis;
+    }
+
+    @Override
+    public Instant instant() {
+      return Instant.ofEpochMilli(millis);
+    }
+  }
+}
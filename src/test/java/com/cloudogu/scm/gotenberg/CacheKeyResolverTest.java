@@ -0,0 +1,155 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package com.cloudogu.scm.gotenberg;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import sonia.scm.NotFoundException;
+import sonia.scm.repository.Repository;
+import sonia.scm.repository.RepositoryTestData;
+
+import java.io.IOException;
+import java.util.Optional;
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.lenient;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+class CacheKeyResolverTest {
+
+  private final Repository repository = RepositoryTestData.createHeartOfGold();
+
+  @Mock
+  private FileResolver fileResolver;
+
+  @Mock
+  private ContentIdProvider contentIdProvider;
+
+  private CacheKeyResolver resolver;
+
+  @BeforeEach
+  void setUpObjectUnderTest() throws IOException {
+    lenient().when(contentIdProvider.getContentId(any(), any())).thenReturn(Optional.empty());
+    resolver = new CacheKeyResolver(fileResolver, Set.of(contentIdProvider));
+  }
+
+  @Test
+  void shouldReturnSameKeyForSameContent() throws IOException {
+    RepositoryPath one = path("42", "a.docx");
+    RepositoryPath two = path("21", "b/c.docx");
+    when(fileResolver.hash(repository, one)).thenReturn("abc");
+    when(fileResolver.hash(repository, two)).thenReturn("abc");
+
+    assertThat(resolver.resolve(repository, one)).isEqualTo(resolver.resolve(repository, two));
+  }
+
+  @Test
+  void shouldReturnDifferentKeyForDifferentContent() throws IOException {
+    RepositoryPath one = path("42", "a.docx");
+    RepositoryPath two = path("42", "b.docx");
+    when(fileResolver.hash(repository, one)).thenReturn("abc");
+    when(fileResolver.hash(repository, two)).thenReturn("def");
+
+    assertThat(resolver.resolve(repository, one)).isNotEqualTo(resolver.resolve(repository, two));
+  }
+
+  @Test
+  void shouldReturnDifferentKeyForDifferentExtension() throws IOException {
+    RepositoryPath one = path("42", "a.txt");
+    RepositoryPath two = path("42", "a.csv");
+    when(fileResolver.hash(repository, one)).thenReturn("abc");
+    when(fileResolver.hash(repository, two)).thenReturn("abc");
+
+    assertThat(resolver.resolve(repository, one)).isNotEqualTo(resolver.resolve(repository, two));
+  }
+
+  @Test
+  void shouldUseContentIdOfRepositoryInsteadOfHash() throws IOException {
+    RepositoryPath one = path("42", "a.docx");
+    RepositoryPath two = path("21", "b/c.docx");
+    when(contentIdProvider.getContentId(repository, one)).thenReturn(Optional.of("git:abc"));
+    when(contentIdProvider.getContentId(repository, two)).thenReturn(Optional.of("git:abc"));
+
+    assertThat(resolver.resolve(repository, one)).isEqualTo(resolver.resolve(repository, two));
+    verify(fileResolver, never()).hash(any(), any());
+  }
+
+  @Test
+  void shouldReturnDifferentKeyForDifferentContentId() throws IOException {
+    RepositoryPath one = path("42", "a.docx");
+    RepositoryPath two = path("42", "b.docx");
+    when(contentIdProvider.getContentId(repository, one)).thenReturn(Optional.of("git:abc"));
+    when(contentIdProvider.getContentId(repository, two)).thenReturn(Optional.of("git:def"));
+
+    assertThat(resolver.resolve(repository, one)).isNotEqualTo(resolver.resolve(repository, two));
+  }
+
+  @Test
+  void shouldHashContentOnlyOnce() throws IOException {
+    RepositoryPath path = path("42", "a.docx");
+    when(fileResolver.hash(repository, path)).thenReturn("abc");
+
+    resolver.resolve(repository, path);
+    resolver.resolve(repository, path);
+
+    verify(fileResolver, times(1)).hash(repository, path);
+  }
+
+  @Test
+  void shouldReturnKeyOnlyIfResolvedBefore() throws IOException {
+    RepositoryPath path = path("42", "a.docx");
+    when(fileResolver.hash(repository, path)).thenReturn("abc");
+
+    assertThat(resolver.getIfResolved(repository, path)).isEmpty();
+
+    String key = resolver.resolve(repository, path);
+
+    assertThat(resolver.getIfResolved(repository, path)).hasValue(key);
+    verify(fileResolver, times(1)).hash(repository, path);
+  }
+
+  @Test
+  void shouldPassThroughIOException() throws IOException {
+    RepositoryPath path = path("42", "a.docx");
+    when(fileResolver.hash(repository, path)).thenThrow(new IOException("failed"));
+
+    assertThrows(IOException.class, () -> resolver.resolve(repository, path));
+  }
+
+  @Test
+  void shouldPassThroughRuntimeException() throws IOException {
+    RepositoryPath path = path("42", "a.docx");
+    when(fileResolver.hash(repository, path)).thenThrow(mock(NotFoundException.class));
+
+    assertThrows(NotFoundException.class, () -> resolver.resolve(repository, path));
+  }
+
+  private RepositoryPath path(String revision, String path) {
+    return new RepositoryPath(repository.getNamespace(), repository.getName(), revision, path);
+  }
+}
@@ -0,0 +1,235 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package com.cloudogu.scm.gotenberg;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.shiro.subject.Subject;
+import org.apache.shiro.util.ThreadContext;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import sonia.scm.repository.Repository;
+import sonia.scm.repository.RepositoryTestData;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.Mockito.lenient;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+class ConversionLimiterTest {
+
+  @Mock
+  private GotenbergConfigurationStore configurationStore;
+
+  @Mock
+  private Subject subject;
+
+  private final GotenbergConfiguration configuration = new GotenbergConfiguration();
+  private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+  private final Repository heartOfGold = RepositoryTestData.createHeartOfGold();
+  private final Repository puzzle = RepositoryTestData.create42Puzzle();
+
+  private ConversionLimiter limiter;
+
+  @BeforeEach
+  void setUpObjectUnderTest() {
+    when(configurationStore.get()).thenReturn(configuration);
+    lenient().when(subject.getPrincipal()).thenReturn("trillian");
+    ThreadContext.bind(subject);
+    configuration.setMaxConcurrentConversions(1);
+    configuration.setMaxQueuedConversions(1);
+    configuration.setMaxConversionsPerUser(0);
+    configuration.setMaxConversionsPerRepository(0);
+    limiter = new ConversionLimiter(configurationStore, meterRegistry, 50, TimeUnit.MILLISECONDS);
+  }
+
+  @AfterEach
+  void tearDownSubject() {
+    ThreadContext.unbindSubject();
+  }
+
+  @Test
+  void shouldLimitConcurrentConversions() {
+    ConversionLimiter.Permit permit = limiter.acquire(heartOfGold);
+
+    assertThat(limiter.getRunning()).isEqualTo(1);
+    assertThrows(ConversionLimitExceededException.class, () -> limiter.acquire(heartOfGold));
+
+    permit.close();
+
+    try (ConversionLimiter.Permit next = limiter.acquire(heartOfGold)) {
+      assertThat(limiter.getRunning()).isEqualTo(1);
+    }
+    assertThat(limiter.getRunning()).isZero();
+  }
+
+  @Test
+  void shouldWaitForFreeSlot() throws Exception {
+    ConversionLimiter slow = new ConversionLimiter(configurationStore, meterRegistry, 10, TimeUnit.SECONDS);
+    ConversionLimiter.Permit permit = slow.acquire(heartOfGold);
+
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      CountDownLatch started = new CountDownLatch(1);
+      Future<?> waiting = executor.submit(() -> {
+        ThreadContext.bind(subject);
+        started.countDown();
+        slow.acquire(heartOfGold).close();
+      });
+      started.await();
+      while (slow.getWaiting() < 1) {
+        Thread.sleep(10);
+      }
+
+      permit.close();
+      waiting.get(5, TimeUnit.SECONDS);
+    } finally {
+      executor.shutdownNow();
+    }
+
+    assertThat(slow.getRunning()).isZero();
+    assertThat(meterRegistry.timer("scm.gotenberg.conversions.wait").count()).isEqualTo(2);
+  }
+
+  @Test
+  void shouldRejectIfQueueIsFull() {
+    configuration.setMaxQueuedConversions(0);
+    limiter.acquire(heartOfGold);
+
+    ConversionLimitExceededException exception = assertThrows(
+      ConversionLimitExceededException.class, () -> limiter.acquire(heartOfGold)
+    );
+
+    assertThat(exception.getRetryAfterSeconds()).isPositive();
+    assertThat(meterRegistry.counter("scm.gotenberg.conversions.rejected").count()).isEqualTo(1);
+  }
+
+  @Test
+  void shouldLimitConversionsPerUser() {
+    configuration.setMaxConcurrentConversions(0);
+    configuration.setMaxConversionsPerUser(1);
+    limiter.acquire(heartOfGold);
+
+    assertThrows(ConversionLimitExceededException.class, () -> limiter.acquire(puzzle));
+
+    when(subject.getPrincipal()).thenReturn("dent");
+    limiter.acquire(puzzle);
+    assertThat(limiter.getRunning()).isEqualTo(2);
+  }
+
+  @Test
+  void shouldLimitConversionsPerRepository() {
+    configuration.setMaxConcurrentConversions(0);
+    configuration.setMaxConversionsPerRepository(1);
+    limiter.acquire(heartOfGold);
+
+    assertThrows(ConversionLimitExceededException.class, () -> limiter.acquire(heartOfGold));
+
+    limiter.acquire(puzzle);
+    assertThat(limiter.getRunning()).isEqualTo(2);
+  }
+
+  @Test
+  void shouldReleaseUserSlotOfRejectedConversion() {
+    configuration.setMaxConversionsPerUser(2);
+    ConversionLimiter.Permit permit = limiter.acquire(heartOfGold);
+
+    // times out in the queue
+    assertThrows(ConversionLimitExceededException.class, () -> limiter.acquire(heartOfGold));
+    permit.close();
+
+    limiter.acquire(heartOfGold);
+    assertThat(limiter.getRunning()).isEqualTo(1);
+  }
+
+  @Test
+  void shouldReleaseOnlyOnce() {
+    configuration.setMaxConcurrentConversions(2);
+    ConversionLimiter.Permit permit = limiter.acquire(heartOfGold);
+    limiter.acquire(heartOfGold);
+
+    permit.close();
+    permit.close();
+
+    assertThat(limiter.getRunning()).isEqualTo(1);
+  }
+
+  @Test
+  void shouldCountReservationsAgainstUserLimit() {
+    configuration.setMaxConcurrentConversions(0);
+    configuration.setMaxConversionsPerUser(1);
+    ConversionLimiter.Reservation reservation = limiter.reserve(heartOfGold);
+
+    assertThat(limiter.getWaiting()).isEqualTo(1);
+    assertThrows(ConversionLimitExceededException.class, () -> limiter.reserve(puzzle));
+
+    reservation.close();
+
+    assertThat(limiter.getWaiting()).isZero();
+    limiter.reserve(puzzle).acquire();
+    assertThat(limiter.getRunning()).isEqualTo(1);
+  }
+
+  @Test
+  void shouldNotCancelAcquiredReservation() {
+    configuration.setMaxConversionsPerUser(1);
+    ConversionLimiter.Reservation reservation = limiter.reserve(heartOfGold);
+    ConversionLimiter.Permit permit = reservation.acquire();
+
+    reservation.close();
+
+    assertThat(limiter.getRunning()).isEqualTo(1);
+    assertThat(limiter.getWaiting()).isZero();
+    assertThrows(ConversionLimitExceededException.class, () -> limiter.reserve(heartOfGold));
+    permit.close();
+    assertThat(limiter.getRunning()).isZero();
+  }
+
+  @Test
+  void shouldReserveSpeculativelyOnlyIfSlotIsFree() {
+    configuration.setMaxConcurrentConversions(2);
+    ConversionLimiter.Permit permit = limiter.acquire(heartOfGold);
+
+    ConversionLimiter.Reservation reservation = limiter.tryReserve(heartOfGold).orElseThrow();
+
+    assertThat(limiter.getRunning()).isEqualTo(2);
+    assertThat(limiter.tryReserve(heartOfGold)).isEmpty();
+
+    reservation.close();
+    permit.close();
+    assertThat(limiter.getRunning()).isZero();
+  }
+
+  @Test
+  void shouldNotReserveSpeculativelyIfConversionWaits() {
+    configuration.setMaxConcurrentConversions(2);
+    limiter.reserve(heartOfGold);
+
+    assertThat(limiter.tryReserve(puzzle)).isEmpty();
+  }
+}
@@ -16,29 +16,44 @@
 
 package com.cloudogu.scm.gotenberg;
 
+import com.google.common.io.ByteSource;
+import com.google.common.io.ByteStreams;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import jakarta.ws.rs.core.Response;
+import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Nested;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
 import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.ValueSource;
 import org.mockito.Answers;
-import org.mockito.InjectMocks;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
 import sonia.scm.net.ahc.AdvancedHttpClient;
 import sonia.scm.net.ahc.AdvancedHttpRequestWithBody;
 import sonia.scm.net.ahc.AdvancedHttpResponse;
-import sonia.scm.net.ahc.FormContentBuilder;
 
 import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.ConnectException;
 import java.nio.charset.StandardCharsets;
+import java.time.Clock;
+import java.util.OptionalLong;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.junit.Assert.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.Mockito.lenient;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -51,9 +66,21 @@ class ConverterTest {
   @Mock
   private AdvancedHttpClient client;
 
-  @InjectMocks
+  private final GotenbergConfiguration configuration = new GotenbergConfiguration();
+
+  private GotenbergBackends backends;
+
   private Converter converter;
 
+  @BeforeEach
+  void setUpObjectUnderTest() {
+    backends = new GotenbergBackends(configurationStore, client, new SimpleMeterRegistry());
+    converter = createConverter(Runnable::run);
+  }
+
+  private Converter createConverter(Executor requestExecutor) {
+    return new Converter(configurationStore, backends, client, new ResponseWatchdog(Clock.systemUTC()), requestExecutor, 0);
+  }
 
   @Nested
   class IsConvertableTests {
@@ -81,55 +108,282 @@ class ConverterTest {
     @Mock
     private AdvancedHttpResponse response;
 
-    @Mock(answer = Answers.RETURNS_SELF)
-    private FormContentBuilder formContentBuilder;
+    @Mock
+    private AdvancedHttpResponse unavailable;
 
-    @Test
-    void shouldSendConvertRequest() throws IOException {
-      GotenbergConfiguration configuration = new GotenbergConfiguration();
+    private final RepositoryPath path = new RepositoryPath("hitchhiker", "h2g2", "42", "a/b/c/h2g2.pdf");
+    private final AtomicInteger opened = new AtomicInteger();
+    private final AtomicInteger released = new AtomicInteger();
+
+    @BeforeEach
+    void setUpRequest() {
       configuration.setUrl("https://gotenberg.dev");
       when(configurationStore.get()).thenReturn(configuration);
 
-      InputStream content = new ByteArrayInputStream("Don't Panic".getBytes(StandardCharsets.UTF_8));
-      RepositoryPath path = new RepositoryPath("hitchhiker", "h2g2", "42", "a/b/c/h2g2.pdf");
+      lenient().when(client.post("https://gotenberg.dev/forms/libreoffice/convert")).thenReturn(request);
+    }
 
-      when(client.post("https://gotenberg.dev/forms/libreoffice/convert")).thenReturn(request);
-      when(request.formContent()).thenReturn(formContentBuilder);
-      when(formContentBuilder.build()).thenReturn(request);
-      when(request.request()).thenReturn(response);
+    private InputStream content() {
+      opened.incrementAndGet();
+      return new ByteArrayInputStream("Don't Panic".getBytes(StandardCharsets.UTF_8));
+    }
 
+    @Test
+    void shouldSendConvertRequest() throws IOException {
+      when(request.request()).thenReturn(response);
       when(response.isSuccessful()).thenReturn(true);
 
-      converter.convert(path, content);
+      converter.convert(path, this::content, released::incrementAndGet);
 
-      verify(formContentBuilder).file("files", "h2g2.pdf", content);
-      verify(request).request();
+      ArgumentCaptor<String> contentType = ArgumentCaptor.forClass(String.class);
+      verify(request).contentType(contentType.capture());
+      ArgumentCaptor<ByteSource> body = ArgumentCaptor.forClass(ByteSource.class);
+      verify(request).rawContent(body.capture());
+      assertThat(contentType.getValue()).startsWith("multipart/form-data; boundary=");
+      assertThat(body.getValue().asCharSource(StandardCharsets.UTF_8).read())
+        .contains("name=\"files\"; filename=\"h2g2.pdf\"")
+        .contains("Don't Panic");
       verify(response).contentAsStream();
     }
 
     @Test
-    void shouldThrowGotenbergServerException() throws IOException {
-      GotenbergConfiguration configuration = new GotenbergConfiguration();
-      configuration.setUrl("https://gotenberg.dev");
-      when(configurationStore.get()).thenReturn(configuration);
+    void shouldSendSizeOfContentWithKnownLength() throws IOException {
+      when(request.request()).thenReturn(response);
+      when(response.isSuccessful()).thenReturn(true);
+      Converter.Content content = new Converter.Content() {
+        @Override
+        public InputStream open() {
+          return content();
+        }
+
+        @Override
+        public OptionalLong getLength() {
+          return OptionalLong.of(11);
+        }
+      };
+
+      converter.convert(path, content, released::incrementAndGet);
 
-      InputStream content = new ByteArrayInputStream("Don't Panic".getBytes(StandardCharsets.UTF_8));
-      RepositoryPath path = new RepositoryPath("hitchhiker", "h2g2", "42", "a/b/c/h2g2.pdf");
+      ArgumentCaptor<ByteSource> body = ArgumentCaptor.forClass(ByteSource.class);
+      verify(request).rawContent(body.capture());
+      assertThat(body.getValue().sizeIfKnown().isPresent()).isTrue();
+      assertThat(opened).hasValue(1);
+      assertThat(body.getValue().sizeIfKnown().get()).isEqualTo(body.getValue().read().length);
+    }
 
-      when(client.post("https://gotenberg.dev/forms/libreoffice/convert")).thenReturn(request);
-      when(request.formContent()).thenReturn(formContentBuilder);
-      when(formContentBuilder.build()).thenReturn(request);
+    @Test
+    void shouldStreamContentWhileItIsSent() throws IOException {
+      AtomicLong read = new AtomicLong();
+      InputStream content = new FilterInputStream(new ByteArrayInputStream(new byte[16 * 1024 * 1024])) {
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+          int count = super.read(b, off, len);
+          read.addAndGet(Math.max(count, 0));
+          return count;
+        }
+      };
+      ArgumentCaptor<ByteSource> body = ArgumentCaptor.forClass(ByteSource.class);
+      when(request.rawContent(body.capture())).thenReturn(request);
+      when(request.request()).thenAnswer(invocation -> {
+        // nothing is read before the client sends the body
+        assertThat(read).hasValue(0);
+        try (InputStream stream = body.getValue().openStream()) {
+          ByteStreams.exhaust(ByteStreams.limit(stream, 64 * 1024));
+        }
+        return response;
+      });
+      when(response.isSuccessful()).thenReturn(true);
+
+      converter.convert(path, () -> content, released::incrementAndGet);
+
+      assertThat(read.get()).isLessThan(128 * 1024);
+    }
+
+    @Test
+    void shouldKeepRequestOutstandingUntilDocumentWasRead() throws IOException {
       when(request.request()).thenReturn(response);
+      when(response.isSuccessful()).thenReturn(true);
+      when(response.contentAsStream()).thenReturn(new ByteArrayInputStream(new byte[]{1, 2, 3}));
+
+      InputStream pdf = converter.convert(path, this::content, released::incrementAndGet);
+      assertThat(backends.getBackends().get(0).getOutstanding()).isEqualTo(1);
+
+      pdf.close();
+      assertThat(backends.getBackends().get(0).getOutstanding()).isZero();
+    }
+
+    @Test
+    void shouldNotOpenCircuitForClientErrors() throws IOException {
+      configuration.setConversionRetries(0);
+      when(request.request()).thenReturn(response);
+      when(response.getStatus()).thenReturn(Response.Status.BAD_REQUEST.getStatusCode());
+
+      for (int i = 0; i < GotenbergBackends.MAX_CONSECUTIVE_FAILURES; i++) {
+        assertThrows(GotenbergServerException.class, () -> converter.convert(path, this::content, released::incrementAndGet));
+      }
 
+      GotenbergBackends.Backend backend = backends.getBackends().get(0);
+      assertThat(backend.isHealthy()).isTrue();
+      assertThat(backend.getOutstanding()).isZero();
+    }
+
+    @Test
+    void shouldThrowGotenbergServerException() throws IOException {
+      when(request.request()).thenReturn(response);
       when(response.getStatus()).thenReturn(Response.Status.BAD_GATEWAY.getStatusCode());
       when(response.isSuccessful()).thenReturn(false);
 
-      Exception exception = assertThrows(GotenbergServerException.class, () -> converter.convert(path, content));
+      Exception exception = assertThrows(GotenbergServerException.class, () -> converter.convert(path, this::content, released::incrementAndGet));
 
       String expectedMessage = "Unexpected response by Gotenberg server: 502";
       assertEquals(expectedMessage, exception.getMessage());
+      // the first request and two retries
+      verify(request, times(3)).request();
+    }
+
+    @Test
+    void shouldRetryTransientErrorsWithNewContent() throws IOException {
+      when(request.request()).thenReturn(unavailable, response);
+      when(unavailable.getStatus()).thenReturn(Response.Status.SERVICE_UNAVAILABLE.getStatusCode());
+      when(response.isSuccessful()).thenReturn(true);
+      when(response.contentAsStream()).thenReturn(new ByteArrayInputStream(new byte[]{1, 2, 3}));
+
+      InputStream pdf = converter.convert(path, this::content, released::incrementAndGet);
+
+      assertThat(pdf).hasBinaryContent(new byte[]{1, 2, 3});
+      assertThat(opened).hasValue(2);
+    }
+
+    @Test
+    void shouldCloseErrorResponseBeforeRetry() throws IOException {
+      AtomicBoolean closed = new AtomicBoolean();
+      when(request.request()).thenReturn(unavailable, response);
+      when(unavailable.getStatus()).thenReturn(Response.Status.SERVICE_UNAVAILABLE.getStatusCode());
+      when(unavailable.contentAsStream()).thenReturn(new ByteArrayInputStream(new byte[0]) {
+        @Override
+        public void close() {
+          closed.set(true);
+        }
+      });
+      when(response.isSuccessful()).thenReturn(true);
+
+      converter.convert(path, this::content, released::incrementAndGet);
+
+      assertThat(closed).isTrue();
+    }
+
+    @Test
+    void shouldRetryConnectionFailures() throws IOException {
+      when(request.request()).thenThrow(new ConnectException("connection refused")).thenReturn(response);
+      when(response.isSuccessful()).thenReturn(true);
+
+      converter.convert(path, this::content, released::incrementAndGet);
+
+      verify(request, times(2)).request();
+    }
+
+    @Test
+    void shouldThrowConnectionFailureAfterLastRetry() throws IOException {
+      configuration.setConversionRetries(1);
+      when(request.request()).thenThrow(new ConnectException("connection refused"));
+
+      assertThrows(ConnectException.class, () -> converter.convert(path, this::content, released::incrementAndGet));
 
+      verify(request, times(2)).request();
     }
 
+    @Test
+    void shouldNotRetryClientErrors() throws IOException {
+      when(request.request()).thenReturn(response);
+      when(response.getStatus()).thenReturn(Response.Status.BAD_REQUEST.getStatusCode());
+
+      assertThrows(GotenbergServerException.class, () -> converter.convert(path, this::content, released::incrementAndGet));
+
+      verify(request).request();
+    }
+
+    @Test
+    void shouldNotRetryFailedConversion() throws IOException {
+      when(request.request()).thenReturn(response);
+      when(response.getStatus()).thenReturn(Response.Status.INTERNAL_SERVER_ERROR.getStatusCode());
+
+      assertThrows(GotenbergServerException.class, () -> converter.convert(path, this::content, released::incrementAndGet));
+
+      verify(request).request();
+    }
+
+    @Test
+    void shouldKeepLeaseAndReleaseUntilAbandonedRequestReturns() throws IOException {
+      configuration.setConversionTimeoutSeconds(1);
+      AtomicReference<Runnable> sent = new AtomicReference<>();
+      Converter stuck = createConverter(sent::set);
+
+      GotenbergServerException exception = assertThrows(
+        GotenbergServerException.class, () -> stuck.convert(path, this::content, released::incrementAndGet)
+      );
+
+      assertThat(exception.getMessage()).contains("in time");
+      assertThat(backends.getBackends().get(0).getOutstanding()).isEqualTo(1);
+      assertThat(released).hasValue(0);
+
+      AtomicBoolean closed = new AtomicBoolean();
+      when(request.request()).thenReturn(response);
+      when(response.contentAsStream()).thenReturn(new ByteArrayInputStream(new byte[0]) {
+        @Override
+        public void close() {
+          closed.set(true);
+        }
+      });
+      sent.get().run();
+
+      assertThat(backends.getBackends().get(0).getOutstanding()).isZero();
+      assertThat(released).hasValue(1);
+      assertThat(closed).isTrue();
+    }
+
+    @Test
+    void shouldAbortUploadOfAbandonedRequest() throws IOException {
+      configuration.setConversionTimeoutSeconds(1);
+      AtomicReference<Runnable> sent = new AtomicReference<>();
+      Converter stuck = createConverter(sent::set);
+      ArgumentCaptor<ByteSource> body = ArgumentCaptor.forClass(ByteSource.class);
+      when(request.rawContent(body.capture())).thenReturn(request);
+      when(request.request()).thenAnswer(invocation -> body.getValue().read());
+
+      assertThrows(GotenbergServerException.class, () -> stuck.convert(path, this::content, released::incrementAndGet));
+      sent.get().run();
+
+      verify(request).request();
+      assertThat(backends.getBackends().get(0).getOutstanding()).isZero();
+      assertThat(released).hasValue(1);
+    }
+
+    @Test
+    void shouldRejectRequestIfAllRequestThreadsAreBusy() {
+      Converter busy = createConverter(task -> {
+        throw new RejectedExecutionException("busy");
+      });
+
+      assertThrows(GotenbergUnavailableException.class, () -> busy.convert(path, this::content, released::incrementAndGet));
+
+      GotenbergBackends.Backend backend = backends.getBackends().get(0);
+      assertThat(backend.getOutstanding()).isZero();
+      assertThat(backend.isHealthy()).isTrue();
+      assertThat(released).hasValue(1);
+    }
+
+    @Test
+    void shouldRunReleaseWhenDocumentIsClosed() throws IOException {
+      when(request.request()).thenReturn(response);
+      when(response.isSuccessful()).thenReturn(true);
+      when(response.contentAsStream()).thenReturn(new ByteArrayInputStream(new byte[]{1, 2, 3}));
+
+      InputStream pdf = converter.convert(path, this::content, released::incrementAndGet);
+      assertThat(released).hasValue(0);
+
+      pdf.close();
+      pdf.close();
+      assertThat(released).hasValue(1);
+    }
   }
 }
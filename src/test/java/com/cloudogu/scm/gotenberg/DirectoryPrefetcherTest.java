@@ -0,0 +1,197 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package com.cloudogu.scm.gotenberg;
+
+import com.google.common.util.concurrent.RateLimiter;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import sonia.scm.repository.FileObject;
+import sonia.scm.repository.NamespaceAndName;
+
+import java.util.Arrays;
+import java.util.OptionalLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.lenient;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+class DirectoryPrefetcherTest {
+
+  private final NamespaceAndName repository = new NamespaceAndName("hitchhiker", "guide");
+
+  private final GotenbergConfiguration configuration = new GotenbergConfiguration();
+
+  private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+  @Mock
+  private GotenbergConfigurationStore configurationStore;
+
+  @Mock
+  private PdfService pdfService;
+
+  @Mock
+  private RateLimiter rateLimiter;
+
+  private DirectoryPrefetcher prefetcher;
+
+  @BeforeEach
+  void setUp() {
+    configuration.setEnabled(true);
+    configuration.setDirectoryPrefetchEnabled(true);
+    lenient().when(configurationStore.isDirectoryPrefetchEnabled())
+      .then(invocation -> configuration.isDirectoryPrefetchEnabled() && configuration.getDirectoryPrefetchMaxFiles() > 0);
+    lenient().when(configurationStore.getDirectoryPrefetchMaxFiles())
+      .then(invocation -> configuration.getDirectoryPrefetchMaxFiles());
+    lenient().when(pdfService.isSupported(any(FileObject.class))).then(ic -> ic.<FileObject>getArgument(0).getPath().endsWith(".docx"));
+    lenient().when(pdfService.prefetch(any())).thenReturn(true);
+    lenient().when(rateLimiter.tryAcquire()).thenReturn(true);
+
+    prefetcher = new DirectoryPrefetcher(configurationStore, pdfService, meterRegistry, rateLimiter);
+  }
+
+  @Test
+  void shouldPrefetchSmallestDocumentsFirst() {
+    configuration.setDirectoryPrefetchMaxFiles(2);
+    FileObject directory = directory(file("specs/large.docx", 300), file("specs/small.docx", 100), file("specs/medium.docx", 200));
+
+    prefetch(directory);
+
+    InOrder order = inOrder(pdfService);
+    order.verify(pdfService).prefetch(path("specs/small.docx"));
+    order.verify(pdfService).prefetch(path("specs/medium.docx"));
+    verify(pdfService, never()).prefetch(path("specs/large.docx"));
+    assertThat(scheduled()).isEqualTo(2);
+  }
+
+  @Test
+  void shouldPrefetchDocumentsWithoutLengthLast() {
+    configuration.setDirectoryPrefetchMaxFiles(1);
+    FileObject unknown = file("specs/unknown.docx", 0);
+    unknown.setLength(OptionalLong.empty());
+
+    prefetch(directory(unknown, file("specs/known.docx", 1_000_000)));
+
+    verify(pdfService).prefetch(path("specs/known.docx"));
+    verify(pdfService, times(1)).prefetch(any());
+  }
+
+  @Test
+  void shouldIgnoreUnsupportedFilesAndDirectories() {
+    FileObject subDirectory = file("specs/old.docx", 0);
+    subDirectory.setDirectory(true);
+
+    prefetch(directory(file("specs/video.mp4", 1), subDirectory));
+
+    verify(pdfService, never()).prefetch(any());
+    verify(rateLimiter, never()).tryAcquire();
+  }
+
+  @Test
+  void shouldPrefetchDirectoryOnlyOnce() {
+    FileObject directory = directory(file("specs/a.docx", 1));
+
+    prefetch(directory);
+    prefetch(directory);
+
+    verify(pdfService, times(1)).prefetch(any());
+  }
+
+  @Test
+  void shouldPrefetchDirectoryOfOtherRevision() {
+    FileObject directory = directory(file("specs/a.docx", 1));
+
+    prefetch(directory);
+    prefetcher.prefetch(repository, "43", directory);
+
+    verify(pdfService, times(2)).prefetch(any());
+  }
+
+  @Test
+  void shouldNotPrefetchIfRateLimitIsExceeded() {
+    when(rateLimiter.tryAcquire()).thenReturn(false);
+    FileObject directory = directory(file("specs/a.docx", 1));
+
+    prefetch(directory);
+
+    verify(pdfService, never()).prefetch(any());
+    assertThat(meterRegistry.get("scm.gotenberg.prefetch.dropped").counter().count()).isEqualTo(1);
+
+    when(rateLimiter.tryAcquire()).thenReturn(true);
+    prefetch(directory);
+
+    verify(pdfService).prefetch(path("specs/a.docx"));
+  }
+
+  @Test
+  void shouldPrefetchDirectoryAgainIfLaneWasFull() {
+    when(pdfService.prefetch(any())).thenReturn(false);
+    FileObject directory = directory(file("specs/a.docx", 1));
+
+    prefetch(directory);
+    prefetch(directory);
+
+    verify(pdfService, times(2)).prefetch(path("specs/a.docx"));
+    assertThat(scheduled()).isZero();
+  }
+
+  @Test
+  void shouldNotPrefetchIfDisabled() {
+    configuration.setDirectoryPrefetchEnabled(false);
+
+    prefetch(directory(file("specs/a.docx", 1)));
+
+    verify(pdfService, never()).prefetch(any());
+  }
+
+  private void prefetch(FileObject directory) {
+    prefetcher.prefetch(repository, "42", directory);
+  }
+
+  private double scheduled() {
+    return meterRegistry.get("scm.gotenberg.prefetch.documents").counter().count();
+  }
+
+  private FileObject directory(FileObject... children) {
+    FileObject directory = new FileObject();
+    directory.setPath("specs");
+    directory.setDirectory(true);
+    directory.setChildren(Arrays.asList(children));
+    return directory;
+  }
+
+  private FileObject file(String path, long length) {
+    FileObject file = new FileObject();
+    file.setPath(path);
+    file.setLength(OptionalLong.of(length));
+    return file;
+  }
+
+  private RepositoryPath path(String path) {
+    return new RepositoryPath(repository.getNamespace(), repository.getName(), "42", path);
+  }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package com.cloudogu.scm.gotenberg;
+
+import com.google.common.collect.ImmutableSet;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ExtensionsTest {
+
+  private final Extensions extensions = new Extensions(ImmutableSet.of("doc", "docx", "odt", "pdf", "xhtml"));
+
+  @Test
+  void shouldMatchExtensionOfPath() {
+    assertThat(extensions.matches("a.docx")).isTrue();
+    assertThat(extensions.matches("a/b/c.doc")).isTrue();
+    assertThat(extensions.matches("a.b/c.xhtml")).isTrue();
+  }
+
+  @Test
+  void shouldMatchRegardlessOfCase() {
+    assertThat(extensions.matches("A.DOCX")).isTrue();
+    assertThat(extensions.matches("a.OdT")).isTrue();
+  }
+
+  @Test
+  void shouldNotMatchOtherExtensions() {
+    assertThat(extensions.matches("a.docm")).isFalse();
+    assertThat(extensions.matches("a.do")).isFalse();
+    assertThat(extensions.matches("a.xdoc")).isFalse();
+    assertThat(extensions.matches("a.verylongextension")).isFalse();
+    assertThat(extensions.matches("a.d\u00f6")).isFalse();
+  }
+
+  @Test
+  void shouldNotMatchPathsWithoutExtension() {
+    assertThat(extensions.matches("Dockerfile")).isFalse();
+    assertThat(extensions.matches(".pdf")).isFalse();
+    assertThat(extensions.matches("a.")).isFalse();
+    assertThat(extensions.matches("")).isFalse();
+    assertThat(extensions.matches("a.pdf/readme")).isFalse();
+  }
+
+  @Test
+  void shouldMatchLikeExtensionOfFilenames() {
+    List<String> paths = List.of(
+      "a.docx", "A.PDF", "x/.doc", "x.doc/", "x.doc/y", "Dockerfile", ".odt", "a.b.odt", "a..pdf", "a.pdf.", "\u00e9.pdf"
+    );
+    for (String path : paths) {
+      boolean expected = Filenames.extension(path).map(extensions::contains).orElse(false);
+      assertThat(extensions.matches(path)).as(path).isEqualTo(expected);
+    }
+  }
+
+  @Test
+  void shouldContainExtension() {
+    assertThat(extensions.contains("docx")).isTrue();
+    assertThat(extensions.contains("DOCX")).isFalse();
+  }
+}
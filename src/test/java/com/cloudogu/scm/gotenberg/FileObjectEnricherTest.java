@@ -17,6 +17,7 @@
 package com.cloudogu.scm.gotenberg;
 
 import com.google.inject.util.Providers;
+import de.otto.edison.hal.HalRepresentation;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
@@ -28,9 +29,18 @@ import sonia.scm.api.v2.resources.ScmPathInfoStore;
 import sonia.scm.repository.BrowserResult;
 import sonia.scm.repository.FileObject;
 import sonia.scm.repository.NamespaceAndName;
+import sonia.scm.repository.Repository;
+import sonia.scm.repository.RepositoryManager;
+import sonia.scm.repository.RepositoryTestData;
 
 import java.net.URI;
+import java.util.OptionalLong;
 
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoInteractions;
 import static org.mockito.Mockito.when;
@@ -50,6 +60,14 @@ class FileObjectEnricherTest {
   @Mock
   private GotenbergConfigurationStore configurationStore;
 
+  @Mock
+  private DirectoryPrefetcher prefetcher;
+
+  @Mock
+  private RepositoryManager repositoryManager;
+
+  private final Repository repository = RepositoryTestData.createHeartOfGold();
+
   private FileObjectEnricher enricher;
 
   @BeforeEach
@@ -57,7 +75,7 @@ class FileObjectEnricherTest {
     ScmPathInfoStore store = new ScmPathInfoStore();
     store.set(() -> URI.create("/"));
 
-    enricher = new FileObjectEnricher(configurationStore, pdfService, Providers.of(store));
+    enricher = new FileObjectEnricher(configurationStore, pdfService, prefetcher, repositoryManager, Providers.of(store));
   }
 
   @Test
@@ -66,10 +84,7 @@ class FileObjectEnricherTest {
     FileObject file = new FileObject();
     file.setPath("h2g2.pdf");
 
-    GotenbergConfiguration configuration = new GotenbergConfiguration();
-    configuration.setEnabled(true);
-
-    when(configurationStore.get()).thenReturn(configuration);
+    when(configurationStore.isEnabled()).thenReturn(true);
     when(pdfService.isSupported(file)).thenReturn(true);
     when(context.oneRequireByType(FileObject.class)).thenReturn(file);
     NamespaceAndName namespaceAndName = new NamespaceAndName("hitchhiker", "guide");
@@ -80,6 +95,48 @@ class FileObjectEnricherTest {
     enricher.enrich(context, appender);
 
     verify(appender).appendLink("pdf", "/v2/gotenberg/pdf/hitchhiker/guide/42/h2g2.pdf");
+    verify(appender).appendLink("pdfStatus", "/v2/gotenberg/status/hitchhiker/guide/42/h2g2.pdf");
+  }
+
+  @Test
+  void shouldEmbedSizeOfCachedPdf() {
+    FileObject file = new FileObject();
+    file.setPath("h2g2.docx");
+
+    when(configurationStore.isEnabled()).thenReturn(true);
+    when(pdfService.isSupported(file)).thenReturn(true);
+    when(repositoryManager.get(new NamespaceAndName("hitchhiker", "guide"))).thenReturn(repository);
+    when(pdfService.peekCachedSize(repository, "42", "h2g2.docx")).thenReturn(OptionalLong.of(42));
+    when(context.oneRequireByType(FileObject.class)).thenReturn(file);
+    when(context.oneRequireByType(NamespaceAndName.class)).thenReturn(new NamespaceAndName("hitchhiker", "guide"));
+    when(context.oneRequireByType(BrowserResult.class)).thenReturn(new BrowserResult("42", file));
+
+    enricher.enrich(context, appender);
+
+    verify(appender).appendEmbedded(eq("cachedPdf"), argThat((HalRepresentation dto) -> ((CachedPdfDto) dto).getSize() == 42));
+  }
+
+  @Test
+  void shouldResolveRepositoryOncePerListing() {
+    FileObject one = new FileObject();
+    one.setPath("one.docx");
+    FileObject two = new FileObject();
+    two.setPath("two.docx");
+
+    NamespaceAndName namespaceAndName = new NamespaceAndName("hitchhiker", "guide");
+    when(configurationStore.isEnabled()).thenReturn(true);
+    when(pdfService.isSupported(any(FileObject.class))).thenReturn(true);
+    when(pdfService.peekCachedSize(eq(repository), eq("42"), anyString())).thenReturn(OptionalLong.empty());
+    when(repositoryManager.get(namespaceAndName)).thenReturn(repository);
+    when(context.oneRequireByType(FileObject.class)).thenReturn(one, two);
+    when(context.oneRequireByType(NamespaceAndName.class)).thenReturn(namespaceAndName);
+    when(context.oneRequireByType(BrowserResult.class)).thenReturn(new BrowserResult("42", one));
+
+    enricher.enrich(context, appender);
+    enricher.enrich(context, appender);
+
+    verify(repositoryManager, times(1)).get(namespaceAndName);
+    verify(pdfService).peekCachedSize(repository, "42", "two.docx");
   }
 
   @Test
@@ -87,10 +144,7 @@ class FileObjectEnricherTest {
     FileObject file = new FileObject();
     file.setPath("h2g2.mp4");
 
-    GotenbergConfiguration configuration = new GotenbergConfiguration();
-    configuration.setEnabled(true);
-
-    when(configurationStore.get()).thenReturn(configuration);
+    when(configurationStore.isEnabled()).thenReturn(true);
     when(pdfService.isSupported(file)).thenReturn(false);
     when(context.oneRequireByType(FileObject.class)).thenReturn(file);
 
@@ -104,10 +158,7 @@ class FileObjectEnricherTest {
     FileObject file = new FileObject();
     file.setPath("h2g2.mp4");
 
-    GotenbergConfiguration configuration = new GotenbergConfiguration();
-    configuration.setEnabled(false);
-
-    when(configurationStore.get()).thenReturn(configuration);
+    when(configurationStore.isEnabled()).thenReturn(false);
     when(context.oneRequireByType(FileObject.class)).thenReturn(file);
 
     enricher.enrich(context, appender);
@@ -115,4 +166,36 @@ class FileObjectEnricherTest {
     verifyNoInteractions(appender);
   }
 
+  @Test
+  void shouldPrefetchDirectory() {
+    FileObject directory = new FileObject();
+    directory.setPath("specs");
+    directory.setDirectory(true);
+
+    when(configurationStore.isEnabled()).thenReturn(true);
+    when(context.oneRequireByType(FileObject.class)).thenReturn(directory);
+    NamespaceAndName namespaceAndName = new NamespaceAndName("hitchhiker", "guide");
+    when(context.oneRequireByType(NamespaceAndName.class)).thenReturn(namespaceAndName);
+    when(context.oneRequireByType(BrowserResult.class)).thenReturn(new BrowserResult("42", directory));
+
+    enricher.enrich(context, appender);
+
+    verify(prefetcher).prefetch(namespaceAndName, "42", directory);
+    verifyNoInteractions(appender);
+  }
+
+  @Test
+  void shouldNotPrefetchDirectoryIfGotenbergIsDisabled() {
+    FileObject directory = new FileObject();
+    directory.setPath("specs");
+    directory.setDirectory(true);
+
+    when(configurationStore.isEnabled()).thenReturn(false);
+    when(context.oneRequireByType(FileObject.class)).thenReturn(directory);
+
+    enricher.enrich(context, appender);
+
+    verifyNoInteractions(prefetcher);
+  }
+
 }
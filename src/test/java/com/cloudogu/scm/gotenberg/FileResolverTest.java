@@ -22,6 +22,8 @@ import org.mockito.Answers;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
+import sonia.scm.repository.BrowserResult;
+import sonia.scm.repository.FileObject;
 import sonia.scm.repository.Repository;
 import sonia.scm.repository.RepositoryTestData;
 import sonia.scm.repository.api.RepositoryService;
@@ -30,8 +32,13 @@ import sonia.scm.repository.api.RepositoryServiceFactory;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.OptionalLong;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 @ExtendWith(MockitoExtension.class)
@@ -53,14 +60,86 @@ class FileResolverTest {
       heartOfGold.getNamespace(), heartOfGold.getName(), "42", "h2g2.pdf"
     );
 
-    InputStream stream = new ByteArrayInputStream(new byte[]{});
+    InputStream stream = new ByteArrayInputStream("Don't Panic".getBytes(StandardCharsets.UTF_8));
 
     when(repositoryServiceFactory.create(heartOfGold)).thenReturn(repositoryService);
     when(repositoryService.getCatCommand().setRevision("42").getStream("h2g2.pdf")).thenReturn(stream);
 
     InputStream content = resolver.getContent(heartOfGold, path);
 
-    assertThat(content).isSameAs(stream);
+    assertThat(content).hasContent("Don't Panic");
   }
 
+  @Test
+  void shouldCloseRepositoryServiceWithContent() throws IOException {
+    Repository heartOfGold = RepositoryTestData.createHeartOfGold();
+    RepositoryPath path = new RepositoryPath(
+      heartOfGold.getNamespace(), heartOfGold.getName(), "42", "h2g2.pdf"
+    );
+
+    when(repositoryServiceFactory.create(heartOfGold)).thenReturn(repositoryService);
+    when(repositoryService.getCatCommand().setRevision("42").getStream("h2g2.pdf"))
+      .thenReturn(new ByteArrayInputStream(new byte[]{}));
+
+    InputStream content = resolver.getContent(heartOfGold, path);
+    verify(repositoryService, never()).close();
+
+    content.close();
+    verify(repositoryService).close();
+  }
+
+  @Test
+  void shouldCloseRepositoryServiceIfFileCouldNotBeRead() throws IOException {
+    Repository heartOfGold = RepositoryTestData.createHeartOfGold();
+    RepositoryPath path = new RepositoryPath(
+      heartOfGold.getNamespace(), heartOfGold.getName(), "42", "h2g2.pdf"
+    );
+
+    when(repositoryServiceFactory.create(heartOfGold)).thenReturn(repositoryService);
+    when(repositoryService.getCatCommand().setRevision("42").getStream("h2g2.pdf"))
+      .thenThrow(new IOException("failed to read"));
+
+    assertThrows(IOException.class, () -> resolver.getContent(heartOfGold, path));
+
+    verify(repositoryService).close();
+  }
+
+  @Test
+  void shouldReturnHashOfContent() throws IOException {
+    Repository heartOfGold = RepositoryTestData.createHeartOfGold();
+    RepositoryPath path = new RepositoryPath(
+      heartOfGold.getNamespace(), heartOfGold.getName(), "42", "h2g2.pdf"
+    );
+
+    InputStream stream = new ByteArrayInputStream("Don't Panic".getBytes(StandardCharsets.UTF_8));
+
+    when(repositoryServiceFactory.create(heartOfGold)).thenReturn(repositoryService);
+    when(repositoryService.getCatCommand().setRevision("42").getStream("h2g2.pdf")).thenReturn(stream);
+
+    String hash = resolver.hash(heartOfGold, path);
+
+    assertThat(hash).isEqualTo("02e43fc1ff0ee48db8da468f5c7525877d8056fcd56c77d78a166ac447efb91c");
+  }
+
+  @Test
+  void shouldReturnLengthWithoutReadingContent() throws IOException {
+    Repository heartOfGold = RepositoryTestData.createHeartOfGold();
+    RepositoryPath path = new RepositoryPath(
+      heartOfGold.getNamespace(), heartOfGold.getName(), "42", "h2g2.pdf"
+    );
+    FileObject file = new FileObject();
+    file.setLength(OptionalLong.of(42));
+
+    when(repositoryServiceFactory.create(heartOfGold)).thenReturn(repositoryService);
+    when(repositoryService.getBrowseCommand()
+      .setRevision("42")
+      .setPath("h2g2.pdf")
+      .setDisableLastCommit(true)
+      .setDisableSubRepositoryDetection(true)
+      .getBrowserResult()).thenReturn(new BrowserResult("42", file));
+
+    assertThat(resolver.getLength(heartOfGold, path)).hasValue(42);
+    verify(repositoryService).close();
+    verify(repositoryService, never()).getCatCommand();
+  }
 }
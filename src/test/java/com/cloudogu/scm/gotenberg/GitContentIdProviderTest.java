@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package com.cloudogu.scm.gotenberg;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import sonia.scm.NotFoundException;
+import sonia.scm.repository.GitRepositoryHandler;
+import sonia.scm.repository.Repository;
+import sonia.scm.repository.RepositoryTestData;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Optional;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.Mockito.lenient;
+
+@ExtendWith(MockitoExtension.class)
+class GitContentIdProviderTest {
+
+  private final Repository repository = RepositoryTestData.createHeartOfGold();
+
+  @Mock
+  private GitRepositoryHandler repositoryHandler;
+
+  @InjectMocks
+  private GitContentIdProvider provider;
+
+  @TempDir
+  private Path directory;
+
+  private Git git;
+
+  @BeforeEach
+  void setUpRepository() throws GitAPIException {
+    git = Git.init().setDirectory(directory.toFile()).call();
+    lenient().when(repositoryHandler.getDirectory(repository.getId())).thenReturn(new File(directory.toFile(), ".git"));
+  }
+
+  @Test
+  void shouldReturnIdOfBlob() throws Exception {
+    String revision = commit("docs/praesi.pptx", "Don't Panic");
+
+    Optional<String> contentId = provider.getContentId(repository, path(revision, "docs/praesi.pptx"));
+
+    assertThat(contentId).hasValue("git:" + blobId("Don't Panic"));
+  }
+
+  @Test
+  void shouldReturnSameIdForSameContent() throws Exception {
+    String first = commit("a.docx", "Don't Panic");
+    String second = commit("b.docx", "Don't Panic");
+
+    assertThat(provider.getContentId(repository, path(first, "a.docx")))
+      .isEqualTo(provider.getContentId(repository, path(second, "b.docx")));
+  }
+
+  @Test
+  void shouldReturnDifferentIdForChangedContent() throws Exception {
+    String first = commit("a.docx", "Don't Panic");
+    String second = commit("a.docx", "Mostly harmless");
+
+    assertThat(provider.getContentId(repository, path(first, "a.docx")))
+      .isNotEqualTo(provider.getContentId(repository, path(second, "a.docx")));
+  }
+
+  @Test
+  void shouldIgnoreOtherRepositoryTypes() throws IOException {
+    Repository hg = new Repository("hg-42", "hg", "hitchhiker", "hg");
+
+    assertThat(provider.getContentId(hg, new RepositoryPath("hitchhiker", "hg", "42", "a.docx"))).isEmpty();
+  }
+
+  @Test
+  void shouldThrowNotFoundForMissingFile() throws Exception {
+    String revision = commit("a.docx", "Don't Panic");
+
+    RepositoryPath path = path(revision, "b.docx");
+    assertThrows(NotFoundException.class, () -> provider.getContentId(repository, path));
+  }
+
+  @Test
+  void shouldThrowNotFoundForDirectory() throws Exception {
+    String revision = commit("docs/a.docx", "Don't Panic");
+
+    RepositoryPath path = path(revision, "docs");
+    assertThrows(NotFoundException.class, () -> provider.getContentId(repository, path));
+  }
+
+  @Test
+  void shouldThrowNotFoundForMissingRevision() throws Exception {
+    commit("a.docx", "Don't Panic");
+
+    RepositoryPath path = path("1234567890123456789012345678901234567890", "a.docx");
+    assertThrows(NotFoundException.class, () -> provider.getContentId(repository, path));
+  }
+
+  private String commit(String path, String content) throws IOException, GitAPIException {
+    Path file = directory.resolve(path);
+    Files.createDirectories(file.getParent());
+    Files.writeString(file, content);
+    git.add().addFilepattern(path).call();
+    RevCommit commit = git.commit().setMessage("add " + path).setAuthor("trillian", "tricia@hitchhiker.com").call();
+    return commit.getId().name();
+  }
+
+  private String blobId(String content) {
+    try (ObjectInserter.Formatter formatter = new ObjectInserter.Formatter()) {
+      return formatter.idFor(Constants.OBJ_BLOB, content.getBytes(StandardCharsets.UTF_8)).name();
+    }
+  }
+
+  private RepositoryPath path(String revision, String path) {
+    return new RepositoryPath(repository.getNamespace(), repository.getName(), revision, path);
+  }
+}
@@ -0,0 +1,389 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package com.cloudogu.scm.gotenberg;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Nested;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import sonia.scm.net.ahc.AdvancedHttpClient;
+import sonia.scm.net.ahc.AdvancedHttpRequest;
+import sonia.scm.net.ahc.AdvancedHttpResponse;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.lenient;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+class GotenbergBackendsTest {
+
+  private static final String HEART_OF_GOLD = "http://heart-of-gold:3000";
+  private static final String VOGON = "http://vogon:3000";
+
+  @Mock
+  private GotenbergConfigurationStore configurationStore;
+
+  @Mock
+  private AdvancedHttpClient client;
+
+  private final GotenbergConfiguration configuration = new GotenbergConfiguration();
+  private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+  private final MutableClock clock = new MutableClock();
+
+  private GotenbergBackends backends;
+
+  @BeforeEach
+  void setUpObjectUnderTest() {
+    configuration.setUrl(HEART_OF_GOLD);
+    configuration.setAdditionalUrls(Arrays.asList(VOGON));
+    lenient().when(configurationStore.get()).thenReturn(configuration);
+    lenient().when(configurationStore.isEnabled()).then(invocation -> configuration.isEnabled());
+    backends = new GotenbergBackends(configurationStore, client, meterRegistry, clock, Runnable::run, 1000);
+  }
+
+  @Test
+  void shouldSelectServerWithFewestOutstandingRequests() {
+    GotenbergBackends.Lease first = backends.acquire();
+    GotenbergBackends.Lease second = backends.acquire();
+
+    assertThat(first.url("/x")).isNotEqualTo(second.url("/x"));
+
+    first.close();
+    GotenbergBackends.Lease third = backends.acquire();
+
+    assertThat(third.url("/x")).isEqualTo(first.url("/x"));
+  }
+
+  @Test
+  void shouldDistributeRequestsOfIdleServers() {
+    String first;
+    try (GotenbergBackends.Lease lease = backends.acquire()) {
+      first = lease.url("");
+    }
+    try (GotenbergBackends.Lease lease = backends.acquire()) {
+      assertThat(lease.url("")).isNotEqualTo(first);
+    }
+  }
+
+  @Test
+  void shouldReleaseLeaseOnlyOnce() {
+    GotenbergBackends.Lease lease = backends.acquire();
+    backends.acquire();
+
+    lease.close();
+    lease.close();
+
+    assertThat(backends.getBackends())
+      .extracting(GotenbergBackends.Backend::getOutstanding)
+      .containsExactlyInAnyOrder(0, 1);
+  }
+
+  @Test
+  void shouldOpenCircuitAfterConsecutiveFailures() {
+    fail(HEART_OF_GOLD, GotenbergBackends.MAX_CONSECUTIVE_FAILURES);
+
+    assertThat(backend(HEART_OF_GOLD).getState()).isEqualTo(GotenbergBackends.CircuitState.OPEN);
+    for (int i = 0; i < 4; i++) {
+      try (GotenbergBackends.Lease lease = backends.acquire()) {
+        assertThat(lease.url("")).isEqualTo(VOGON);
+      }
+    }
+  }
+
+  @Test
+  void shouldNotOpenCircuitAfterSingleFailure() {
+    fail(HEART_OF_GOLD, GotenbergBackends.MAX_CONSECUTIVE_FAILURES - 1);
+
+    assertThat(backend(HEART_OF_GOLD).isHealthy()).isTrue();
+  }
+
+  @Test
+  void shouldOpenCircuitIfFailureRateIsExceeded() {
+    configuration.setAdditionalUrls(List.of());
+    for (int i = 0; i < GotenbergBackends.MIN_CALLS_IN_WINDOW / 2; i++) {
+      succeed();
+      fail(HEART_OF_GOLD, 1);
+    }
+
+    assertThat(backend(HEART_OF_GOLD).getState()).isEqualTo(GotenbergBackends.CircuitState.OPEN);
+  }
+
+  @Test
+  void shouldCountSlowResponsesAsFailures() {
+    configuration.setAdditionalUrls(List.of());
+    for (int i = 0; i < GotenbergBackends.MAX_CONSECUTIVE_FAILURES; i++) {
+      try (GotenbergBackends.Lease lease = backends.acquire()) {
+        clock.millis += GotenbergBackends.SLOW_CALL_MILLIS + 1;
+        lease.succeeded();
+      }
+    }
+
+    assertThat(backend(HEART_OF_GOLD).getState()).isEqualTo(GotenbergBackends.CircuitState.OPEN);
+  }
+
+  @Test
+  void shouldFailFastIfAllCircuitsAreOpen() {
+    fail(HEART_OF_GOLD, GotenbergBackends.MAX_CONSECUTIVE_FAILURES);
+    fail(VOGON, GotenbergBackends.MAX_CONSECUTIVE_FAILURES);
+    clock.millis += 10_000;
+
+    GotenbergUnavailableException exception = assertThrows(GotenbergUnavailableException.class, () -> backends.acquire());
+
+    assertThat(exception.getRetryAfterSeconds()).isEqualTo(20);
+    assertThat(meterRegistry.counter("scm.gotenberg.backend.rejected").count()).isEqualTo(1);
+  }
+
+  @Test
+  void shouldCloseCircuitAfterSuccessfulTrialRequest() {
+    configuration.setAdditionalUrls(List.of());
+    fail(HEART_OF_GOLD, GotenbergBackends.MAX_CONSECUTIVE_FAILURES);
+    clock.millis += GotenbergBackends.OPEN_MILLIS;
+
+    GotenbergBackends.Lease trial = backends.acquire();
+    assertThat(backend(HEART_OF_GOLD).getState()).isEqualTo(GotenbergBackends.CircuitState.HALF_OPEN);
+    // only one trial request at a time
+    assertThrows(GotenbergUnavailableException.class, () -> backends.acquire());
+
+    trial.succeeded();
+    trial.close();
+
+    assertThat(backend(HEART_OF_GOLD).getState()).isEqualTo(GotenbergBackends.CircuitState.CLOSED);
+  }
+
+  @Test
+  void shouldReopenCircuitAfterFailedTrialRequest() {
+    configuration.setAdditionalUrls(List.of());
+    fail(HEART_OF_GOLD, GotenbergBackends.MAX_CONSECUTIVE_FAILURES);
+    clock.millis += GotenbergBackends.OPEN_MILLIS;
+
+    fail(HEART_OF_GOLD, 1);
+
+    assertThat(backend(HEART_OF_GOLD).getState()).isEqualTo(GotenbergBackends.CircuitState.OPEN);
+    assertThrows(GotenbergUnavailableException.class, () -> backends.acquire());
+  }
+
+  @Test
+  void shouldAllowNextTrialIfTrialWasAbandoned() {
+    configuration.setAdditionalUrls(List.of());
+    fail(HEART_OF_GOLD, GotenbergBackends.MAX_CONSECUTIVE_FAILURES);
+    clock.millis += GotenbergBackends.OPEN_MILLIS;
+
+    backends.acquire().close();
+
+    backends.acquire();
+    assertThat(backend(HEART_OF_GOLD).getState()).isEqualTo(GotenbergBackends.CircuitState.HALF_OPEN);
+  }
+
+  @Test
+  void shouldFailWithoutServer() {
+    configuration.setUrl("");
+    configuration.setAdditionalUrls(List.of());
+
+    assertThrows(GotenbergServerException.class, () -> backends.acquire());
+  }
+
+  @Test
+  void shouldKeepStateOfServersOnConfigurationChange() {
+    GotenbergBackends.Lease lease = backends.acquire();
+    String url = lease.url("");
+
+    configuration.setAdditionalUrls(Arrays.asList(VOGON, "http://magrathea:3000"));
+
+    assertThat(backends.getBackends()).hasSize(3);
+    assertThat(backend(url).getOutstanding()).isEqualTo(1);
+  }
+
+  @Test
+  void shouldRemoveMetricsOfRemovedServers() {
+    backends.getBackends();
+    assertThat(meterRegistry.find("scm.gotenberg.backend.outstanding").gauges()).hasSize(2);
+
+    configuration.setAdditionalUrls(List.of());
+
+    assertThat(backends.getBackends()).hasSize(1);
+    assertThat(meterRegistry.find("scm.gotenberg.backend.outstanding").gauges()).hasSize(1);
+    assertThat(meterRegistry.get("scm.gotenberg.backend.healthy").tag("backend", HEART_OF_GOLD).gauge().value())
+      .isEqualTo(1);
+  }
+
+  @Nested
+  class ProbeTests {
+
+    @Mock
+    private AdvancedHttpRequest request;
+
+    @Mock
+    private AdvancedHttpResponse healthy;
+
+    @Mock
+    private AdvancedHttpResponse unhealthy;
+
+    @BeforeEach
+    void enable() {
+      configuration.setEnabled(true);
+    }
+
+    @Test
+    void shouldOpenCircuitOfServerWithFailedHealthCheck() throws IOException {
+      when(client.get(HEART_OF_GOLD + "/health")).thenReturn(request);
+      when(client.get(VOGON + "/health")).thenThrow(new IllegalStateException("invalid url"));
+      when(request.request()).thenReturn(unhealthy);
+
+      backends.probe();
+
+      assertThat(backends.getBackends()).noneMatch(GotenbergBackends.Backend::isHealthy);
+    }
+
+    @Test
+    void shouldOpenCircuitOfUnreachableServer() throws IOException {
+      when(client.get(anyString())).thenReturn(request);
+      when(request.request()).thenReturn(healthy).thenThrow(new ConnectException("connection refused"));
+      when(healthy.isSuccessful()).thenReturn(true);
+
+      backends.probe();
+
+      assertThat(backend(HEART_OF_GOLD).isHealthy()).isTrue();
+      assertThat(backend(VOGON).isHealthy()).isFalse();
+    }
+
+    @Test
+    void shouldAllowTrialRequestAfterSuccessfulHealthCheck() throws IOException {
+      configuration.setAdditionalUrls(List.of());
+      fail(HEART_OF_GOLD, GotenbergBackends.MAX_CONSECUTIVE_FAILURES);
+      when(client.get(anyString())).thenReturn(request);
+      when(request.request()).thenReturn(healthy);
+      when(healthy.isSuccessful()).thenReturn(true);
+
+      backends.probe();
+
+      assertThat(backend(HEART_OF_GOLD).getState()).isEqualTo(GotenbergBackends.CircuitState.HALF_OPEN);
+      try (GotenbergBackends.Lease lease = backends.acquire()) {
+        lease.succeeded();
+      }
+      assertThat(backend(HEART_OF_GOLD).isHealthy()).isTrue();
+    }
+
+    @Test
+    void shouldOpenCircuitsOfServersWhoseHealthCheckTimesOut() throws Exception {
+      CountDownLatch hanging = new CountDownLatch(1);
+      ExecutorService executor = Executors.newCachedThreadPool();
+      GotenbergBackends slow = new GotenbergBackends(configurationStore, client, meterRegistry, clock, executor, 50);
+      when(client.get(anyString())).thenReturn(request);
+      when(request.request()).thenAnswer(invocation -> {
+        hanging.await();
+        return healthy;
+      });
+
+      try {
+        slow.probe();
+        // the checks of both servers run in parallel and time out
+        long deadline = System.currentTimeMillis() + 5000;
+        while (slow.getBackends().stream().anyMatch(GotenbergBackends.Backend::isHealthy) && System.currentTimeMillis() < deadline) {
+          Thread.sleep(10);
+        }
+        assertThat(slow.getBackends()).noneMatch(GotenbergBackends.Backend::isHealthy);
+
+        // the hanging checks are not started again
+        slow.probe();
+        verify(client, times(2)).get(anyString());
+      } finally {
+        hanging.countDown();
+        executor.shutdownNow();
+      }
+    }
+
+    @Test
+    void shouldNotProbeIfDisabled() {
+      configuration.setEnabled(false);
+
+      backends.probe();
+
+      verify(client, never()).get(anyString());
+    }
+  }
+
+  private void fail(String url, int times) {
+    for (int i = 0; i < times; i++) {
+      // acquire leases until the one for the given url is returned
+      GotenbergBackends.Lease lease = backends.acquire();
+      while (!lease.url("").equals(url)) {
+        lease.close();
+        lease = backends.acquire();
+      }
+      lease.failed();
+      lease.close();
+    }
+  }
+
+  private void succeed() {
+    try (GotenbergBackends.Lease lease = backends.acquire()) {
+      lease.succeeded();
+    }
+  }
+
+  private GotenbergBackends.Backend backend(String url) {
+    return backends.getBackends().stream()
+      .filter(backend -> backend.getUrl().equals(url))
+      .findFirst()
+      .orElseThrow();
+  }
+
+  private static class MutableClock extends Clock {
+
+    private long millis;
+
+    @Override
+    public ZoneId getZone() {
+      return ZoneOffset.UTC;
+    }
+
+    @Override
+    public Clock withZone(ZoneId zone) {
+      return this;
+    }
+
+    @Override
+    public long millis() {
+      return millis;
+    }
+
+    @Override
+    public Instant instant() {
+      return Instant.ofEpochMilli(millis);
+    }
+  }
+}
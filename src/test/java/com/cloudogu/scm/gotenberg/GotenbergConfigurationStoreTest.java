@@ -22,19 +22,29 @@ import org.github.sdorra.jse.SubjectAware;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import sonia.scm.event.ScmEventBus;
 import sonia.scm.store.InMemoryConfigurationStoreFactory;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.Mockito.verify;
 
-@ExtendWith(ShiroExtension.class)
+@ExtendWith({MockitoExtension.class, ShiroExtension.class})
 class GotenbergConfigurationStoreTest {
 
+  private final InMemoryConfigurationStoreFactory factory = new InMemoryConfigurationStoreFactory();
+
+  @Mock
+  private ScmEventBus eventBus;
+
   private GotenbergConfigurationStore store;
 
   @BeforeEach
   void setUpObjectUnderTest() {
-    store = new GotenbergConfigurationStore(new InMemoryConfigurationStoreFactory());
+    store = new GotenbergConfigurationStore(factory, eventBus);
   }
 
   @Test
@@ -63,4 +73,51 @@ class GotenbergConfigurationStoreTest {
     assertThat(store.get().isEnabled()).isTrue();
   }
 
+  @Test
+  @SubjectAware(value = "trillian", permissions = "configuration:write:gotenberg")
+  void shouldFireEventAfterConfigurationWasStored() {
+    GotenbergConfiguration configuration = new GotenbergConfiguration();
+    configuration.setCacheMaxFileMegabytes(1);
+
+    store.set(configuration);
+
+    ArgumentCaptor<GotenbergConfigurationChangedEvent> event = ArgumentCaptor.forClass(GotenbergConfigurationChangedEvent.class);
+    verify(eventBus).post(event.capture());
+    assertThat(event.getValue().getConfiguration().getCacheMaxFileMegabytes()).isEqualTo(1);
+  }
+
+  @Test
+  void shouldReadStoreOnlyOnce() {
+    GotenbergConfiguration configuration = store.get();
+
+    GotenbergConfiguration changed = new GotenbergConfiguration();
+    changed.setEnabled(true);
+    factory.withType(GotenbergConfiguration.class).withName("gotenberg").build().set(changed);
+
+    assertThat(store.get()).isEqualTo(configuration);
+    assertThat(store.isEnabled()).isFalse();
+  }
+
+  @Test
+  void shouldNotShareReturnedConfiguration() {
+    store.get().setEnabled(true);
+
+    assertThat(store.get().isEnabled()).isFalse();
+    assertThat(store.isEnabled()).isFalse();
+  }
+
+  @Test
+  @SubjectAware(value = "trillian", permissions = "configuration:write:gotenberg")
+  void shouldNotShareStoredConfiguration() {
+    GotenbergConfiguration configuration = new GotenbergConfiguration();
+    configuration.setEnabled(true);
+    store.set(configuration);
+
+    configuration.setEnabled(false);
+    configuration.getAdditionalUrls().add("http://vogon:3000");
+
+    assertThat(store.isEnabled()).isTrue();
+    assertThat(store.get().getAdditionalUrls()).isEmpty();
+  }
+
 }
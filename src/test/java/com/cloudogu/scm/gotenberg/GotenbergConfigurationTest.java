@@ -21,6 +21,10 @@ import org.junit.jupiter.api.Test;
 import jakarta.xml.bind.JAXB;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.List;
 
 import static org.assertj.core.api.Assertions.assertThat;
 
@@ -31,6 +35,8 @@ class GotenbergConfigurationTest {
     GotenbergConfiguration configuration = new GotenbergConfiguration();
     configuration.setUrl("https://gotenberg.dev");
     configuration.setEnabled(true);
+    configuration.setCacheMaxFileMegabytes(42);
+    configuration.setSharedCache(true);
 
     ByteArrayOutputStream out = new ByteArrayOutputStream();
     JAXB.marshal(configuration, out);
@@ -40,6 +46,44 @@ class GotenbergConfigurationTest {
 
     assertThat(configuration.getUrl()).isEqualTo("https://gotenberg.dev");
     assertThat(configuration.isEnabled()).isTrue();
+    assertThat(configuration.getCacheMaxFileMegabytes()).isEqualTo(42);
+    assertThat(configuration.isSharedCache()).isTrue();
   }
 
+  @Test
+  void shouldCopyAllFields() throws IllegalAccessException {
+    GotenbergConfiguration configuration = new GotenbergConfiguration();
+    // every field is changed, so that the test fails if a new field is not copied
+    for (Field field : GotenbergConfiguration.class.getDeclaredFields()) {
+      if (Modifier.isStatic(field.getModifiers())) {
+        continue;
+      }
+      field.setAccessible(true);
+      if (field.getType() == int.class) {
+        field.setInt(configuration, field.getInt(configuration) + 42);
+      } else if (field.getType() == boolean.class) {
+        field.setBoolean(configuration, !field.getBoolean(configuration));
+      } else if (field.getType() == String.class) {
+        field.set(configuration, "changed " + field.getName());
+      } else if (field.getType() == List.class) {
+        field.set(configuration, new ArrayList<>(List.of("changed " + field.getName())));
+      } else {
+        throw new IllegalStateException("unexpected type of field " + field.getName());
+      }
+    }
+
+    GotenbergConfiguration copy = configuration.copy();
+
+    assertThat(copy).isEqualTo(configuration);
+    assertThat(copy.getAdditionalUrls()).isNotSameAs(configuration.getAdditionalUrls());
+    assertThat(copy.getPreConversionPaths()).isNotSameAs(configuration.getPreConversionPaths());
+  }
+
+  @Test
+  void shouldUseDefaultConversionTimeoutInsteadOfZero() {
+    GotenbergConfiguration configuration = new GotenbergConfiguration();
+    configuration.setConversionTimeoutSeconds(0);
+
+    assertThat(configuration.conversionTimeoutMillis()).isEqualTo(300_000);
+  }
 }
@@ -19,6 +19,7 @@ package com.cloudogu.scm.gotenberg;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.net.HttpHeaders;
 import org.github.sdorra.jse.ShiroExtension;
 import org.github.sdorra.jse.SubjectAware;
 import org.jboss.resteasy.mock.MockHttpRequest;
@@ -40,8 +41,13 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.net.URISyntaxException;
 import java.nio.charset.StandardCharsets;
+import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.function.Consumer;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -147,6 +153,7 @@ class GotenbergResourceTest {
     GotenbergConfigurationDto dto = new GotenbergConfigurationDto();
     dto.setUrl("https://gotenberg.dev");
     dto.setEnabled(true);
+    dto.setCacheMaxMegabytes(1024);
 
     JsonMockHttpResponse response = invokePutConfig(dto);
 
@@ -157,6 +164,18 @@ class GotenbergResourceTest {
     GotenbergConfiguration configuration = captor.getValue();
     assertThat(configuration.getUrl()).isEqualTo("https://gotenberg.dev");
     assertThat(configuration.isEnabled()).isTrue();
+    assertThat(configuration.getCacheMaxMegabytes()).isEqualTo(1024);
+  }
+
+  @Test
+  void shouldReturn400ForNegativeCacheLimit() throws URISyntaxException, JsonProcessingException {
+    GotenbergConfigurationDto dto = new GotenbergConfigurationDto();
+    dto.setUrl("https://gotenberg.dev");
+    dto.setCacheMaxEntriesPerRepository(-1);
+
+    JsonMockHttpResponse response = invokePutConfig(dto);
+
+    assertThat(response.getStatus()).isEqualTo(HttpServletResponse.SC_BAD_REQUEST);
   }
 
   @Test
@@ -183,16 +202,286 @@ class GotenbergResourceTest {
     RepositoryPath path = new RepositoryPath(
       "hitchhiker", "h2g2", "42", "praesi.pptx"
     );
-    when(pdfService.getOrConvertPdf(path)).thenReturn(stream("Hello from pdf"));
+    when(pdfService.getOrConvertPdf(path)).thenReturn(pdf("Hello from pdf"));
+
+    MockHttpRequest request = MockHttpRequest.get("/v2/gotenberg/pdf/hitchhiker/h2g2/42/praesi.pptx");
+    MockHttpResponse response = new MockHttpResponse();
+
+    dispatcher.invoke(request, response);
+
+    assertThat(response.getContentAsString()).isEqualTo("Hello from pdf");
+    assertThat(response.getOutputHeaders().getFirst(HttpHeaders.CONTENT_LENGTH)).hasToString("14");
+  }
+
+  @Test
+  void shouldConvertToPdfWithoutKnownLength() throws IOException, URISyntaxException {
+    RepositoryPath path = new RepositoryPath(
+      "hitchhiker", "h2g2", "42", "praesi.pptx"
+    );
+    when(pdfService.getOrConvertPdf(path)).thenReturn(new Pdf("abc", stream("Hello from pdf"), Pdf.UNKNOWN_LENGTH));
+
+    MockHttpRequest request = MockHttpRequest.get("/v2/gotenberg/pdf/hitchhiker/h2g2/42/praesi.pptx");
+    MockHttpResponse response = new MockHttpResponse();
+
+    dispatcher.invoke(request, response);
+
+    assertThat(response.getContentAsString()).isEqualTo("Hello from pdf");
+    assertThat(response.getOutputHeaders().getFirst(HttpHeaders.CONTENT_LENGTH)).isNull();
+  }
+
+  @Test
+  void shouldAcceptRanges() throws IOException, URISyntaxException {
+    MockHttpResponse response = invokeConvertToPdf(request -> {});
+
+    assertThat(response.getStatus()).isEqualTo(200);
+    assertThat(response.getOutputHeaders().getFirst(HttpHeaders.ACCEPT_RANGES)).hasToString("bytes");
+    assertThat(response.getOutputHeaders().getFirst(HttpHeaders.ETAG)).hasToString("\"abc\"");
+  }
+
+  @Test
+  void shouldReturnPartialContent() throws IOException, URISyntaxException {
+    MockHttpResponse response = invokeConvertToPdf(request -> request.header(HttpHeaders.RANGE, "bytes=6-9"));
+
+    assertThat(response.getStatus()).isEqualTo(206);
+    assertThat(response.getContentAsString()).isEqualTo("from");
+    assertThat(response.getOutputHeaders().getFirst(HttpHeaders.CONTENT_RANGE)).hasToString("bytes 6-9/14");
+    assertThat(response.getOutputHeaders().getFirst(HttpHeaders.CONTENT_LENGTH)).hasToString("4");
+  }
+
+  @Test
+  void shouldReturnPartialContentIfRangeMatches() throws IOException, URISyntaxException {
+    MockHttpResponse response = invokeConvertToPdf(request -> request
+      .header(HttpHeaders.RANGE, "bytes=-3")
+      .header(HttpHeaders.IF_RANGE, "\"abc\"")
+    );
+
+    assertThat(response.getStatus()).isEqualTo(206);
+    assertThat(response.getContentAsString()).isEqualTo("pdf");
+  }
+
+  @Test
+  void shouldReturnCompleteContentIfRangeDoesNotMatch() throws IOException, URISyntaxException {
+    MockHttpResponse response = invokeConvertToPdf(request -> request
+      .header(HttpHeaders.RANGE, "bytes=6-9")
+      .header(HttpHeaders.IF_RANGE, "\"xyz\"")
+    );
+
+    assertThat(response.getStatus()).isEqualTo(200);
+    assertThat(response.getContentAsString()).isEqualTo("Hello from pdf");
+  }
+
+  @Test
+  void shouldReturn416ForUnsatisfiableRange() throws IOException, URISyntaxException {
+    MockHttpResponse response = invokeConvertToPdf(request -> request.header(HttpHeaders.RANGE, "bytes=42-"));
+
+    assertThat(response.getStatus()).isEqualTo(416);
+    assertThat(response.getOutputHeaders().getFirst(HttpHeaders.CONTENT_RANGE)).hasToString("bytes */14");
+  }
+
+  @Test
+  void shouldReturnNotModifiedWithoutConversion() throws IOException, URISyntaxException {
+    RepositoryPath path = new RepositoryPath("hitchhiker", "h2g2", "42", "praesi.pptx");
+    when(pdfService.getCacheKey(path)).thenReturn("abc");
+
+    MockHttpRequest request = MockHttpRequest.get("/v2/gotenberg/pdf/hitchhiker/h2g2/42/praesi.pptx");
+    request.header(HttpHeaders.IF_NONE_MATCH, "\"xyz\", W/\"abc\"");
+    MockHttpResponse response = new MockHttpResponse();
+
+    dispatcher.invoke(request, response);
+
+    assertThat(response.getStatus()).isEqualTo(304);
+    assertThat(response.getOutputHeaders().getFirst(HttpHeaders.ETAG)).hasToString("\"abc\"");
+    verify(pdfService, never()).getOrConvertPdf(path);
+  }
+
+  @Test
+  void shouldReturnDocumentIfEtagDoesNotMatch() throws IOException, URISyntaxException {
+    when(pdfService.getCacheKey(any())).thenReturn("abc");
+
+    MockHttpResponse response = invokeConvertToPdf(request -> request.header(HttpHeaders.IF_NONE_MATCH, "\"xyz\""));
+
+    assertThat(response.getStatus()).isEqualTo(200);
+    assertThat(response.getContentAsString()).isEqualTo("Hello from pdf");
+  }
+
+  @Test
+  void shouldRevalidateDocumentsOfBranches() throws IOException, URISyntaxException {
+    MockHttpResponse response = invokeConvertToPdf(request -> {});
+
+    assertThat(response.getOutputHeaders().getFirst(HttpHeaders.CACHE_CONTROL)).hasToString("private, no-cache");
+  }
+
+  @Test
+  void shouldCacheDocumentsOfChangesetsForever() throws IOException, URISyntaxException {
+    String revision = "c0ffee00c0ffee00c0ffee00c0ffee00c0ffee00";
+    RepositoryPath path = new RepositoryPath("hitchhiker", "h2g2", revision, "praesi.pptx");
+    when(pdfService.getOrConvertPdf(path)).thenReturn(pdf("Hello from pdf"));
+
+    MockHttpRequest request = MockHttpRequest.get("/v2/gotenberg/pdf/hitchhiker/h2g2/" + revision + "/praesi.pptx");
+    MockHttpResponse response = new MockHttpResponse();
+
+    dispatcher.invoke(request, response);
+
+    assertThat(response.getOutputHeaders().getFirst(HttpHeaders.CACHE_CONTROL))
+      .hasToString("private, max-age=31536000, immutable");
+  }
+
+  @Test
+  void shouldAcceptAsyncConversion() throws IOException, URISyntaxException {
+    RepositoryPath path = new RepositoryPath("hitchhiker", "h2g2", "42", "praesi.pptx");
+    when(pdfService.convertInBackground(path)).thenReturn(ConversionStatus.CONVERTING);
 
     MockHttpRequest request = MockHttpRequest.get("/v2/gotenberg/pdf/hitchhiker/h2g2/42/praesi.pptx");
+    request.header("Prefer", "respond-async");
     MockHttpResponse response = new MockHttpResponse();
 
     dispatcher.invoke(request, response);
 
+    assertThat(response.getStatus()).isEqualTo(202);
+    assertThat(response.getOutputHeaders().getFirst(HttpHeaders.LOCATION).toString())
+      .endsWith("/v2/gotenberg/status/hitchhiker/h2g2/42/praesi.pptx");
+    verify(pdfService, never()).getOrConvertPdf(path);
+  }
+
+  @Test
+  void shouldReturnConvertedDocumentIfAsyncConversionIsReady() throws IOException, URISyntaxException {
+    when(pdfService.convertInBackground(any())).thenReturn(ConversionStatus.READY);
+
+    MockHttpResponse response = invokeConvertToPdf(request -> request.header("Prefer", "respond-async"));
+
+    assertThat(response.getStatus()).isEqualTo(200);
     assertThat(response.getContentAsString()).isEqualTo("Hello from pdf");
   }
 
+  @Test
+  void shouldReturnConversionStatus() throws IOException, URISyntaxException {
+    RepositoryPath path = new RepositoryPath("hitchhiker", "h2g2", "42", "praesi.pptx");
+    when(pdfService.getConversionStatus(path)).thenReturn(ConversionStatus.CONVERTING);
+
+    MockHttpRequest request = MockHttpRequest.get("/v2/gotenberg/status/hitchhiker/h2g2/42/praesi.pptx");
+    JsonMockHttpResponse response = new JsonMockHttpResponse();
+
+    dispatcher.invoke(request, response);
+
+    assertThat(response.getStatus()).isEqualTo(200);
+    JsonNode node = response.getContentAsJson();
+    assertThat(node.get("status").asText()).isEqualTo("CONVERTING");
+    assertThat(node.get("_links").has("pdf")).isFalse();
+  }
+
+  @Test
+  void shouldLinkPdfIfConversionIsReady() throws IOException, URISyntaxException {
+    RepositoryPath path = new RepositoryPath("hitchhiker", "h2g2", "42", "praesi.pptx");
+    when(pdfService.getConversionStatus(path)).thenReturn(ConversionStatus.READY);
+
+    MockHttpRequest request = MockHttpRequest.get("/v2/gotenberg/status/hitchhiker/h2g2/42/praesi.pptx");
+    JsonMockHttpResponse response = new JsonMockHttpResponse();
+
+    dispatcher.invoke(request, response);
+
+    JsonNode node = response.getContentAsJson();
+    assertThat(node.get("status").asText()).isEqualTo("READY");
+    assertThat(node.get("_links").get("pdf").get("href").asText())
+      .endsWith("/v2/gotenberg/pdf/hitchhiker/h2g2/42/praesi.pptx");
+  }
+
+  @Test
+  void shouldNotStartConversionWhenStatusIsRequested() throws IOException, URISyntaxException {
+    RepositoryPath path = new RepositoryPath("hitchhiker", "h2g2", "42", "praesi.pptx");
+    when(pdfService.getConversionStatus(path)).thenReturn(ConversionStatus.NOT_CONVERTED);
+
+    MockHttpRequest request = MockHttpRequest.get("/v2/gotenberg/status/hitchhiker/h2g2/42/praesi.pptx");
+    JsonMockHttpResponse response = new JsonMockHttpResponse();
+
+    dispatcher.invoke(request, response);
+
+    assertThat(response.getContentAsJson().get("status").asText()).isEqualTo("NOT_CONVERTED");
+    verify(pdfService, never()).convertInBackground(any());
+  }
+
+  @Test
+  void shouldStartConversion() throws IOException, URISyntaxException {
+    RepositoryPath path = new RepositoryPath("hitchhiker", "h2g2", "42", "praesi.pptx");
+    when(pdfService.convertInBackground(path)).thenReturn(ConversionStatus.CONVERTING);
+
+    MockHttpRequest request = MockHttpRequest.post("/v2/gotenberg/status/hitchhiker/h2g2/42/praesi.pptx");
+    JsonMockHttpResponse response = new JsonMockHttpResponse();
+
+    dispatcher.invoke(request, response);
+
+    assertThat(response.getStatus()).isEqualTo(200);
+    assertThat(response.getContentAsJson().get("status").asText()).isEqualTo("CONVERTING");
+  }
+
+  @Test
+  void shouldReturnHeadersOfCachedDocumentWithoutConversion() throws IOException, URISyntaxException {
+    RepositoryPath path = new RepositoryPath("hitchhiker", "h2g2", "42", "praesi.pptx");
+    when(pdfService.getResolvedCacheKey(path)).thenReturn(Optional.of("abc"));
+    when(pdfService.getCachedSize(path)).thenReturn(OptionalLong.of(14));
+
+    MockHttpRequest request = MockHttpRequest.create("HEAD", "/v2/gotenberg/pdf/hitchhiker/h2g2/42/praesi.pptx");
+    MockHttpResponse response = new MockHttpResponse();
+
+    dispatcher.invoke(request, response);
+
+    assertThat(response.getStatus()).isEqualTo(200);
+    assertThat(response.getOutputHeaders().getFirst("Cache-Status")).hasToString("scm-gotenberg; hit");
+    assertThat(response.getOutputHeaders().getFirst(HttpHeaders.CONTENT_LENGTH)).hasToString("14");
+    assertThat(response.getOutputHeaders().getFirst(HttpHeaders.ETAG)).hasToString("\"abc\"");
+    verify(pdfService, never()).getOrConvertPdf(any());
+  }
+
+  @Test
+  void shouldReturnCacheMissWithoutConversion() throws IOException, URISyntaxException {
+    RepositoryPath path = new RepositoryPath("hitchhiker", "h2g2", "42", "praesi.pptx");
+    when(pdfService.getResolvedCacheKey(path)).thenReturn(Optional.of("abc"));
+    when(pdfService.getCachedSize(path)).thenReturn(OptionalLong.empty());
+
+    MockHttpRequest request = MockHttpRequest.create("HEAD", "/v2/gotenberg/pdf/hitchhiker/h2g2/42/praesi.pptx");
+    MockHttpResponse response = new MockHttpResponse();
+
+    dispatcher.invoke(request, response);
+
+    assertThat(response.getStatus()).isEqualTo(200);
+    assertThat(response.getOutputHeaders().getFirst("Cache-Status")).hasToString("scm-gotenberg; fwd=miss");
+    assertThat(response.getOutputHeaders().getFirst(HttpHeaders.CONTENT_LENGTH)).isNull();
+    verify(pdfService, never()).getOrConvertPdf(any());
+  }
+
+  @Test
+  void shouldReturnCacheMissWithoutReadingDocumentWhoseKeyIsUnresolved() throws IOException, URISyntaxException {
+    RepositoryPath path = new RepositoryPath("hitchhiker", "h2g2", "42", "praesi.pptx");
+    when(pdfService.getResolvedCacheKey(path)).thenReturn(Optional.empty());
+
+    MockHttpRequest request = MockHttpRequest.create("HEAD", "/v2/gotenberg/pdf/hitchhiker/h2g2/42/praesi.pptx");
+    MockHttpResponse response = new MockHttpResponse();
+
+    dispatcher.invoke(request, response);
+
+    assertThat(response.getStatus()).isEqualTo(200);
+    assertThat(response.getOutputHeaders().getFirst("Cache-Status")).hasToString("scm-gotenberg; fwd=miss");
+    assertThat(response.getOutputHeaders().getFirst(HttpHeaders.ETAG)).isNull();
+    verify(pdfService, never()).getCacheKey(any());
+  }
+
+  private MockHttpResponse invokeConvertToPdf(Consumer<MockHttpRequest> customizer) throws IOException, URISyntaxException {
+    RepositoryPath path = new RepositoryPath(
+      "hitchhiker", "h2g2", "42", "praesi.pptx"
+    );
+    when(pdfService.getOrConvertPdf(path)).thenReturn(pdf("Hello from pdf"));
+
+    MockHttpRequest request = MockHttpRequest.get("/v2/gotenberg/pdf/hitchhiker/h2g2/42/praesi.pptx");
+    customizer.accept(request);
+    MockHttpResponse response = new MockHttpResponse();
+
+    dispatcher.invoke(request, response);
+    return response;
+  }
+
+  private Pdf pdf(String content) {
+    return Pdf.of("abc", content.getBytes(StandardCharsets.UTF_8));
+  }
+
   private InputStream stream(String content) {
     return new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8));
   }
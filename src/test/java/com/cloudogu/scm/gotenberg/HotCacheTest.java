@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package com.cloudogu.scm.gotenberg;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+class HotCacheTest {
+
+  private static final int MEGABYTE = 1024 * 1024;
+
+  @Mock
+  private GotenbergConfigurationStore configurationStore;
+
+  private final GotenbergConfiguration configuration = new GotenbergConfiguration();
+  private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+  private HotCache hotCache;
+
+  @BeforeEach
+  void setUpObjectUnderTest() {
+    configuration.setCacheHotMegabytes(8);
+    when(configurationStore.getCacheHotMegabytes()).then(invocation -> configuration.getCacheHotMegabytes());
+    hotCache = new HotCache(configurationStore, meterRegistry);
+  }
+
+  @Test
+  void shouldReturnStoredContent() {
+    hotCache.put("hog/a", new byte[]{42});
+
+    assertThat(hotCache.get("hog/a")).hasValueSatisfying(content -> assertThat(content).containsExactly(42));
+    assertThat(meterRegistry.counter("scm.gotenberg.cache.hot.hits").count()).isEqualTo(1);
+  }
+
+  @Test
+  void shouldCountMisses() {
+    assertThat(hotCache.get("hog/a")).isEmpty();
+    assertThat(meterRegistry.counter("scm.gotenberg.cache.hot.misses").count()).isEqualTo(1);
+  }
+
+  @Test
+  void shouldOnlyAcceptDocumentsUpToAnEighthOfTheBudget() {
+    assertThat(hotCache.accepts(MEGABYTE)).isTrue();
+    assertThat(hotCache.accepts(MEGABYTE + 1L)).isFalse();
+  }
+
+  @Test
+  void shouldNotAcceptDocumentsIfDisabled() {
+    configuration.setCacheHotMegabytes(0);
+
+    assertThat(hotCache.accepts(1)).isFalse();
+  }
+
+  @Test
+  void shouldEvictIfBudgetIsExceeded() {
+    for (int i = 0; i < 9; i++) {
+      hotCache.put("hog/" + i, new byte[MEGABYTE]);
+    }
+
+    assertThat(meterRegistry.get("scm.gotenberg.cache.hot.bytes").gauge().value()).isLessThanOrEqualTo(8.0 * MEGABYTE);
+  }
+
+  @Test
+  void shouldDropContentIfBudgetChanges() {
+    hotCache.put("hog/a", new byte[]{42});
+
+    configuration.setCacheHotMegabytes(16);
+    hotCache.get("hog/b");
+
+    assertThat(hotCache.get("hog/a")).isEmpty();
+  }
+
+  @Test
+  void shouldInvalidate() {
+    hotCache.put("hog/a", new byte[]{42});
+    hotCache.put("hog/b", new byte[]{42});
+    hotCache.put("42/a", new byte[]{42});
+
+    hotCache.invalidate("hog/a");
+    hotCache.invalidatePrefix("42/");
+
+    assertThat(hotCache.get("hog/a")).isEmpty();
+    assertThat(hotCache.get("hog/b")).isPresent();
+    assertThat(hotCache.get("42/a")).isEmpty();
+  }
+}
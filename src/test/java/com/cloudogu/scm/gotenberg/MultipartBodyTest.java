@@ -0,0 +1,206 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package com.cloudogu.scm.gotenberg;
+
+import org.junit.jupiter.api.Test;
+import sonia.scm.net.ahc.BaseHttpRequest;
+import sonia.scm.net.ahc.ByteSourceContent;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.OptionalLong;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+class MultipartBodyTest {
+
+  private static final OptionalLong LENGTH = OptionalLong.of(11);
+
+  private final AtomicInteger opened = new AtomicInteger();
+
+  private InputStream content() {
+    opened.incrementAndGet();
+    return new ByteArrayInputStream("Don't Panic".getBytes(StandardCharsets.UTF_8));
+  }
+
+  @Test
+  void shouldFrameContent() throws IOException {
+    MultipartBody body = new MultipartBody("files", "h2g2.docx", content(), LENGTH, this::content);
+
+    String boundary = body.getContentType().substring("multipart/form-data; boundary=".length());
+    assertThat(body.asCharSource(StandardCharsets.UTF_8).read()).isEqualTo(
+      "--" + boundary + "\r\n"
+        + "Content-Disposition: form-data; name=\"files\"; filename=\"h2g2.docx\"\r\n"
+        + "Content-Type: application/octet-stream\r\n"
+        + "\r\n"
+        + "Don't Panic\r\n"
+        + "--" + boundary + "--\r\n"
+    );
+  }
+
+  @Test
+  void shouldEscapeFilename() throws IOException {
+    MultipartBody body = new MultipartBody("files", "a\"b\r\nc.docx", content(), LENGTH, this::content);
+
+    assertThat(body.asCharSource(StandardCharsets.UTF_8).read()).contains("filename=\"a%22b%0D%0Ac.docx\"");
+  }
+
+  @Test
+  void shouldUseOpenedContentFirst() throws IOException {
+    MultipartBody body = new MultipartBody("files", "h2g2.docx", content(), LENGTH, this::content);
+
+    body.read();
+    assertThat(opened).hasValue(1);
+
+    body.read();
+    assertThat(opened).hasValue(2);
+  }
+
+  @Test
+  void shouldKnowSizeWithoutReadingContent() throws IOException {
+    MultipartBody body = new MultipartBody("files", "h2g2.docx", content(), LENGTH, this::content);
+
+    assertThat(body.sizeIfKnown().isPresent()).isTrue();
+    assertThat(body.size()).isEqualTo(body.read().length);
+    assertThat(opened).hasValue(1);
+  }
+
+  @Test
+  void shouldCountSizeOfContentWithUnknownLength() throws IOException {
+    MultipartBody body = new MultipartBody("files", "h2g2.docx", content(), OptionalLong.empty(), this::content);
+
+    assertThat(body.sizeIfKnown().isPresent()).isFalse();
+    assertThat(body.size()).isEqualTo(body.read().length);
+    assertThat(opened).hasValue(2);
+  }
+
+  @Test
+  void shouldSendContentLengthAndReadContentOnlyOnce() throws IOException {
+    MultipartBody body = new MultipartBody("files", "h2g2.docx", content(), LENGTH, this::content);
+    ByteSourceContent upload = new ByteSourceContent(body);
+    BaseHttpRequest<?> request = mock(BaseHttpRequest.class);
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+    upload.prepare(request);
+    upload.process(output);
+
+    verify(request).header("Content-Length", (long) output.size());
+    assertThat(output.toString(StandardCharsets.UTF_8)).contains("Don't Panic");
+    assertThat(opened).hasValue(1);
+  }
+
+  @Test
+  void shouldStreamContentWhileItIsRead() throws IOException {
+    int length = 64 * 1024;
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    List<Integer> written = new ArrayList<>();
+    InputStream content = new ByteArrayInputStream(new byte[length]) {
+      @Override
+      public synchronized int read(byte[] b, int off, int len) {
+        // remembers how much of the body was already sent, when the next part of the content is read
+        written.add(output.size());
+        return super.read(b, off, len);
+      }
+    };
+    MultipartBody body = new MultipartBody("files", "h2g2.docx", content, OptionalLong.of(length), this::content);
+
+    new ByteSourceContent(body).process(output);
+
+    assertThat(written.get(0)).isPositive();
+    assertThat(written.get(written.size() - 1)).isGreaterThan(length / 2);
+    assertThat(opened).hasValue(0);
+  }
+
+  @Test
+  void shouldFailIfContentIsShorterThanItsLength() {
+    MultipartBody body = new MultipartBody("files", "h2g2.docx", content(), OptionalLong.of(12), this::content);
+
+    assertThrows(IOException.class, body::read);
+  }
+
+  @Test
+  void shouldFailIfContentIsLongerThanItsLength() {
+    MultipartBody body = new MultipartBody("files", "h2g2.docx", content(), OptionalLong.of(10), this::content);
+
+    assertThrows(IOException.class, body::read);
+  }
+
+  @Test
+  void shouldNotReadContentBeforeHeaderWasSent() throws IOException {
+    AtomicInteger read = new AtomicInteger();
+    InputStream content = new InputStream() {
+      @Override
+      public int read() {
+        read.incrementAndGet();
+        return 42;
+      }
+    };
+    MultipartBody body = new MultipartBody("files", "h2g2.docx", content, OptionalLong.empty(), this::content);
+
+    try (InputStream stream = body.openStream()) {
+      byte[] header = new byte[body.getContentType().length()];
+      assertThat(stream.read(header)).isPositive();
+    }
+
+    assertThat(read).hasValue(0);
+  }
+
+  @Test
+  void shouldFailReadsAfterAbort() throws IOException {
+    AtomicBoolean closed = new AtomicBoolean();
+    InputStream content = new ByteArrayInputStream(new byte[1024]) {
+      @Override
+      public void close() {
+        closed.set(true);
+      }
+    };
+    MultipartBody body = new MultipartBody("files", "h2g2.docx", content, OptionalLong.empty(), this::content);
+
+    try (InputStream stream = body.openStream()) {
+      assertThat(stream.read()).isPositive();
+      body.abort();
+      assertThrows(IOException.class, stream::read);
+    }
+    assertThat(closed).isTrue();
+    assertThrows(IOException.class, body::openStream);
+  }
+
+  @Test
+  void shouldCloseUnreadContent() throws IOException {
+    AtomicBoolean closed = new AtomicBoolean();
+    InputStream content = new ByteArrayInputStream(new byte[0]) {
+      @Override
+      public void close() {
+        closed.set(true);
+      }
+    };
+
+    new MultipartBody("files", "h2g2.docx", content, OptionalLong.empty(), this::content).close();
+
+    assertThat(closed).isTrue();
+  }
+}
@@ -16,6 +16,10 @@
 
 package com.cloudogu.scm.gotenberg;
 
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.shiro.subject.Subject;
+import org.apache.shiro.util.ThreadContext;
+import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Nested;
 import org.junit.jupiter.api.Test;
@@ -28,20 +32,42 @@ import sonia.scm.repository.Repository;
 import sonia.scm.repository.RepositoryManager;
 import sonia.scm.repository.RepositoryTestData;
 import sonia.scm.store.InMemoryBlobStoreFactory;
+import sonia.scm.store.InMemoryDataStoreFactory;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.lenient;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.when;
 
 @ExtendWith(MockitoExtension.class)
 class PdfServiceTest {
 
+  private static final String CHANGESET_ID = "c0ffee00c0ffee00c0ffee00c0ffee00c0ffee00";
+
   @Mock
   private RepositoryManager repositoryManager;
 
@@ -51,15 +77,67 @@ class PdfServiceTest {
   @Mock
   private Converter converter;
 
+  @Mock
+  private GotenbergConfigurationStore configurationStore;
+
+  @Mock
+  private RevisionResolver revisionResolver;
+
+  private final GotenbergConfiguration configuration = new GotenbergConfiguration();
+
+  private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+  private final List<Runnable> backgroundTasks = new ArrayList<>();
+
+  private final List<Runnable> speculativeTasks = new ArrayList<>();
+
+  private Executor pumpExecutor = Runnable::run;
+
+  @Mock
+  private Subject subject;
+
   private PdfService pdfService;
 
   @BeforeEach
-  void setUpObjectUnderTest() {
-    pdfService = new PdfService(
+  void setUpObjectUnderTest() throws IOException {
+    lenient().when(configurationStore.get()).thenReturn(configuration);
+    lenient().when(configurationStore.isSharedCache()).then(invocation -> configuration.isSharedCache());
+    lenient().when(configurationStore.getCacheHotMegabytes()).then(invocation -> configuration.getCacheHotMegabytes());
+    lenient().when(revisionResolver.resolve(any(), any())).then(ic -> ic.getArgument(1));
+    pdfService = createPdfService();
+    lenient().when(subject.associateWith(any(Runnable.class))).then(ic -> ic.getArgument(0));
+    ThreadContext.bind(subject);
+  }
+
+  @AfterEach
+  void tearDownSubject() {
+    ThreadContext.unbindSubject();
+  }
+
+  private PdfService createPdfService() {
+    return createPdfService(backgroundTasks::add, speculativeTasks::add);
+  }
+
+  private PdfService createPdfService(Executor backgroundExecutor, Executor speculativeExecutor) {
+    return new PdfService(
       repositoryManager,
-      new CacheFactory(new InMemoryBlobStoreFactory()),
+      new CacheFactory(
+        new InMemoryBlobStoreFactory(),
+        new InMemoryDataStoreFactory(),
+        configurationStore,
+        new HotCache(configurationStore, meterRegistry),
+        Runnable::run
+      ),
       fileResolver,
-      converter
+      converter,
+      revisionResolver,
+      new CacheKeyResolver(fileResolver, Collections.emptySet()),
+      configurationStore,
+      new ConversionLimiter(configurationStore, meterRegistry),
+      meterRegistry,
+      backgroundExecutor,
+      speculativeExecutor,
+      task -> pumpExecutor.execute(task)
     );
   }
 
@@ -68,7 +146,7 @@ class PdfServiceTest {
 
     @Test
     void shouldReturnTrue() {
-      when(converter.isConvertable("docx")).thenReturn(true);
+      when(converter.isConvertablePath("a/b/c/my.docx")).thenReturn(true);
       assertThat(pdfService.isSupported(fileObject("a/b/c/my.docx"))).isTrue();
     }
 
@@ -79,7 +157,7 @@ class PdfServiceTest {
 
     @Test
     void shouldReturnFalseForUnsupportedExtension() {
-      when(converter.isConvertable("mkv")).thenReturn(false);
+      when(converter.isConvertablePath("video.mkv")).thenReturn(false);
       assertThat(pdfService.isSupported(fileObject("video.mkv"))).isFalse();
     }
 
@@ -122,9 +200,9 @@ class PdfServiceTest {
       RepositoryPath path = path("praesi.pptx");
       mockConversion(path);
 
-      InputStream content = pdfService.getOrConvertPdf(path);
+      Pdf content = pdfService.getOrConvertPdf(path);
 
-      assertThat(content).hasContent("Hello from pdf");
+      assertThat(content.getContent()).hasContent("Hello from pdf");
     }
 
     private void mockConversion(RepositoryPath path) throws IOException {
@@ -134,8 +212,9 @@ class PdfServiceTest {
 
       when(converter.isConvertable(ext)).thenReturn(true);
       when(repositoryManager.get(path.getNamespaceAndName())).thenReturn(repository);
+      when(fileResolver.hash(repository, path)).thenReturn("hash of " + path.getPath());
       when(fileResolver.getContent(repository, path)).thenReturn(pptx);
-      when(converter.convert(path, pptx)).thenReturn(pdf);
+      when(converter.convert(eq(path), content(pptx), any())).thenReturn(pdf);
     }
 
     @Test
@@ -143,13 +222,505 @@ class PdfServiceTest {
       RepositoryPath path = path("praesi.pptx");
       mockConversion(path);
 
-      pdfService.getOrConvertPdf(path);
+      download(path);
       // read from cache, no conversion of resolving required
       verifyNoMoreInteractions(converter);
       verifyNoMoreInteractions(fileResolver);
 
-      InputStream content = pdfService.getOrConvertPdf(path);
-      assertThat(content).hasContent("Hello from pdf");
+      Pdf content = pdfService.getOrConvertPdf(path);
+      assertThat(content.getContent()).hasContent("Hello from pdf");
+    }
+
+    @Test
+    void shouldCacheDocumentEvenIfClientDoesNotReadIt() throws IOException {
+      RepositoryPath path = path("praesi.pptx");
+      mockConversion(path);
+
+      try (Pdf pdf = pdfService.getOrConvertPdf(path)) {
+        assertThat(pdf.getContent().read()).isEqualTo('H');
+      }
+
+      try (Pdf pdf = pdfService.getOrConvertPdf(path)) {
+        assertThat(pdf.getContent()).hasContent("Hello from pdf");
+      }
+      verify(converter, times(1)).convert(any(), any(), any());
+    }
+
+    @Test
+    void shouldNotCacheDocumentWhichWasNotSentCompletely() throws IOException {
+      RepositoryPath path = path("praesi.pptx");
+      when(converter.isConvertable("pptx")).thenReturn(true);
+      when(repositoryManager.get(path.getNamespaceAndName())).thenReturn(repository);
+      when(fileResolver.hash(repository, path)).thenReturn("hash of praesi.pptx");
+      InputStream broken = new InputStream() {
+        @Override
+        public int read() throws IOException {
+          throw new IOException("connection reset");
+        }
+      };
+      doReturn(broken).when(converter).convert(eq(path), any(), any());
+
+      try (Pdf pdf = pdfService.getOrConvertPdf(path)) {
+        assertThrows(IOException.class, () -> pdf.getContent().read());
+      }
+
+      doReturn(stream("Hello again from pdf")).when(converter).convert(eq(path), any(), any());
+
+      try (Pdf pdf = pdfService.getOrConvertPdf(path)) {
+        assertThat(pdf.getContent()).hasContent("Hello again from pdf");
+      }
+    }
+
+    @Test
+    void shouldFinishConversionWhenGotenbergHasSentDocument() throws IOException {
+      List<Runnable> pumps = new ArrayList<>();
+      pumpExecutor = pumps::add;
+      RepositoryPath path = path("praesi.pptx");
+      mockConversion(path);
+
+      try (Pdf pdf = pdfService.getOrConvertPdf(path)) {
+        assertThat(pdfService.convertInBackground(path)).isEqualTo(ConversionStatus.CONVERTING);
+        assertThat(backgroundTasks).isEmpty();
+
+        pumps.forEach(Runnable::run);
+        // the client has not read anything yet
+        assertThat(pdfService.convertInBackground(path)).isEqualTo(ConversionStatus.READY);
+
+        assertThat(pdf.getContent()).hasContent("Hello from pdf");
+      }
+    }
+
+    @Test
+    void shouldConvertResolvedRevision() throws IOException {
+      RepositoryPath resolved = path("praesi.pptx");
+      mockConversion(resolved);
+
+      RepositoryPath requested = new RepositoryPath(repository.getNamespace(), repository.getName(), "main", "praesi.pptx");
+      when(repositoryManager.get(requested.getNamespaceAndName())).thenReturn(repository);
+      when(revisionResolver.resolve(repository, requested)).thenReturn(resolved);
+
+      Pdf content = pdfService.getOrConvertPdf(requested);
+
+      assertThat(content.getContent()).hasContent("Hello from pdf");
+    }
+
+    @Test
+    void shouldNotConvertSameContentAgain() throws IOException {
+      RepositoryPath path = path("praesi.pptx");
+      mockConversion(path);
+
+      RepositoryPath other = new RepositoryPath(repository.getNamespace(), repository.getName(), "21", "copy.pptx");
+      when(fileResolver.hash(repository, other)).thenReturn("hash of " + path.getPath());
+
+      download(path);
+      Pdf content = pdfService.getOrConvertPdf(other);
+
+      assertThat(content.getContent()).hasContent("Hello from pdf");
+      verify(converter, times(1)).convert(any(), any(), any());
+    }
+
+    @Test
+    void shouldNotConvertSameContentOfOtherRepositoryWithSharedCache() throws IOException {
+      configuration.setSharedCache(true);
+      RepositoryPath path = path("praesi.pptx");
+      mockConversion(path);
+
+      Repository fork = RepositoryTestData.create42Puzzle();
+      RepositoryPath other = new RepositoryPath(fork.getNamespace(), fork.getName(), "42", "praesi.pptx");
+      when(repositoryManager.get(other.getNamespaceAndName())).thenReturn(fork);
+      when(fileResolver.hash(fork, other)).thenReturn("hash of " + path.getPath());
+
+      download(path);
+      Pdf content = pdfService.getOrConvertPdf(other);
+
+      assertThat(content.getContent()).hasContent("Hello from pdf");
+      verify(converter, times(1)).convert(any(), any(), any());
+    }
+
+    @Test
+    void shouldConvertSameContentOfOtherRepositoryWithoutSharedCache() throws IOException {
+      RepositoryPath path = path("praesi.pptx");
+      mockConversion(path);
+
+      Repository fork = RepositoryTestData.create42Puzzle();
+      RepositoryPath other = new RepositoryPath(fork.getNamespace(), fork.getName(), "42", "praesi.pptx");
+      when(repositoryManager.get(other.getNamespaceAndName())).thenReturn(fork);
+      when(fileResolver.hash(fork, other)).thenReturn("hash of " + path.getPath());
+      InputStream forkPptx = stream("Hello from fork");
+      when(fileResolver.getContent(fork, other)).thenReturn(forkPptx);
+      when(converter.convert(eq(other), content(forkPptx), any())).thenReturn(stream("Hello from fork pdf"));
+
+      download(path);
+      Pdf content = pdfService.getOrConvertPdf(other);
+
+      assertThat(content.getContent()).hasContent("Hello from fork pdf");
+    }
+
+    @Test
+    void shouldReturnCacheKeyWithoutConversion() throws IOException {
+      RepositoryPath path = path("praesi.pptx");
+      when(converter.isConvertable("pptx")).thenReturn(true);
+      when(repositoryManager.get(path.getNamespaceAndName())).thenReturn(repository);
+      when(fileResolver.hash(repository, path)).thenReturn("hash of praesi.pptx");
+
+      String cacheKey = pdfService.getCacheKey(path);
+
+      assertThat(cacheKey).isEqualTo(new CacheKeyResolver(fileResolver, Collections.emptySet()).resolve(repository, path));
+      verify(converter, never()).convert(any(), any(), any());
+    }
+
+    @Test
+    void shouldConvertInBackground() throws IOException {
+      RepositoryPath path = path("praesi.pptx");
+      mockConversion(path);
+
+      assertThat(pdfService.convertInBackground(path)).isEqualTo(ConversionStatus.CONVERTING);
+      verify(converter, never()).convert(any(), any(), any());
+
+      backgroundTasks.forEach(Runnable::run);
+
+      assertThat(pdfService.convertInBackground(path)).isEqualTo(ConversionStatus.READY);
+      assertThat(pdfService.getOrConvertPdf(path).getContent()).hasContent("Hello from pdf");
+      verify(converter, times(1)).convert(any(), any(), any());
+    }
+
+    @Test
+    void shouldStartBackgroundConversionOnlyOnce() throws IOException {
+      RepositoryPath path = path("praesi.pptx");
+      when(converter.isConvertable("pptx")).thenReturn(true);
+      when(repositoryManager.get(path.getNamespaceAndName())).thenReturn(repository);
+      when(fileResolver.hash(repository, path)).thenReturn("hash of praesi.pptx");
+
+      pdfService.convertInBackground(path);
+      pdfService.convertInBackground(path);
+
+      assertThat(backgroundTasks).hasSize(1);
+    }
+
+    @Test
+    void shouldRunBackgroundConversionAsRequestingUser() throws IOException {
+      RepositoryPath path = path("praesi.pptx");
+      when(converter.isConvertable("pptx")).thenReturn(true);
+      when(repositoryManager.get(path.getNamespaceAndName())).thenReturn(repository);
+      when(fileResolver.hash(repository, path)).thenReturn("hash of praesi.pptx");
+
+      pdfService.convertInBackground(path);
+
+      verify(subject).associateWith(any(Runnable.class));
+    }
+
+    @Test
+    void shouldReportFailedBackgroundConversionOnce() throws IOException {
+      RepositoryPath path = path("praesi.pptx");
+      InputStream pptx = stream("Hello from pptx");
+      when(converter.isConvertable("pptx")).thenReturn(true);
+      when(repositoryManager.get(path.getNamespaceAndName())).thenReturn(repository);
+      when(fileResolver.hash(repository, path)).thenReturn("hash of praesi.pptx");
+      when(fileResolver.getContent(repository, path)).thenReturn(pptx);
+      when(converter.convert(eq(path), content(pptx), any())).thenThrow(new GotenbergServerException("conversion failed"));
+
+      pdfService.convertInBackground(path);
+      backgroundTasks.forEach(Runnable::run);
+      backgroundTasks.clear();
+
+      assertThrows(GotenbergServerException.class, () -> pdfService.convertInBackground(path));
+      assertThat(pdfService.convertInBackground(path)).isEqualTo(ConversionStatus.CONVERTING);
+      assertThat(backgroundTasks).hasSize(1);
+    }
+
+    @Test
+    void shouldNotStartConversionWhenStatusIsRequested() throws IOException {
+      RepositoryPath path = path("praesi.pptx");
+      when(converter.isConvertable("pptx")).thenReturn(true);
+      when(repositoryManager.get(path.getNamespaceAndName())).thenReturn(repository);
+      when(fileResolver.hash(repository, path)).thenReturn("hash of praesi.pptx");
+
+      assertThat(pdfService.getConversionStatus(path)).isEqualTo(ConversionStatus.NOT_CONVERTED);
+      assertThat(backgroundTasks).isEmpty();
+
+      pdfService.convertInBackground(path);
+
+      assertThat(pdfService.getConversionStatus(path)).isEqualTo(ConversionStatus.CONVERTING);
+      assertThat(backgroundTasks).hasSize(1);
+    }
+
+    @Test
+    void shouldNotConvertDocumentWhichExceedsFileSizeLimitAgainOnEveryPoll() throws IOException {
+      configuration.setCacheMaxFileMegabytes(1);
+      RepositoryPath path = path("praesi.pptx");
+      when(converter.isConvertable("pptx")).thenReturn(true);
+      when(repositoryManager.get(path.getNamespaceAndName())).thenReturn(repository);
+      when(fileResolver.hash(repository, path)).thenReturn("hash of praesi.pptx");
+      when(converter.convert(eq(path), any(), any())).thenReturn(new ByteArrayInputStream(new byte[1024 * 1024 + 1]));
+
+      assertThat(pdfService.convertInBackground(path)).isEqualTo(ConversionStatus.CONVERTING);
+      backgroundTasks.forEach(Runnable::run);
+      backgroundTasks.clear();
+
+      assertThat(pdfService.getConversionStatus(path)).isEqualTo(ConversionStatus.READY);
+      assertThat(pdfService.convertInBackground(path)).isEqualTo(ConversionStatus.READY);
+      assertThat(backgroundTasks).isEmpty();
+      verify(converter, times(1)).convert(eq(path), any(), any());
+    }
+
+    @Test
+    void shouldServeDocumentWhichExceedsFileSizeLimitWithoutConvertingItAgain() throws IOException {
+      configuration.setCacheMaxFileMegabytes(1);
+      RepositoryPath path = path("praesi.pptx");
+      byte[] large = new byte[1024 * 1024 + 1];
+      when(converter.isConvertable("pptx")).thenReturn(true);
+      when(repositoryManager.get(path.getNamespaceAndName())).thenReturn(repository);
+      when(fileResolver.hash(repository, path)).thenReturn("hash of praesi.pptx");
+      when(converter.convert(eq(path), any(), any())).thenReturn(new ByteArrayInputStream(large));
+
+      pdfService.convertInBackground(path);
+      backgroundTasks.forEach(Runnable::run);
+
+      try (Pdf first = pdfService.getOrConvertPdf(path); Pdf second = pdfService.getOrConvertPdf(path)) {
+        assertThat(first.getContent().readAllBytes()).isEqualTo(large);
+        assertThat(second.getLength()).isEqualTo(large.length);
+      }
+      verify(converter, times(1)).convert(eq(path), any(), any());
+    }
+
+    @Test
+    void shouldRejectBackgroundConversionsOverUserLimit() throws IOException {
+      configuration.setMaxConversionsPerUser(1);
+      RepositoryPath first = path("praesi.pptx");
+      RepositoryPath second = path("slides.pptx");
+      when(converter.isConvertable("pptx")).thenReturn(true);
+      when(repositoryManager.get(first.getNamespaceAndName())).thenReturn(repository);
+      when(fileResolver.hash(eq(repository), any())).then(ic -> "hash of " + ic.<RepositoryPath>getArgument(1).getPath());
+
+      pdfService.convertInBackground(first);
+
+      assertThrows(ConversionLimitExceededException.class, () -> pdfService.convertInBackground(second));
+      assertThat(backgroundTasks).hasSize(1);
+      assertThat(pdfService.getConversionStatus(second)).isEqualTo(ConversionStatus.NOT_CONVERTED);
+    }
+
+    @Test
+    void shouldRejectBackgroundConversionIfQueueIsFull() throws IOException {
+      pdfService = createPdfService(task -> {
+        throw new RejectedExecutionException("queue is full");
+      }, speculativeTasks::add);
+      RepositoryPath path = path("praesi.pptx");
+      when(converter.isConvertable("pptx")).thenReturn(true);
+      when(repositoryManager.get(path.getNamespaceAndName())).thenReturn(repository);
+      when(fileResolver.hash(repository, path)).thenReturn("hash of praesi.pptx");
+
+      ConversionLimitExceededException exception = assertThrows(
+        ConversionLimitExceededException.class, () -> pdfService.convertInBackground(path)
+      );
+
+      assertThat(exception.getRetryAfterSeconds()).isPositive();
+      assertThat(pdfService.getConversionStatus(path)).isEqualTo(ConversionStatus.NOT_CONVERTED);
+    }
+
+    @Test
+    void shouldConvertSpeculativelyOnItsOwnLane() throws IOException {
+      RepositoryPath path = path("praesi.pptx");
+      mockConversion(path);
+
+      assertThat(pdfService.prefetch(path)).isTrue();
+      verify(converter, never()).convert(any(), any(), any());
+      verify(subject).associateWith(any(Runnable.class));
+      assertThat(backgroundTasks).isEmpty();
+
+      speculativeTasks.forEach(Runnable::run);
+
+      assertThat(pdfService.getConversionStatus(path)).isEqualTo(ConversionStatus.READY);
+      verify(converter, times(1)).convert(any(), any(), any());
+    }
+
+    @Test
+    void shouldDropSpeculativeConversionIfLaneIsFull() {
+      pdfService = createPdfService(backgroundTasks::add, task -> {
+        throw new RejectedExecutionException("lane is full");
+      });
+
+      assertThat(pdfService.prefetch(path("praesi.pptx"))).isFalse();
+      assertThat(meterRegistry.counter("scm.gotenberg.conversions.speculative.dropped").count()).isEqualTo(1);
+    }
+
+    @Test
+    void shouldNotWaitForConversionSlotSpeculatively() throws IOException {
+      configuration.setMaxConcurrentConversions(1);
+      RepositoryPath requested = path("requested.pptx");
+      RepositoryPath speculative = path("praesi.pptx");
+      mockConversion(requested);
+      when(fileResolver.hash(repository, speculative)).thenReturn("hash of praesi.pptx");
+
+      // the converter mock never closes the response, so the requested conversion keeps its slot
+      download(requested);
+      pdfService.prefetch(speculative);
+      speculativeTasks.forEach(Runnable::run);
+
+      assertThat(pdfService.getConversionStatus(speculative)).isEqualTo(ConversionStatus.NOT_CONVERTED);
+      verify(converter, never()).convert(eq(speculative), any(), any());
+      assertThat(meterRegistry.counter("scm.gotenberg.conversions.speculative.dropped").count()).isEqualTo(1);
+    }
+
+    @Test
+    void shouldReturnCachedSizeWithoutConversion() throws IOException {
+      RepositoryPath path = path("praesi.pptx");
+      mockConversion(path);
+
+      assertThat(pdfService.getCachedSize(path)).isEmpty();
+      download(path);
+
+      assertThat(pdfService.getCachedSize(path)).hasValue(14);
+      verify(converter, times(1)).convert(any(), any(), any());
+    }
+
+    @Test
+    void shouldNotReadDocumentForCachedSizeIfKeyIsUnresolved() throws IOException {
+      RepositoryPath path = path("praesi.pptx");
+      when(converter.isConvertable("pptx")).thenReturn(true);
+      when(repositoryManager.get(path.getNamespaceAndName())).thenReturn(repository);
+
+      assertThat(pdfService.getResolvedCacheKey(path)).isEmpty();
+      assertThat(pdfService.getCachedSize(path)).isEmpty();
+      verify(fileResolver, never()).hash(any(), any());
+    }
+
+    @Test
+    void shouldPeekCachedSizeOfPreviouslyRequestedDocument() throws IOException {
+      RepositoryPath path = new RepositoryPath(repository.getNamespace(), repository.getName(), CHANGESET_ID, "praesi.pptx");
+      mockConversion(path);
+
+      assertThat(pdfService.peekCachedSize(repository, CHANGESET_ID, "praesi.pptx")).isEmpty();
+      download(path);
+
+      assertThat(pdfService.peekCachedSize(repository, CHANGESET_ID, "praesi.pptx")).hasValue(14);
+      verify(fileResolver, times(1)).hash(repository, path);
+    }
+
+    @Test
+    void shouldNotPeekCachedSizeOfBranch() throws IOException {
+      RepositoryPath path = path("praesi.pptx");
+      mockConversion(path);
+      download(path);
+
+      assertThat(pdfService.peekCachedSize(repository, path.getRevision(), path.getPath())).isEmpty();
+    }
+
+    @Test
+    void shouldPreConvertIntoCache() throws IOException {
+      RepositoryPath path = path("praesi.pptx");
+      mockConversion(path);
+
+      assertThat(pdfService.preConvert(path)).isTrue();
+
+      assertThat(pdfService.convertInBackground(path)).isEqualTo(ConversionStatus.READY);
+      assertThat(backgroundTasks).isEmpty();
+    }
+
+    @Test
+    void shouldNotPreConvertCachedDocument() throws IOException {
+      RepositoryPath path = path("praesi.pptx");
+      mockConversion(path);
+      download(path);
+
+      assertThat(pdfService.preConvert(path)).isFalse();
+
+      verify(converter, times(1)).convert(any(), any(), any());
+    }
+
+    @Test
+    void shouldNotWaitForConversionSlotToPreConvert() throws IOException {
+      configuration.setMaxConcurrentConversions(1);
+      RepositoryPath requested = path("requested.pptx");
+      RepositoryPath path = path("praesi.pptx");
+      mockConversion(requested);
+      when(fileResolver.hash(repository, path)).thenReturn("hash of praesi.pptx");
+
+      // the converter mock never closes the response, so the requested conversion keeps its slot
+      download(requested);
+
+      assertThrows(ConversionLimitExceededException.class, () -> pdfService.preConvert(path));
+      assertThat(pdfService.getConversionStatus(path)).isEqualTo(ConversionStatus.NOT_CONVERTED);
+    }
+
+    @Test
+    void shouldCoalesceConcurrentConversions() throws Exception {
+      RepositoryPath path = path("praesi.pptx");
+      InputStream pptx = stream("Hello from pptx");
+
+      CountDownLatch conversionStarted = new CountDownLatch(1);
+      CountDownLatch releaseConversion = new CountDownLatch(1);
+
+      when(converter.isConvertable("pptx")).thenReturn(true);
+      when(repositoryManager.get(path.getNamespaceAndName())).thenReturn(repository);
+      when(fileResolver.hash(repository, path)).thenReturn("hash of praesi.pptx");
+      when(fileResolver.getContent(repository, path)).thenReturn(pptx);
+      when(converter.convert(eq(path), content(pptx), any())).then(ic -> {
+        conversionStarted.countDown();
+        releaseConversion.await();
+        return stream("Hello from pdf");
+      });
+
+      ExecutorService executor = Executors.newFixedThreadPool(2);
+      try {
+        Future<Pdf> first = executor.submit(() -> pdfService.getOrConvertPdf(path));
+        conversionStarted.await();
+        Future<Pdf> second = executor.submit(() -> pdfService.getOrConvertPdf(path));
+
+        while (coalesced() < 1) {
+          Thread.sleep(10);
+        }
+        releaseConversion.countDown();
+
+        try (Pdf pdf = first.get()) {
+          assertThat(pdf.getContent()).hasContent("Hello from pdf");
+        }
+        try (Pdf pdf = second.get()) {
+          assertThat(pdf.getContent()).hasContent("Hello from pdf");
+        }
+      } finally {
+        executor.shutdownNow();
+      }
+
+      verify(converter, times(1)).convert(eq(path), any(), any());
+      assertThat(coalesced()).isEqualTo(1);
+    }
+
+    @Test
+    void shouldShareDocumentWhichExceedsFileSizeLimitWithWaitingRequests() throws Exception {
+      configuration.setCacheMaxFileMegabytes(1);
+      List<Runnable> pumps = new ArrayList<>();
+      pumpExecutor = pumps::add;
+      RepositoryPath path = path("praesi.pptx");
+      byte[] large = new byte[1024 * 1024 + 1];
+
+      when(converter.isConvertable("pptx")).thenReturn(true);
+      when(repositoryManager.get(path.getNamespaceAndName())).thenReturn(repository);
+      when(fileResolver.hash(repository, path)).thenReturn("hash of praesi.pptx");
+      when(converter.convert(eq(path), any(), any())).thenReturn(new ByteArrayInputStream(large));
+
+      ExecutorService executor = Executors.newSingleThreadExecutor();
+      try (Pdf first = pdfService.getOrConvertPdf(path)) {
+        Future<byte[]> second = executor.submit(() -> {
+          try (Pdf pdf = pdfService.getOrConvertPdf(path)) {
+            return pdf.getContent().readAllBytes();
+          }
+        });
+        while (coalesced() < 1) {
+          Thread.sleep(10);
+        }
+        pumps.forEach(Runnable::run);
+
+        assertThat(first.getContent().readAllBytes()).isEqualTo(large);
+        assertThat(second.get()).isEqualTo(large);
+      } finally {
+        executor.shutdownNow();
+      }
+
+      verify(converter, times(1)).convert(eq(path), any(), any());
+    }
+
+    private double coalesced() {
+      return meterRegistry.counter("scm.gotenberg.conversions.coalesced").count();
     }
 
     private ByteArrayInputStream stream(String content) {
@@ -162,4 +733,19 @@ class PdfServiceTest {
 
   }
 
+
+  private void download(RepositoryPath path) throws IOException {
+    pdfService.getOrConvertPdf(path).writeTo(OutputStream.nullOutputStream());
+  }
+
+  private Converter.Content content(InputStream expected) {
+    return argThat(content -> {
+      try {
+        return content.open() == expected;
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    });
+  }
+
 }
@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package com.cloudogu.scm.gotenberg;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class PdfTest {
+
+  @Test
+  void shouldWriteContent() throws IOException {
+    Pdf pdf = Pdf.of("abc", "Hello from pdf".getBytes(StandardCharsets.UTF_8));
+
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    pdf.writeTo(output);
+
+    assertThat(output.toString(StandardCharsets.UTF_8)).isEqualTo("Hello from pdf");
+    assertThat(pdf.getLength()).isEqualTo(14);
+  }
+
+  @Test
+  void shouldWriteRange() throws IOException {
+    Pdf pdf = Pdf.of("abc", "Hello from pdf".getBytes(StandardCharsets.UTF_8));
+
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    pdf.writeTo(output, ByteRange.parse("bytes=6-9", pdf.getLength()).orElseThrow());
+
+    assertThat(output.toString(StandardCharsets.UTF_8)).isEqualTo("from");
+  }
+
+  @Test
+  void shouldWriteRangeOfFile(@TempDir Path directory) throws IOException {
+    byte[] content = createFile(directory);
+
+    Pdf pdf = new Pdf("abc", new FileInputStream(directory.resolve("praesi.pdf").toFile()), content.length);
+
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    pdf.writeTo(output, ByteRange.parse("bytes=1024-2047", pdf.getLength()).orElseThrow());
+
+    assertThat(output.toByteArray()).isEqualTo(Arrays.copyOfRange(content, 1024, 2048));
+  }
+
+  @Test
+  void shouldWriteContentOfFile(@TempDir Path directory) throws IOException {
+    byte[] content = createFile(directory);
+    Path file = directory.resolve("praesi.pdf");
+
+    Pdf pdf = new Pdf("abc", new FileInputStream(file.toFile()), content.length);
+
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    pdf.writeTo(output);
+
+    assertThat(output.toByteArray()).isEqualTo(content);
+  }
+
+  @Test
+  void shouldNotHaveLengthIfUnknown() {
+    Pdf pdf = new Pdf("abc", new ByteArrayInputStream(new byte[0]), Pdf.UNKNOWN_LENGTH);
+
+    assertThat(pdf.hasLength()).isFalse();
+  }
+
+  private byte[] createFile(Path directory) throws IOException {
+    byte[] content = new byte[256 * 1024];
+    for (int i = 0; i < content.length; i++) {
+      content[i] = (byte) i;
+    }
+    Files.write(directory.resolve("praesi.pdf"), content);
+    return content;
+  }
+}
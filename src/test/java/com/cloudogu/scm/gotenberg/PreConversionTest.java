@@ -0,0 +1,364 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package com.cloudogu.scm.gotenberg;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.shiro.subject.Subject;
+import org.apache.shiro.util.ThreadContext;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Answers;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import sonia.scm.repository.Added;
+import sonia.scm.repository.BrowserResult;
+import sonia.scm.repository.Changeset;
+import sonia.scm.repository.FileObject;
+import sonia.scm.repository.Modification;
+import sonia.scm.repository.Modifications;
+import sonia.scm.repository.Modified;
+import sonia.scm.repository.PostReceiveRepositoryHookEvent;
+import sonia.scm.repository.Removed;
+import sonia.scm.repository.Repository;
+import sonia.scm.repository.RepositoryTestData;
+import sonia.scm.repository.api.BrowseCommandBuilder;
+import sonia.scm.repository.api.HookChangesetBuilder;
+import sonia.scm.repository.api.HookContext;
+import sonia.scm.repository.api.ModificationsCommandBuilder;
+import sonia.scm.repository.api.RepositoryService;
+import sonia.scm.repository.api.RepositoryServiceFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.OptionalLong;
+import java.util.concurrent.RejectedExecutionException;
+
+import static java.util.Collections.singletonList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.lenient;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+class PreConversionTest {
+
+  private final Repository repository = RepositoryTestData.createHeartOfGold();
+
+  private final GotenbergConfiguration configuration = new GotenbergConfiguration();
+
+  private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+  private final List<Changeset> changesets = new ArrayList<>();
+
+  @Mock
+  private GotenbergConfigurationStore configurationStore;
+
+  @Mock
+  private RepositoryServiceFactory repositoryServiceFactory;
+
+  @Mock
+  private RepositoryService repositoryService;
+
+  @Mock(answer = Answers.RETURNS_SELF)
+  private ModificationsCommandBuilder modificationsCommand;
+
+  @Mock(answer = Answers.RETURNS_SELF)
+  private BrowseCommandBuilder browseCommand;
+
+  @Mock
+  private HookContext hookContext;
+
+  @Mock
+  private HookChangesetBuilder changesetProvider;
+
+  @Mock
+  private PdfService pdfService;
+
+  @Mock
+  private Subject subject;
+
+  private PreConversion preConversion;
+
+  @BeforeEach
+  void setUp() {
+    configuration.setEnabled(true);
+    configuration.setPreConversionEnabled(true);
+    lenient().when(configurationStore.get()).thenReturn(configuration);
+    lenient().when(repositoryServiceFactory.create(repository)).thenReturn(repositoryService);
+    lenient().when(repositoryService.getModificationsCommand()).thenReturn(modificationsCommand);
+    lenient().when(repositoryService.getBrowseCommand()).thenReturn(browseCommand);
+    lenient().when(hookContext.getChangesetProvider()).thenReturn(changesetProvider);
+    lenient().when(changesetProvider.getChangesets()).thenReturn(changesets);
+    lenient().when(pdfService.isSupported(anyString())).then(ic -> ic.<String>getArgument(0).endsWith(".docx"));
+    lenient().when(subject.associateWith(any(Runnable.class))).then(ic -> ic.getArgument(0));
+    ThreadContext.bind(subject);
+
+    preConversion = new PreConversion(
+      configurationStore, repositoryServiceFactory, pdfService, meterRegistry, Runnable::run
+    );
+  }
+
+  @AfterEach
+  void tearDownSubject() {
+    ThreadContext.unbindSubject();
+  }
+
+  @Test
+  void shouldConvertAddedAndModifiedDocuments() throws IOException {
+    mockSize(1024);
+    push("42", 1L, new Added("a.docx"), new Modified("docs/b.docx"));
+
+    verify(pdfService).preConvert(path("42", "a.docx"));
+    verify(pdfService).preConvert(path("42", "docs/b.docx"));
+    assertThat(meterRegistry.get("scm.gotenberg.preconversion.converted").counter().count()).isZero();
+  }
+
+  @Test
+  void shouldCountConvertedDocuments() throws IOException {
+    mockSize(1024);
+    when(pdfService.preConvert(any())).thenReturn(true);
+
+    push("42", 1L, new Added("a.docx"));
+
+    assertThat(meterRegistry.get("scm.gotenberg.preconversion.converted").counter().count()).isEqualTo(1);
+  }
+
+  @Test
+  void shouldIgnorePushIfDisabled() {
+    configuration.setPreConversionEnabled(false);
+
+    push("42", 1L, new Added("a.docx"));
+
+    verifyNoInteractions(repositoryServiceFactory, pdfService);
+  }
+
+  @Test
+  void shouldIgnorePushIfGotenbergIsDisabled() {
+    configuration.setEnabled(false);
+
+    push("42", 1L, new Added("a.docx"));
+
+    verifyNoInteractions(repositoryServiceFactory, pdfService);
+  }
+
+  @Test
+  void shouldIgnoreRepositoryWhichDoesNotMatch() {
+    configuration.setPreConversionRepositories(singletonList("docs/*"));
+
+    push("42", 1L, new Added("a.docx"));
+
+    verifyNoInteractions(repositoryServiceFactory, pdfService);
+  }
+
+  @Test
+  void shouldConvertDocumentsOfMatchingRepository() throws IOException {
+    mockSize(1024);
+    configuration.setPreConversionRepositories(singletonList("hitchhiker/*"));
+
+    push("42", 1L, new Added("a.docx"));
+
+    verify(pdfService).preConvert(path("42", "a.docx"));
+  }
+
+  @Test
+  void shouldIgnoreUnsupportedFiles() throws IOException {
+    push("42", 1L, new Added("a.mkv"), new Added("Dockerfile"));
+
+    verify(pdfService, never()).preConvert(any());
+  }
+
+  @Test
+  void shouldIgnorePathsWhichDoNotMatch() throws IOException {
+    mockSize(1024);
+    configuration.setPreConversionPaths(singletonList("docs/**"));
+
+    push("42", 1L, new Added("a.docx"), new Added("docs/specs/b.docx"));
+
+    verify(pdfService, times(1)).preConvert(any());
+    verify(pdfService).preConvert(path("42", "docs/specs/b.docx"));
+  }
+
+  @Test
+  void shouldConvertOnlyLatestRevisionOfDocument() throws IOException {
+    mockSize(1024);
+    // the dates are out of order, e.g. after a rebase, the order of the hook context counts
+    Changeset older = changeset("1", 2L);
+    Changeset newer = changeset("2", 1L);
+    when(modificationsCommand.getModifications())
+      .thenReturn(modifications("1", new Added("a.docx")))
+      .thenReturn(modifications("2", new Modified("a.docx")));
+
+    push(older, newer);
+
+    verify(pdfService, times(1)).preConvert(any());
+    verify(pdfService).preConvert(path("2", "a.docx"));
+  }
+
+  @Test
+  void shouldIgnoreRemovedDocuments() throws IOException {
+    Changeset older = changeset("1", 1L);
+    Changeset newer = changeset("2", 2L);
+    when(modificationsCommand.getModifications())
+      .thenReturn(modifications("1", new Added("a.docx")))
+      .thenReturn(modifications("2", new Removed("a.docx")));
+
+    push(older, newer);
+
+    verify(pdfService, never()).preConvert(any());
+  }
+
+  @Test
+  void shouldIgnoreLargeDocuments() throws IOException {
+    configuration.setPreConversionMaxFileMegabytes(1);
+    mockSize(2 * 1024 * 1024);
+
+    push("42", 1L, new Added("a.docx"));
+
+    verify(pdfService, never()).preConvert(any());
+  }
+
+  @Test
+  void shouldNotCheckSizeWithoutLimit() throws IOException {
+    configuration.setPreConversionMaxFileMegabytes(0);
+
+    push("42", 1L, new Added("a.docx"));
+
+    verify(pdfService).preConvert(path("42", "a.docx"));
+    verify(repositoryService, never()).getBrowseCommand();
+  }
+
+  @Test
+  void shouldLimitDocumentsPerPush() throws IOException {
+    mockSize(1024);
+    configuration.setPreConversionMaxFilesPerPush(2);
+    when(pdfService.preConvert(any())).thenReturn(true);
+
+    push("42", 1L, new Added("a.docx"), new Added("b.docx"), new Added("c.docx"));
+
+    verify(pdfService, times(2)).preConvert(any());
+  }
+
+  @Test
+  void shouldNotCountCachedDocumentsAgainstLimit() throws IOException {
+    mockSize(1024);
+    configuration.setPreConversionMaxFilesPerPush(2);
+    when(pdfService.preConvert(any())).thenReturn(false, true, true);
+
+    push("42", 1L, new Added("a.docx"), new Added("b.docx"), new Added("c.docx"), new Added("d.docx"));
+
+    verify(pdfService, times(3)).preConvert(any());
+  }
+
+  @Test
+  void shouldStopIfConversionsAreLimited() throws IOException {
+    mockSize(1024);
+    when(pdfService.preConvert(any())).thenThrow(new ConversionLimitExceededException("no free conversion slot", 1));
+
+    push("42", 1L, new Added("a.docx"), new Added("b.docx"));
+
+    verify(pdfService, times(1)).preConvert(any());
+  }
+
+  @Test
+  void shouldContinueAfterFailedConversion() throws IOException {
+    mockSize(1024);
+    when(pdfService.preConvert(any())).thenThrow(new GotenbergServerException("broken document"));
+
+    push("42", 1L, new Added("a.docx"), new Added("b.docx"));
+
+    verify(pdfService, times(2)).preConvert(any());
+  }
+
+  @Test
+  void shouldConvertAsPushingUser() {
+    push("42", 1L, new Added("a.mkv"));
+
+    verify(subject).associateWith(any(Runnable.class));
+  }
+
+  @Test
+  void shouldDropPushIfQueueIsFull() {
+    preConversion = new PreConversion(
+      configurationStore, repositoryServiceFactory, pdfService, meterRegistry,
+      task -> {
+        throw new RejectedExecutionException("full");
+      }
+    );
+
+    push("42", 1L, new Added("a.docx"));
+
+    assertThat(meterRegistry.get("scm.gotenberg.preconversion.dropped").counter().count()).isEqualTo(1);
+  }
+
+  @Test
+  void shouldMatchGlobs() {
+    assertThat(PreConversion.matches(List.of(), "a/b.docx")).isTrue();
+    assertThat(PreConversion.matches(List.of("*.docx"), "b.docx")).isTrue();
+    assertThat(PreConversion.matches(List.of("*.docx"), "a/b.docx")).isFalse();
+    assertThat(PreConversion.matches(List.of("**/*.docx"), "b.docx")).isTrue();
+    assertThat(PreConversion.matches(List.of("**/*.docx"), "a/b/c.docx")).isTrue();
+    assertThat(PreConversion.matches(List.of("/docs/**"), "docs/a/b.pptx")).isTrue();
+    assertThat(PreConversion.matches(List.of("docs/?.docx"), "docs/a.docx")).isTrue();
+    assertThat(PreConversion.matches(List.of("docs/?.docx"), "docs/ab.docx")).isFalse();
+    assertThat(PreConversion.matches(List.of("a.b"), "axb")).isFalse();
+    assertThat(PreConversion.matches(List.of("*.pptx", "*.docx"), "b.docx")).isTrue();
+  }
+
+  private void push(String revision, Long date, Modification... modifications) {
+    try {
+      lenient().when(modificationsCommand.getModifications()).thenReturn(modifications(revision, modifications));
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+    push(changeset(revision, date));
+  }
+
+  private void push(Changeset... pushed) {
+    changesets.addAll(Arrays.asList(pushed));
+    preConversion.onEvent(new PostReceiveRepositoryHookEvent(repository, hookContext));
+  }
+
+  private void mockSize(long size) throws IOException {
+    FileObject file = new FileObject();
+    file.setLength(OptionalLong.of(size));
+    when(browseCommand.getBrowserResult()).thenReturn(new BrowserResult("42", file));
+  }
+
+  private Changeset changeset(String id, Long date) {
+    Changeset changeset = new Changeset();
+    changeset.setId(id);
+    changeset.setDate(date);
+    return changeset;
+  }
+
+  private Modifications modifications(String revision, Modification... modifications) {
+    return new Modifications(revision, modifications);
+  }
+
+  private RepositoryPath path(String revision, String path) {
+    return new RepositoryPath(repository.getNamespace(), repository.getName(), revision, path);
+  }
+}
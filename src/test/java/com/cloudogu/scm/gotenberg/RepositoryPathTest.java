@@ -44,9 +44,4 @@ class RepositoryPathTest {
     assertThat(path.getExtension()).contains("pdf");
   }
 
-  @Test
-  void shouldReturnCacheKey() {
-    assertThat(path.getCacheKey()).isEqualTo("96e53063e4cd0cb27984756493989162c828865b7dfe1d3ab5782364dc993144");
-  }
-
 }
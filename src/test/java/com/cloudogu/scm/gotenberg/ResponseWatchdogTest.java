@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package com.cloudogu.scm.gotenberg;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketTimeoutException;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class ResponseWatchdogTest {
+
+  private final MutableClock clock = new MutableClock();
+  private final ResponseWatchdog watchdog = new ResponseWatchdog(clock);
+
+  @Test
+  void shouldAbortStalledResponse() throws IOException {
+    CloseTrackingStream content = new CloseTrackingStream();
+    InputStream watched = watchdog.watch(content, 1000, 0);
+
+    assertThat(watched.read()).isEqualTo(1);
+    clock.millis += 1001;
+    watchdog.check();
+
+    assertThat(content.closed).isTrue();
+    assertThrows(SocketTimeoutException.class, watched::read);
+  }
+
+  @Test
+  void shouldNotAbortResponseWhichIsRead() throws IOException {
+    CloseTrackingStream content = new CloseTrackingStream();
+    InputStream watched = watchdog.watch(content, 1000, 0);
+
+    for (int i = 0; i < 3; i++) {
+      clock.millis += 600;
+      watched.read();
+      watchdog.check();
+    }
+
+    assertThat(content.closed).isFalse();
+  }
+
+  @Test
+  void shouldAbortResponseAfterDeadline() throws IOException {
+    CloseTrackingStream content = new CloseTrackingStream();
+    InputStream watched = watchdog.watch(content, 1000, 1500);
+
+    for (int i = 0; i < 3; i++) {
+      clock.millis += 600;
+      watched.read();
+      watchdog.check();
+    }
+
+    assertThat(content.closed).isTrue();
+  }
+
+  @Test
+  void shouldNotWatchClosedResponse() throws IOException {
+    CloseTrackingStream content = new CloseTrackingStream();
+    InputStream watched = watchdog.watch(content, 1000, 0);
+
+    watched.close();
+    content.closed = false;
+    clock.millis += 2000;
+    watchdog.check();
+
+    assertThat(content.closed).isFalse();
+  }
+
+  private static class CloseTrackingStream extends FilterInputStream {
+
+    private boolean closed;
+
+    CloseTrackingStream() {
+      super(new ByteArrayInputStream(new byte[]{1, 2, 3, 4, 5}));
+    }
+
+    @Override
+    public void close() throws IOException {
+      closed = true;
+      super.close();
+    }
+  }
+
+  private static class MutableClock extends Clock {
+
+    private long millis;
+
+    @Override
+    public ZoneId getZone() {
+      return ZoneOffset.UTC;
+    }
+
+    @Override
+    public Clock withZone(ZoneId zone) {
+      return this;
+    }
+
+    @Override
+    public long millis() {
+      return millis;
+    }
+
+    @Override
+    public Instant instant() {
+      return Instant.ofEpochMilli(millis);
+    }
+  }
+}
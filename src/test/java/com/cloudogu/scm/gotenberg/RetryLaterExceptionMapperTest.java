@@ -0,0 +1,46 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package com.cloudogu.scm.gotenberg;
+
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.Response;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class RetryLaterExceptionMapperTest {
+
+  private final RetryLaterExceptionMapper mapper = new RetryLaterExceptionMapper();
+
+  @Test
+  void shouldMapUnavailableServerToServiceUnavailable() {
+    try (Response response = mapper.toResponse(new GotenbergUnavailableException("no server available", 30))) {
+      assertThat(response.getStatus()).isEqualTo(Response.Status.SERVICE_UNAVAILABLE.getStatusCode());
+      assertThat(response.getMediaType()).isEqualTo(MediaType.TEXT_PLAIN_TYPE);
+      assertThat(response.getHeaderString("Retry-After")).isEqualTo("30");
+    }
+  }
+
+  @Test
+  void shouldMapExceededLimitToServiceUnavailable() {
+    try (Response response = mapper.toResponse(new ConversionLimitExceededException("queue is full", 5))) {
+      assertThat(response.getStatus()).isEqualTo(Response.Status.SERVICE_UNAVAILABLE.getStatusCode());
+      assertThat(response.getMediaType()).isEqualTo(MediaType.TEXT_PLAIN_TYPE);
+      assertThat(response.getHeaderString("Retry-After")).isEqualTo("5");
+    }
+  }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package com.cloudogu.scm.gotenberg;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Answers;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import sonia.scm.repository.BrowserResult;
+import sonia.scm.repository.FileObject;
+import sonia.scm.repository.PostReceiveRepositoryHookEvent;
+import sonia.scm.repository.Repository;
+import sonia.scm.repository.RepositoryTestData;
+import sonia.scm.repository.api.BrowseCommandBuilder;
+import sonia.scm.repository.api.RepositoryService;
+import sonia.scm.repository.api.RepositoryServiceFactory;
+
+import java.io.IOException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.lenient;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+class RevisionResolverTest {
+
+  private static final String CHANGESET_ID = "c0ffee00c0ffee00c0ffee00c0ffee00c0ffee00";
+
+  private final Repository repository = RepositoryTestData.createHeartOfGold();
+
+  @Mock
+  private RepositoryServiceFactory repositoryServiceFactory;
+
+  @Mock
+  private RepositoryService repositoryService;
+
+  @Mock(answer = Answers.RETURNS_SELF)
+  private BrowseCommandBuilder browseCommand;
+
+  @InjectMocks
+  private RevisionResolver resolver;
+
+  @BeforeEach
+  void setUpRepositoryService() {
+    lenient().when(repositoryServiceFactory.create(repository)).thenReturn(repositoryService);
+    lenient().when(repositoryService.getBrowseCommand()).thenReturn(browseCommand);
+  }
+
+  @Test
+  void shouldResolveBranchToChangesetId() throws IOException {
+    when(browseCommand.getBrowserResult()).thenReturn(new BrowserResult(CHANGESET_ID, "main", new FileObject()));
+
+    RepositoryPath resolved = resolver.resolve(repository, path("main"));
+
+    assertThat(resolved.getRevision()).isEqualTo(CHANGESET_ID);
+    assertThat(resolved.getPath()).isEqualTo("praesi.pptx");
+  }
+
+  @Test
+  void shouldNotResolveChangesetId() throws IOException {
+    RepositoryPath path = path(CHANGESET_ID);
+
+    assertThat(resolver.resolve(repository, path)).isSameAs(path);
+    verifyNoInteractions(repositoryServiceFactory);
+  }
+
+  @Test
+  void shouldCacheResolvedRevision() throws IOException {
+    when(browseCommand.getBrowserResult()).thenReturn(new BrowserResult(CHANGESET_ID, "main", new FileObject()));
+
+    resolver.resolve(repository, path("main"));
+    resolver.resolve(repository, path("main"));
+
+    verify(browseCommand, times(1)).getBrowserResult();
+  }
+
+  @Test
+  void shouldResolveAgainAfterPush() throws IOException {
+    String next = "beef0000beef0000beef0000beef0000beef0000";
+    when(browseCommand.getBrowserResult())
+      .thenReturn(new BrowserResult(CHANGESET_ID, "main", new FileObject()))
+      .thenReturn(new BrowserResult(next, "main", new FileObject()));
+
+    resolver.resolve(repository, path("main"));
+    resolver.onEvent(new PostReceiveRepositoryHookEvent(repository));
+
+    assertThat(resolver.resolve(repository, path("main")).getRevision()).isEqualTo(next);
+  }
+
+  @Test
+  void shouldDetectChangesetIds() {
+    assertThat(RevisionResolver.isChangesetId(CHANGESET_ID)).isTrue();
+    assertThat(RevisionResolver.isChangesetId("main")).isFalse();
+    assertThat(RevisionResolver.isChangesetId("c0ffee")).isFalse();
+  }
+
+  private RepositoryPath path(String revision) {
+    return new RepositoryPath(repository.getNamespace(), repository.getName(), revision, "praesi.pptx");
+  }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package com.cloudogu.scm.gotenberg;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class SpoolTest {
+
+  private final Spool spool = new Spool("42", TimeUnit.SECONDS.toMillis(10));
+
+  @Test
+  void shouldServeAllReaders() throws IOException {
+    try (Pdf first = spool.start()) {
+      spool.pump(stream("Don't Panic"));
+
+      try (Pdf second = spool.open().orElseThrow()) {
+        assertThat(first.getContent()).hasContent("Don't Panic");
+        assertThat(second.getContent()).hasContent("Don't Panic");
+        assertThat(second.getLength()).isEqualTo(11);
+      }
+    }
+  }
+
+  @Test
+  void shouldLetReaderFollowThePump() throws Exception {
+    try (Pdf pdf = spool.start()) {
+      CompletableFuture<String> read = CompletableFuture.supplyAsync(() -> {
+        try {
+          return new String(pdf.getContent().readAllBytes(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+          throw new IllegalStateException(e);
+        }
+      });
+
+      spool.pump(stream("Don't Panic"));
+
+      assertThat(read.get(5, TimeUnit.SECONDS)).isEqualTo("Don't Panic");
+    }
+  }
+
+  @Test
+  void shouldFinishWithoutReader() throws IOException {
+    spool.start().close();
+
+    spool.pump(stream("Don't Panic"));
+
+    assertThat(spool.getFailure()).isEmpty();
+    // the file is deleted, because nobody reads it
+    assertThat(spool.open()).isEmpty();
+  }
+
+  @Test
+  void shouldKeepFileForOpenReaders() throws IOException {
+    try (Pdf pdf = spool.start()) {
+      spool.pump(stream("Don't Panic"));
+
+      pdf.getContent().skip(6);
+      assertThat(pdf.getContent()).hasContent("Panic");
+    }
+  }
+
+  @Test
+  void shouldKeepFileOfRetainedSpoolUntilItIsDisposed() throws IOException {
+    spool.start().close();
+    spool.retain();
+    spool.pump(stream("Don't Panic"));
+
+    try (Pdf pdf = spool.open().orElseThrow()) {
+      assertThat(pdf.getContent()).hasContent("Don't Panic");
+      assertThat(pdf.getLength()).isEqualTo(11);
+    }
+
+    spool.dispose();
+    assertThat(spool.open()).isEmpty();
+  }
+
+  @Test
+  void shouldRethrowFailureBeforeDocumentWasSent() {
+    spool.fail(new GotenbergServerException("conversion failed"));
+
+    GotenbergServerException exception = assertThrows(GotenbergServerException.class, spool::open);
+    assertThat(exception.getMessage()).isEqualTo("conversion failed");
+  }
+
+  @Test
+  void shouldFailReadersIfPumpFails() throws IOException {
+    InputStream broken = new SequenceInputStream(stream("Don't"), new InputStream() {
+      @Override
+      public int read() throws IOException {
+        throw new IOException("connection reset");
+      }
+    });
+
+    try (Pdf pdf = spool.start()) {
+      spool.pump(broken);
+
+      InputStream content = pdf.getContent();
+      assertThat(content.readNBytes(5)).isEqualTo("Don't".getBytes(StandardCharsets.UTF_8));
+      assertThrows(IOException.class, content::read);
+    }
+    assertThat(spool.getFailure()).isPresent();
+  }
+
+  @Test
+  void shouldReturnEmptyIfDocumentWasDiscarded() throws IOException {
+    spool.discard();
+
+    Optional<Pdf> pdf = spool.open();
+
+    assertThat(pdf).isEmpty();
+  }
+
+  @Test
+  void shouldNotWaitForeverForConversion() {
+    Spool stuck = new Spool("42", 50);
+
+    assertThrows(GotenbergUnavailableException.class, stuck::open);
+  }
+
+  @Test
+  void shouldNotWaitForeverForNextPart() throws IOException {
+    Spool stuck = new Spool("42", 50);
+
+    try (Pdf pdf = stuck.start()) {
+      assertThrows(IOException.class, () -> pdf.getContent().read());
+    } finally {
+      stuck.discard();
+    }
+  }
+
+  private InputStream stream(String content) {
+    return new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8));
+  }
+}